@@ -1,13 +1,30 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 /**
  * Represents a barista who prepares orders in a coffee shop.
  */
 class Barista implements Runnable {
+    private static final int EXTRA_CUP_MILLIS = 50; // Time to pour each additional cup of a grouped drink
+
     private final CoffeeShop coffeeShop;
+    private final int batchSize; // Most orders taken from the queue at once
+    private final boolean groupDrinks; // Whether identical drinks in a batch are prepared together
 
     public Barista(CoffeeShop coffeeShop) {
+        this(coffeeShop, 1, false);
+    }
+
+    public Barista(CoffeeShop coffeeShop, int batchSize, boolean groupDrinks) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
         this.coffeeShop = coffeeShop;
+        this.batchSize = batchSize;
+        this.groupDrinks = groupDrinks;
     }
 
     @Override
@@ -16,17 +33,65 @@ class Barista implements Runnable {
             String baristaName = Thread.currentThread().getName();
             Random rand = new Random();
             while (true) { // Barista are always ready to prepare orders
-                String order = coffeeShop.prepareOrder(baristaName);
-                if (order == null) {
+                if (batchSize == 1) {
+                    Order order = coffeeShop.prepareOrder(baristaName);
+                    if (order == null) {
+                        System.out.println(baristaName + ": No more orders to prepare. Shop is closing...");
+                        break;
+                    }
+                    Thread.sleep(rand.nextInt(100,1000)); // Simulating time taken to prepare an order
+                    System.out.println(baristaName + ": Order ready " + order + serve(List.of(order)) + ".");
+                    continue;
+                }
+                List<Order> orders = coffeeShop.prepareOrders(baristaName, batchSize);
+                if (orders.isEmpty()) {
                     System.out.println(baristaName + ": No more orders to prepare. Shop is closing...");
                     break;
                 }
-                System.out.println(baristaName + ": Order ready " + order + ".");
-                Thread.sleep(rand.nextInt(100,1000)); // Simulating time taken to prepare an order
+                for (List<Order> batch : groupDrinks ? groupByDrink(orders) : singleOrders(orders)) {
+                    // Identical drinks are made in one go, only pouring the extra cups takes longer
+                    Thread.sleep(rand.nextInt(100,1000) + (batch.size() - 1) * EXTRA_CUP_MILLIS);
+                    if (batch.size() == 1) {
+                        System.out.println(baristaName + ": Order ready " + batch.get(0) + serve(batch) + ".");
+                    } else {
+                        System.out.println(baristaName + ": " + batch.size() + " x " + batch.get(0).getDrink()
+                                + " ready: " + CoffeeShop.describe(batch) + serve(batch) + ".");
+                    }
+                }
             }
         } catch (InterruptedException e) {
             System.err.println(Thread.currentThread().getName() + " was interrupted.");
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Hands finished orders over to the shop and describes how late the latest of them is, if any.
+     */
+    private String serve(List<Order> batch) {
+        long latenessMillis = 0;
+        for (Order order : batch) {
+            latenessMillis = Math.max(latenessMillis, coffeeShop.serveOrder(order));
+        }
+        return latenessMillis > 0 ? ", " + latenessMillis + " ms late" : "";
+    }
+
+    /**
+     * Splits orders into batches of the same drink, in the order each drink was first ordered.
+     */
+    private static List<List<Order>> groupByDrink(List<Order> orders) {
+        Map<String, List<Order>> byDrink = new LinkedHashMap<>();
+        for (Order order : orders) {
+            byDrink.computeIfAbsent(order.getDrink(), drink -> new ArrayList<>()).add(order);
+        }
+        return new ArrayList<>(byDrink.values());
+    }
+
+    private static List<List<Order>> singleOrders(List<Order> orders) {
+        List<List<Order>> batches = new ArrayList<>(orders.size());
+        for (Order order : orders) {
+            batches.add(List.of(order));
+        }
+        return batches;
+    }
+}
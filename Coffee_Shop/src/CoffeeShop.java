@@ -1,50 +1,99 @@
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A coffee shop with a queue for orders.
  */
 class CoffeeShop {
-    private final Queue<String> orderQueue;
-    private final int capacity;
-    private boolean closingShop = false; // flag to indicate the shop is closing
+    private final OrderQueue<Order> orderQueue;
+    private final AtomicInteger servedOrders = new AtomicInteger();
+    private final AtomicInteger lateOrders = new AtomicInteger(); // Served after their deadline
 
     public CoffeeShop(int capacity) {
-        this.orderQueue = new LinkedList<>();
-        this.capacity = capacity;
+        this(new LockFreeOrderQueue<>(capacity));
+    }
+
+    // Use a specific queue engine, for example the lock-based one to compare against
+    public CoffeeShop(OrderQueue<Order> orderQueue) {
+        this.orderQueue = orderQueue;
     }
 
     // Customer places orders (Producer)
-    public synchronized void placeOrder(String order, String customerName) throws InterruptedException {
-        while (orderQueue.size() == capacity) {
+    public void placeOrder(Order order) throws InterruptedException {
+        String customerName = order.getCustomerName();
+        // Announced before the order is published, so no barista can report preparing it first
+        System.out.println(customerName + ": Placing an order for " + order + ".");
+        if (!orderQueue.offer(order)) {
             System.out.println(customerName + ": Order queue is full. Waiting to place order...");
-            wait();
+            orderQueue.put(order);
         }
-        orderQueue.add(order);
-        System.out.println(customerName + ": Placed an order for " + order + ".");
-        notifyAll();
     }
 
     // Barista prepares the orders (Consumer)
-    public synchronized String prepareOrder(String baristaName) throws InterruptedException {
-        while (orderQueue.isEmpty() && !closingShop) {
-            System.out.println(baristaName + ": Order queue is empty. Waiting for orders...");
-            wait();
+    public Order prepareOrder(String baristaName) throws InterruptedException {
+        Order order = orderQueue.poll();
+        if (order == null) {
+            if (!orderQueue.isClosed()) {
+                System.out.println(baristaName + ": Order queue is empty. Waiting for orders...");
+            }
+            order = orderQueue.take();
+            if (order == null) {
+                // Shop is closing, and no more orders are left to process.
+                // Returning null to signal the barista thread to terminate.
+                return null;
+            }
         }
-
-        if (orderQueue.isEmpty() && closingShop) {
-            // Shop is closing, and no more orders are left to process.
-            // Returning null to signal the barista thread to terminate.
-            return null;
-        }
-        String order = orderQueue.poll();
         System.out.println(baristaName + ": Preparing order " + order + ".");
-        notifyAll();
         return order;
     }
 
-    public synchronized void closeShop() {
-        closingShop = true; // Set the flag to indicate the shop is closing
-        notifyAll(); // Wake up all waiting threads
+    // Barista takes up to maxOrders orders at once, paying for one queue operation instead of one per order
+    public List<Order> prepareOrders(String baristaName, int maxOrders) throws InterruptedException {
+        List<Order> orders = new ArrayList<>(maxOrders);
+        if (orderQueue.drainTo(orders, maxOrders) == 0) {
+            if (!orderQueue.isClosed()) {
+                System.out.println(baristaName + ": Order queue is empty. Waiting for orders...");
+            }
+            if (orderQueue.take(orders, maxOrders) == 0) {
+                return orders; // Empty: the shop is closing and no more orders are left
+            }
+        }
+        System.out.println(baristaName + ": Preparing orders " + describe(orders) + ".");
+        return orders;
+    }
+
+    // Barista hands over a finished order, returning how late it is, 0 if it made its deadline
+    public long serveOrder(Order order) {
+        long latenessMillis = order.getLatenessMillis();
+        servedOrders.incrementAndGet();
+        if (latenessMillis > 0) {
+            lateOrders.incrementAndGet();
+        }
+        return latenessMillis;
+    }
+
+    public int getServedOrderCount() {
+        return servedOrders.get();
+    }
+
+    public int getLateOrderCount() {
+        return lateOrders.get();
+    }
+
+    public void closeShop() {
+        orderQueue.close(); // Wakes waiting baristas, who finish the remaining orders and stop
+    }
+
+    // Lists orders as "Latte for Customer 1, Mocha for Customer 2"
+    static String describe(List<Order> orders) {
+        StringBuilder text = new StringBuilder();
+        for (Order order : orders) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(order);
+        }
+        return text.toString();
     }
-}
\ No newline at end of file
+}
@@ -8,12 +8,26 @@ import java.util.Random;
  */
 public class CoffeeShopExample {
     public static void main(String[] args) {
-        CoffeeShop coffeeShop = new CoffeeShop(3); // Queue capacity is 3
+        // Pass "locking" to run on the lock-based queue instead of the lock-free one, or "stealing" to give
+        // every barista a run queue served earliest deadline first, and "batch" to let baristas take several
+        // orders at once and make identical drinks together
+        List<String> options = Arrays.asList(args);
+        boolean batch = options.contains("batch");
+        int capacity = 3; // Queue capacity is 3
+        int numBaristas = 3; // Number of baristas
+        OrderQueue<Order> orderQueue;
+        if (options.contains("locking")) {
+            orderQueue = new LockingOrderQueue<>(capacity);
+        } else if (options.contains("stealing")) {
+            orderQueue = new WorkStealingOrderScheduler(capacity, numBaristas);
+        } else {
+            orderQueue = new LockFreeOrderQueue<>(capacity);
+        }
+        CoffeeShop coffeeShop = new CoffeeShop(orderQueue);
 
         // Drinks menu
         List<String> drinks = Arrays.asList("Latte", "Cappuccino", "Espresso", "Americano", "Macchiato", "Mocha", "Flat White", "Cold Brew");
 
-        int numBaristas = 3; // Number of baristas
         int numCustomers = 5; // Number of customers
         int ordersPerCustomer = 5; // Number of orders each customer places
 
@@ -21,7 +35,8 @@ public class CoffeeShopExample {
 
         // Create barista threads
         for (int i = 0; i < numBaristas; i++) {
-            baristasNCustomers[i] = new Thread(new Barista(coffeeShop), "Barista " + (i + 1));
+            Barista barista = batch ? new Barista(coffeeShop, capacity, true) : new Barista(coffeeShop);
+            baristasNCustomers[i] = new Thread(barista, "Barista " + (i + 1));
         }
 
         // Create customer threads
@@ -29,7 +44,9 @@ public class CoffeeShopExample {
         for (int i = 0; i < numCustomers; i++) {
             List<String> randomOrders = getRandomOrders(drinks, ordersPerCustomer, random);
 
-            baristasNCustomers[numBaristas + i] = new Thread(new Customer(coffeeShop, randomOrders), "Customer " + (i + 1));
+            long maxWaitMillis = i == 0 ? 1000 : Order.DEFAULT_MAX_WAIT_MILLIS; // The first customer is in a rush
+            Customer customer = new Customer(coffeeShop, randomOrders, maxWaitMillis);
+            baristasNCustomers[numBaristas + i] = new Thread(customer, "Customer " + (i + 1));
         }
 
         // Start all threads
@@ -58,6 +75,9 @@ public class CoffeeShopExample {
             }
         }
 
+        // Compare runs with "stealing", which serves the order with the earliest deadline first
+        System.out.println(coffeeShop.getLateOrderCount() + " of " + coffeeShop.getServedOrderCount()
+                + " orders were served after their deadline.");
         System.out.println("Coffee shop was closed for the day.");
     }
 
@@ -6,10 +6,16 @@ import java.util.List;
 class Customer implements Runnable {
     private final CoffeeShop coffeeShop;
     private final List<String> orders; // List of orders for the customer
+    private final long maxWaitMillis; // How long the customer will wait for each drink
 
     public Customer(CoffeeShop coffeeShop, List<String> orders) {
+        this(coffeeShop, orders, Order.DEFAULT_MAX_WAIT_MILLIS);
+    }
+
+    public Customer(CoffeeShop coffeeShop, List<String> orders, long maxWaitMillis) {
         this.coffeeShop = coffeeShop;
         this.orders = orders;
+        this.maxWaitMillis = maxWaitMillis;
     }
 
     @Override
@@ -18,8 +24,7 @@ class Customer implements Runnable {
             String customerName = Thread.currentThread().getName();
             System.out.println(customerName + "'s order list : " + String.join(", ", orders));
             for (String order : orders) {
-                String orderString = order + " for " + customerName;
-                coffeeShop.placeOrder(orderString, customerName); // Place each order
+                coffeeShop.placeOrder(new Order(order, customerName, maxWaitMillis)); // Place each order
                 Thread.sleep(1000); // Simulate some delay between orders
             }
         } catch (InterruptedException e) {
@@ -0,0 +1,284 @@
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * A lock-free order queue for many customers and many baristas, backed by a ring of cells allocated up front.
+ * <p>
+ * Every cell carries a sequence number telling which lap of the ring it is ready for: a customer claims the
+ * next position to put at with a compare-and-set, writes the order, then bumps the cell's sequence so a
+ * barista can take it, and taking works the same way in reverse. Nobody blocks anybody else; a thread only
+ * retries when another one claimed the same position first.
+ * <p>
+ * The scheme needs at least two cells, or a customer one lap ahead could not tell a taken cell from a full
+ * one. A queue for a single order therefore gets a ring of two cells, and a customer also checks that the
+ * one order it may hold has been taken.
+ * <p>
+ * A thread that finds the queue full or empty spins briefly, then parks. Each order added or taken wakes at
+ * most one parked thread on the other side, instead of every thread rechecking the queue.
+ *
+ * @param <E> the type of order
+ */
+class LockFreeOrderQueue<E> implements OrderQueue<E> {
+    // Spinning only helps when another core can make progress meanwhile
+    private static final int SPIN_LIMIT = Runtime.getRuntime().availableProcessors() > 1 ? 128 : 0;
+
+    private final AtomicReferenceArray<E> orders;
+    private final AtomicLongArray sequences; // Per cell: the position to put at next, or that position + 1 to take
+    private final int cells; // Length of the ring
+    private final int capacity; // Most orders held at once; below the ring length only for a capacity of 1
+    private final AtomicLong tail = new AtomicLong(); // Next position to put at
+    private final AtomicLong head = new AtomicLong(); // Next position to take from
+    private final Waiters waitingCustomers = new Waiters();
+    private final Waiters waitingBaristas = new Waiters();
+    private volatile boolean closed = false;
+
+    public LockFreeOrderQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.cells = Math.max(2, capacity);
+        this.orders = new AtomicReferenceArray<>(cells);
+        this.sequences = new AtomicLongArray(cells);
+        for (int i = 0; i < cells; i++) {
+            sequences.set(i, i);
+        }
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offer(E order) {
+        Objects.requireNonNull(order);
+        long position = tail.get();
+        while (true) {
+            int cell = (int) (position % cells);
+            long lap = sequences.get(cell) - position;
+            if (lap == 0) {
+                if (capacity < cells && position - head.get() >= capacity) {
+                    return false; // The ring has a spare cell, but the order before is still waiting
+                }
+                if (tail.compareAndSet(position, position + 1)) {
+                    orders.setPlain(cell, order);
+                    sequences.set(cell, position + 1); // Publishes the order to baristas
+                    waitingBaristas.signalOne();
+                    return true;
+                }
+                position = tail.get();
+            } else if (lap < 0) {
+                return false; // The cell still holds the order put a lap ago
+            } else {
+                position = tail.get(); // Another customer took this position
+            }
+        }
+    }
+
+    @Override
+    public void put(E order) throws InterruptedException {
+        if (!offer(order)) {
+            await(waitingCustomers, () -> offer(order) ? order : null, false);
+        }
+    }
+
+    @Override
+    public E poll() {
+        long position = head.get();
+        while (true) {
+            int cell = (int) (position % cells);
+            long lap = sequences.get(cell) - (position + 1);
+            if (lap == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E order = orders.getPlain(cell);
+                    orders.setPlain(cell, null);
+                    sequences.set(cell, position + cells); // Hands the cell to the customer one lap ahead
+                    waitingCustomers.signalOne();
+                    return order;
+                }
+                position = head.get();
+            } else if (lap < 0) {
+                return null; // Nothing put here yet
+            } else {
+                position = head.get(); // Another barista took this position
+            }
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E order = poll();
+        if (order != null) {
+            return order;
+        }
+        if (closed) {
+            return poll(); // Orders put before closing are visible now
+        }
+        return await(waitingBaristas, this::poll, true);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> sink, int maxOrders) {
+        long position = head.get();
+        while (true) {
+            // Count the ready cells from the head on, then claim them all with one compare-and-set
+            int ready = 0;
+            while (ready < maxOrders && ready < cells
+                    && sequences.get((int) ((position + ready) % cells)) == position + ready + 1) {
+                ready++;
+            }
+            if (ready == 0) {
+                long current = head.get();
+                if (current == position) {
+                    return 0;
+                }
+                position = current; // Another barista moved the head, look again from there
+            } else if (head.compareAndSet(position, position + ready)) {
+                for (int i = 0; i < ready; i++) {
+                    int cell = (int) ((position + i) % cells);
+                    sink.add(orders.getPlain(cell));
+                    orders.setPlain(cell, null);
+                    sequences.set(cell, position + i + cells);
+                    waitingCustomers.signalOne();
+                }
+                return ready;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    @Override
+    public int take(Collection<? super E> sink, int maxOrders) throws InterruptedException {
+        if (maxOrders <= 0) {
+            return 0;
+        }
+        int taken = drainTo(sink, maxOrders);
+        if (taken > 0) {
+            return taken;
+        }
+        E first = take();
+        if (first == null) {
+            return 0;
+        }
+        sink.add(first);
+        return 1 + drainTo(sink, maxOrders - 1);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        waitingBaristas.signalAll();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Retry an operation until it succeeds, spinning briefly and then parking until a thread on the other side
+     * makes progress.
+     *
+     * @param waiters     where to park
+     * @param attempt     the operation, returning null if it has to be retried
+     * @param untilClosed whether to give up once the queue is closed and the operation still fails
+     * @return the result of the operation, or null if the queue was closed
+     */
+    private E await(Waiters waiters, Supplier<E> attempt, boolean untilClosed) throws InterruptedException {
+        for (int spins = 0; spins < SPIN_LIMIT; spins++) {
+            Thread.onSpinWait();
+            E result = attempt.get();
+            if (result != null || (untilClosed && closed)) {
+                return result != null ? result : attempt.get();
+            }
+        }
+        Node node = null;
+        while (true) {
+            if (node == null) {
+                node = waiters.register(Thread.currentThread());
+            }
+            // Check again after registering, so an order that raced with it is not missed
+            E result = attempt.get();
+            if (result != null || (untilClosed && closed)) {
+                waiters.leave(node);
+                return result != null ? result : attempt.get();
+            }
+            if (Thread.interrupted()) {
+                waiters.leave(node);
+                throw new InterruptedException();
+            }
+            LockSupport.park(this);
+            if (node.thread.get() == null) {
+                node = null; // Woken by a signal, register again before the next check
+            }
+        }
+    }
+
+    /**
+     * A parked thread, or null once it has been signalled or has left.
+     */
+    private static final class Node {
+        private final AtomicReference<Thread> thread;
+        private Node next;
+
+        Node(Thread thread) {
+            this.thread = new AtomicReference<>(thread);
+        }
+    }
+
+    /**
+     * A lock-free stack of the threads parked on one side of the queue.
+     */
+    private static final class Waiters {
+        private final AtomicReference<Node> top = new AtomicReference<>();
+
+        Node register(Thread thread) {
+            Node node = new Node(thread);
+            Node first;
+            do {
+                first = top.get();
+                node.next = first;
+            } while (!top.compareAndSet(first, node));
+            return node;
+        }
+
+        /**
+         * Stop waiting. If a signal arrived in the meantime it was meant for a thread that is still parked,
+         * so it is passed on.
+         */
+        void leave(Node node) {
+            Thread thread = node.thread.get();
+            if (thread == null || !node.thread.compareAndSet(thread, null)) {
+                signalOne();
+            }
+        }
+
+        /**
+         * Wake the most recently parked thread, skipping threads that have already left.
+         */
+        void signalOne() {
+            Node node;
+            while ((node = top.get()) != null) {
+                if (top.compareAndSet(node, node.next)) {
+                    Thread thread = node.thread.getAndSet(null);
+                    if (thread != null) {
+                        LockSupport.unpark(thread);
+                        return;
+                    }
+                }
+            }
+        }
+
+        void signalAll() {
+            for (Node node = top.getAndSet(null); node != null; node = node.next) {
+                Thread thread = node.thread.getAndSet(null);
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An order queue guarded by one lock with separate conditions for "not full" and "not empty", so adding an
+ * order wakes one waiting barista and taking one wakes one waiting customer. Kept as a baseline to compare
+ * the lock-free queue against.
+ *
+ * @param <E> the type of order
+ */
+class LockingOrderQueue<E> implements OrderQueue<E> {
+    private final ArrayDeque<E> orders;
+    private final int capacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition(); // Baristas wait here
+    private final Condition notFull = lock.newCondition(); // Customers wait here
+    private boolean closed = false; // Guarded by lock
+
+    public LockingOrderQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.orders = new ArrayDeque<>(capacity);
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offer(E order) {
+        Objects.requireNonNull(order);
+        lock.lock();
+        try {
+            if (orders.size() == capacity) {
+                return false;
+            }
+            orders.add(order);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E order) throws InterruptedException {
+        Objects.requireNonNull(order);
+        lock.lockInterruptibly();
+        try {
+            while (orders.size() == capacity) {
+                notFull.await();
+            }
+            orders.add(order);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            E order = orders.poll();
+            if (order != null) {
+                notFull.signal();
+            }
+            return order;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (orders.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            E order = orders.poll(); // Null once closed and drained
+            if (order != null) {
+                notFull.signal();
+            }
+            return order;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> sink, int maxOrders) {
+        lock.lock();
+        try {
+            return drainLocked(sink, maxOrders);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int take(Collection<? super E> sink, int maxOrders) throws InterruptedException {
+        if (maxOrders <= 0) {
+            return 0;
+        }
+        lock.lockInterruptibly();
+        try {
+            while (orders.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return drainLocked(sink, maxOrders); // 0 once closed and drained
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must hold the lock
+    private int drainLocked(Collection<? super E> sink, int maxOrders) {
+        int taken = 0;
+        while (taken < maxOrders && !orders.isEmpty()) {
+            sink.add(orders.poll());
+            notFull.signal(); // One customer per freed place
+            taken++;
+        }
+        return taken;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll(); // Every waiting barista has to see the queue is closed
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
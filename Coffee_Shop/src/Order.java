@@ -0,0 +1,54 @@
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A drink ordered by a customer, to be served before a deadline.
+ */
+class Order {
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 5000; // How long a customer without a rush will wait
+
+    // Earliest deadline first, then in the order they were placed
+    static final Comparator<Order> BY_DEADLINE = Comparator.comparingLong((Order order) -> order.deadlineNanos)
+            .thenComparingLong(order -> order.sequence);
+
+    private static final AtomicLong nextSequence = new AtomicLong();
+
+    private final String drink;
+    private final String customerName;
+    private final long deadlineNanos; // On the System.nanoTime() clock
+    private final long sequence;
+
+    public Order(String drink, String customerName) {
+        this(drink, customerName, DEFAULT_MAX_WAIT_MILLIS);
+    }
+
+    public Order(String drink, String customerName, long maxWaitMillis) {
+        this.drink = drink;
+        this.customerName = customerName;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.sequence = nextSequence.getAndIncrement();
+    }
+
+    public String getDrink() {
+        return drink;
+    }
+
+    public String getCustomerName() {
+        return customerName;
+    }
+
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    // How far past its deadline the order is, 0 if it is still on time
+    public long getLatenessMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - deadlineNanos));
+    }
+
+    @Override
+    public String toString() {
+        return drink + " for " + customerName;
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.Collection;
+
+/**
+ * A bounded queue of orders between the customers who place them and the baristas who prepare them. Orders
+ * are taken oldest first unless the queue says otherwise.
+ * <p>
+ * Once the queue is closed, customers may still add orders and baristas keep taking them until the queue
+ * is empty; only then does {@link #take()} return null.
+ *
+ * @param <E> the type of order
+ */
+interface OrderQueue<E> {
+
+    /**
+     * Add an order if there is room, without waiting.
+     *
+     * @param order the order
+     * @return true if the order was added, false if the queue is full
+     */
+    boolean offer(E order);
+
+    /**
+     * Add an order, waiting for room if the queue is full.
+     *
+     * @param order the order
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    void put(E order) throws InterruptedException;
+
+    /**
+     * Take the next order if there is one, without waiting.
+     *
+     * @return the order, or null if the queue is empty
+     */
+    E poll();
+
+    /**
+     * Take the next order, waiting for one if the queue is empty and still open.
+     *
+     * @return the order, or null once the queue is closed and empty
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    E take() throws InterruptedException;
+
+    /**
+     * Take up to a number of the next orders at once, without waiting.
+     *
+     * @param sink      receives the orders, in the order they would have been taken one by one
+     * @param maxOrders the most orders to take
+     * @return the number of orders taken, 0 if the queue is empty
+     */
+    int drainTo(Collection<? super E> sink, int maxOrders);
+
+    /**
+     * Take up to a number of the next orders at once, waiting for the first one if the queue is empty and
+     * still open.
+     *
+     * @param sink      receives the orders, in the order they would have been taken one by one
+     * @param maxOrders the most orders to take
+     * @return the number of orders taken, 0 once the queue is closed and empty
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    int take(Collection<? super E> sink, int maxOrders) throws InterruptedException;
+
+    /**
+     * Close the queue, waking every thread waiting in {@link #take()} so it can drain the remaining orders.
+     */
+    void close();
+
+    /**
+     * Check whether the queue has been closed.
+     *
+     * @return true if the queue is closed
+     */
+    boolean isClosed();
+}
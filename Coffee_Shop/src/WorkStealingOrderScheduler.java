@@ -0,0 +1,255 @@
+import java.util.Collection;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An order queue that gives every barista a run queue of their own instead of one queue shared by all.
+ * <p>
+ * A new order goes to the shorter of two randomly picked run queues, so customers and baristas spread over
+ * many locks. Each run queue keeps its orders by deadline. A barista takes the head of its own run queue
+ * unless another run queue's head is due earlier, in which case it steals that one, so the most urgent order
+ * in the shop is served first and urgent orders do not wait behind a busy barista. Reading the heads takes
+ * no lock; only the run queue an order is taken from is locked. The shared lock is only taken to sleep when
+ * there is nothing to do, or to wake a sleeping thread.
+ * <p>
+ * The total number of orders is bounded by the capacity, as with the other queues, and closing lets the
+ * baristas drain every run queue before they stop.
+ */
+class WorkStealingOrderScheduler implements OrderQueue<Order> {
+    private final RunQueue[] runQueues;
+    private final int capacity;
+    private final AtomicInteger size = new AtomicInteger(); // Orders placed and not taken yet, across run queues
+    private final AtomicInteger nextHome = new AtomicInteger(); // Next run queue to hand to a new barista
+    private final ThreadLocal<Integer> home = ThreadLocal.withInitial(this::assignHome);
+    private final ReentrantLock sleepLock = new ReentrantLock();
+    private final Condition workAvailable = sleepLock.newCondition(); // Idle baristas wait here
+    private final Condition spaceAvailable = sleepLock.newCondition(); // Customers wait here when full
+    private final AtomicInteger idleBaristas = new AtomicInteger();
+    private final AtomicInteger waitingCustomers = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    public WorkStealingOrderScheduler(int capacity, int baristaCount) {
+        if (capacity <= 0 || baristaCount <= 0) {
+            throw new IllegalArgumentException("Capacity and barista count must be positive");
+        }
+        this.runQueues = new RunQueue[baristaCount];
+        for (int i = 0; i < baristaCount; i++) {
+            runQueues[i] = new RunQueue();
+        }
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offer(Order order) {
+        Objects.requireNonNull(order);
+        int current;
+        do {
+            current = size.get();
+            if (current >= capacity) {
+                return false;
+            }
+        } while (!size.compareAndSet(current, current + 1));
+        pickRunQueue().add(order);
+        if (idleBaristas.get() > 0) {
+            signal(workAvailable);
+        }
+        return true;
+    }
+
+    @Override
+    public void put(Order order) throws InterruptedException {
+        if (offer(order)) {
+            return;
+        }
+        sleepLock.lockInterruptibly();
+        waitingCustomers.incrementAndGet(); // Before checking again, so a barista freeing a place will signal
+        try {
+            while (!offer(order)) {
+                spaceAvailable.await();
+            }
+        } finally {
+            waitingCustomers.decrementAndGet();
+            sleepLock.unlock();
+        }
+    }
+
+    /**
+     * Take the most urgent order in the shop, preferring the calling barista's run queue on a tie.
+     */
+    @Override
+    public Order poll() {
+        Order order = pollEarliest(home.get());
+        if (order == null) {
+            return null;
+        }
+        if (size.decrementAndGet() == 0 && closed) {
+            signalAll(workAvailable); // Baristas waiting for the last orders can stop now
+        }
+        if (waitingCustomers.get() > 0) {
+            signal(spaceAvailable);
+        }
+        return order;
+    }
+
+    @Override
+    public Order take() throws InterruptedException {
+        Order order = poll();
+        if (order != null) {
+            return order;
+        }
+        sleepLock.lockInterruptibly();
+        idleBaristas.incrementAndGet(); // Before checking again, so a customer placing an order will signal
+        try {
+            while ((order = poll()) == null) {
+                if (closed && size.get() == 0) {
+                    return null; // Every run queue is drained
+                }
+                workAvailable.await();
+            }
+            return order;
+        } finally {
+            idleBaristas.decrementAndGet();
+            sleepLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Order> sink, int maxOrders) {
+        int taken = 0;
+        Order order;
+        while (taken < maxOrders && (order = poll()) != null) {
+            sink.add(order);
+            taken++;
+        }
+        return taken;
+    }
+
+    @Override
+    public int take(Collection<? super Order> sink, int maxOrders) throws InterruptedException {
+        if (maxOrders <= 0) {
+            return 0;
+        }
+        Order first = take();
+        if (first == null) {
+            return 0;
+        }
+        sink.add(first);
+        return 1 + drainTo(sink, maxOrders - 1);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        signalAll(workAvailable); // Every idle barista has to see the shop is closed
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Take the order with the earliest deadline among the heads of all run queues, starting from the
+     * barista's own so it wins a tie.
+     */
+    private Order pollEarliest(int own) {
+        while (true) {
+            int victim = -1;
+            long earliest = Long.MAX_VALUE;
+            for (int n = 0; n < runQueues.length; n++) {
+                int i = (own + n) % runQueues.length;
+                long deadline = runQueues[i].headDeadline;
+                if (runQueues[i].count > 0 && (victim < 0 || deadline < earliest)) {
+                    victim = i;
+                    earliest = deadline;
+                }
+            }
+            if (victim < 0) {
+                return null;
+            }
+            Order order = runQueues[victim].poll();
+            if (order != null) {
+                return order;
+            }
+            // The run queue's owner or another thief got there first, look again
+        }
+    }
+
+    /**
+     * Pick the shorter of two random run queues for a new order.
+     */
+    private RunQueue pickRunQueue() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        RunQueue first = runQueues[random.nextInt(runQueues.length)];
+        RunQueue second = runQueues[random.nextInt(runQueues.length)];
+        return second.count < first.count ? second : first;
+    }
+
+    private int assignHome() {
+        return nextHome.getAndIncrement() % runQueues.length; // Baristas share run queues if there are more of them
+    }
+
+    private void signal(Condition condition) {
+        sleepLock.lock();
+        try {
+            condition.signal();
+        } finally {
+            sleepLock.unlock();
+        }
+    }
+
+    private void signalAll(Condition condition) {
+        sleepLock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            sleepLock.unlock();
+        }
+    }
+
+    /**
+     * One barista's orders, most urgent first, with its own lock. The count and head deadline are published
+     * so other threads can pick a run queue without locking it.
+     */
+    private static final class RunQueue {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final PriorityQueue<Order> orders = new PriorityQueue<>(Order.BY_DEADLINE); // Guarded by lock
+        private volatile int count = 0;
+        private volatile long headDeadline = Long.MAX_VALUE;
+
+        void add(Order order) {
+            lock.lock();
+            try {
+                orders.add(order);
+                publish();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Order poll() {
+            if (count == 0) {
+                return null;
+            }
+            lock.lock();
+            try {
+                Order order = orders.poll();
+                publish();
+                return order;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Must hold the lock
+        private void publish() {
+            Order head = orders.peek();
+            headDeadline = head == null ? Long.MAX_VALUE : head.getDeadlineNanos();
+            count = orders.size();
+        }
+    }
+}
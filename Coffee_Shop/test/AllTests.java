@@ -0,0 +1,14 @@
+/**
+ * Runs every test of the coffee shop queues. Each test is a plain program that throws an
+ * {@link AssertionError} on the first failed check, so this runner stops at the first failing test.
+ * <pre>
+ *   javac -d out src/*.java test/*.java &amp;&amp; java -cp out AllTests
+ * </pre>
+ */
+public class AllTests {
+
+    public static void main(String[] args) throws Exception {
+        LockFreeOrderQueueTest.main(args);
+        WorkStealingOrderSchedulerTest.main(args);
+    }
+}
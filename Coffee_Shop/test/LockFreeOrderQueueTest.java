@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks {@link LockFreeOrderQueue} at small and odd capacities, including a capacity of one, which needs a
+ * ring of two cells: the queue must take exactly its capacity, hand items back in order, and lose or repeat
+ * nothing with several producers and consumers until it is closed.
+ */
+public class LockFreeOrderQueueTest {
+
+    private static final int[] CAPACITIES = {1, 2, 3, 5, 7};
+
+    public static void main(String[] args) throws Exception {
+        for (int capacity : CAPACITIES) {
+            holdsExactlyItsCapacity(capacity);
+            producersAndConsumersAgree(capacity);
+        }
+        System.out.println("LockFreeOrderQueueTest passed");
+    }
+
+    private static void holdsExactlyItsCapacity(int capacity) {
+        LockFreeOrderQueue<Integer> queue = new LockFreeOrderQueue<>(capacity);
+        for (int round = 0; round < 3; round++) { // Go round the ring more than once
+            for (int i = 0; i < capacity; i++) {
+                check(queue.offer(i), "Capacity " + capacity + " refused item " + i);
+            }
+            check(!queue.offer(-1), "Capacity " + capacity + " took one item too many");
+            for (int i = 0; i < capacity; i++) {
+                Integer item = queue.poll();
+                check(item != null && item == i, "Capacity " + capacity + " gave " + item + ", expected " + i);
+            }
+            check(queue.poll() == null, "Capacity " + capacity + " is not empty");
+        }
+        List<Integer> drained = new ArrayList<>();
+        for (int i = 0; i < capacity; i++) {
+            queue.offer(i);
+        }
+        check(queue.drainTo(drained, 100) == capacity, "Capacity " + capacity + " drained " + drained.size());
+    }
+
+    private static void producersAndConsumersAgree(int capacity) throws InterruptedException {
+        LockFreeOrderQueue<Integer> queue = new LockFreeOrderQueue<>(capacity);
+        int producers = 3;
+        int consumers = 3;
+        int itemsPerProducer = 20_000;
+        AtomicLong sum = new AtomicLong();
+        AtomicInteger count = new AtomicInteger();
+        List<Thread> producerThreads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int i = 1; i <= itemsPerProducer; i++) {
+                        queue.put(i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producer.setDaemon(true); // A hung thread must not keep a failed run alive
+            producer.start();
+            producerThreads.add(producer);
+        }
+        List<Thread> consumerThreads = new ArrayList<>();
+        for (int c = 0; c < consumers; c++) {
+            boolean batched = c == 0; // One consumer takes batches, the others single items
+            Thread consumer = new Thread(() -> {
+                List<Integer> batch = new ArrayList<>();
+                try {
+                    while (true) {
+                        batch.clear();
+                        if (batched) {
+                            queue.take(batch, 3);
+                        } else {
+                            Integer item = queue.take();
+                            if (item != null) {
+                                batch.add(item);
+                            }
+                        }
+                        if (batch.isEmpty()) {
+                            return; // Closed and drained
+                        }
+                        for (int item : batch) {
+                            sum.addAndGet(item);
+                            count.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            consumer.setDaemon(true);
+            consumer.start();
+            consumerThreads.add(consumer);
+        }
+        for (Thread producer : producerThreads) {
+            producer.join();
+        }
+        queue.close();
+        for (Thread consumer : consumerThreads) {
+            consumer.join(10_000);
+            check(!consumer.isAlive(), "Capacity " + capacity + ": a consumer hung after close");
+        }
+        long expectedSum = (long) producers * itemsPerProducer * (itemsPerProducer + 1) / 2;
+        check(count.get() == producers * itemsPerProducer && sum.get() == expectedSum, "Capacity " + capacity
+                + ": consumed " + count + " items summing to " + sum + ", expected " + producers * itemsPerProducer
+                + " summing to " + expectedSum);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that closing a {@link WorkStealingOrderScheduler} lets every barista finish the remaining orders and
+ * stop, and that orders are taken earliest deadline first across all run queues, not just within one.
+ */
+public class WorkStealingOrderSchedulerTest {
+
+    public static void main(String[] args) throws Exception {
+        closeStopsEveryBarista();
+        earliestDeadlineFirstAcrossRunQueues();
+        System.out.println("WorkStealingOrderSchedulerTest passed");
+    }
+
+    /**
+     * Baristas go idle while the last orders are taken by others, and must still be woken to stop.
+     */
+    private static void closeStopsEveryBarista() throws InterruptedException {
+        int baristas = 6;
+        int orders = 40;
+        for (int round = 0; round < 500; round++) {
+            WorkStealingOrderScheduler scheduler = new WorkStealingOrderScheduler(64, baristas);
+            AtomicInteger taken = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+            for (int b = 0; b < baristas; b++) {
+                Thread barista = new Thread(() -> {
+                    try {
+                        while (scheduler.take() != null) {
+                            taken.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                barista.setDaemon(true); // So a barista stuck in take() cannot keep the JVM running
+                barista.start();
+                threads.add(barista);
+            }
+            for (int i = 0; i < orders; i++) {
+                scheduler.put(new Order("Latte", "Customer " + i, i % 7));
+            }
+            scheduler.close();
+            for (Thread barista : threads) {
+                barista.join(5000);
+                check(!barista.isAlive(), "A barista hung after close in round " + round);
+            }
+            check(taken.get() == orders, "Round " + round + " took " + taken + " of " + orders + " orders");
+        }
+    }
+
+    private static void earliestDeadlineFirstAcrossRunQueues() {
+        WorkStealingOrderScheduler scheduler = new WorkStealingOrderScheduler(100, 4);
+        for (int i = 0; i < 50; i++) {
+            check(scheduler.offer(new Order("Latte", "Customer " + i, 1000 - i * 10)), "Order " + i + " refused");
+        }
+        long lastDeadline = Long.MIN_VALUE;
+        int taken = 0;
+        for (Order order = scheduler.poll(); order != null; order = scheduler.poll()) {
+            check(order.getDeadlineNanos() >= lastDeadline, "Order " + taken + " was due before the one taken"
+                    + " ahead of it");
+            lastDeadline = order.getDeadlineNanos();
+            taken++;
+        }
+        check(taken == 50, "Took " + taken + " of 50 orders");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
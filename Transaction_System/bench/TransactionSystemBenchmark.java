@@ -0,0 +1,434 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micro-benchmarks for the transaction system under different contention profiles.
+ * <p>
+ * Every benchmark is run at each thread count: a few warm-up iterations are discarded, then the measured
+ * iterations report throughput and the bytes allocated per operation (read from the per-thread allocation
+ * counters, the same source as a GC allocation profiler). Options are passed as {@code key=value} arguments:
+ * <pre>
+ *   threads=1,2,4        thread counts to run (default: powers of two up to the number of cores)
+ *   warmup=N             warm-up iterations (default 2)
+ *   iterations=N         measured iterations (default 3)
+ *   time=MS              length of each iteration in milliseconds (default 1000)
+ *   filter=TEXT          only run benchmarks whose name contains TEXT
+ * </pre>
+ * This runner is meant for quick comparisons while working on the code: every benchmark shares one JVM, so
+ * the JIT profile of one engine carries over to the next. For numbers to publish, run the same scenarios
+ * through the JMH module in {@code jmh/}, which forks a fresh JVM per benchmark.
+ */
+public class TransactionSystemBenchmark {
+
+    private static final int NUM_ACCOUNTS = 1000;
+    private static final int HISTORY_SIZE = 1000;
+    private static final int DEDUP_ENTRIES = 1 << 16;
+    private static final int RETRY_WINDOW = 64; // Most recent request IDs that retries pick from
+    // Transfer events are published as usual but discarded, keeping console I/O out of the measurement
+    private static final EventLog EVENTS = new EventLog(EventSink.DISCARD, 1 << 16, EventLevel.INFO);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static volatile boolean running;
+    private static volatile double sink; // Where iterations leave their results, so the work cannot be dropped
+    private static String lastNote; // Reported by the workload of the last iteration
+
+    /**
+     * The body of a benchmark; one instance is shared by all threads of an iteration.
+     * The returned value is consumed so the JIT cannot drop the work as dead code.
+     */
+    private interface Workload extends ToDoubleFunction<ThreadLocalRandom>, Closeable {
+        double run(ThreadLocalRandom random);
+
+        @Override
+        default double applyAsDouble(ThreadLocalRandom random) {
+            return run(random);
+        }
+
+        @Override
+        default void close() throws IOException {
+        }
+
+        /**
+         * Describe the state the workload ended in, printed under its results.
+         */
+        default String note() {
+            return null;
+        }
+    }
+
+    /**
+     * A named benchmark with a fresh workload created for every iteration.
+     */
+    private static final class Scenario {
+        private final String name;
+        private final Supplier<Workload> setup;
+
+        Scenario(String name, Supplier<Workload> setup) {
+            this.name = name;
+            this.setup = setup;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int[] threadCounts = parseThreadCounts(options.get("threads"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", "3"));
+        long timeMillis = Long.parseLong(options.getOrDefault("time", "1000"));
+        String filter = options.getOrDefault("filter", "");
+
+        System.out.printf("%-36s %7s %14s %12s %12s%n", "Benchmark", "Threads", "ops/s", "B/op", "alloc MB/s");
+        for (Scenario scenario : scenarios()) {
+            if (!scenario.name.contains(filter)) {
+                continue;
+            }
+            for (int threads : threadCounts) {
+                for (int i = 0; i < warmup; i++) {
+                    runIteration(scenario, threads, timeMillis);
+                }
+                double[] result = new double[3];
+                for (int i = 0; i < iterations; i++) {
+                    double[] iteration = runIteration(scenario, threads, timeMillis);
+                    for (int k = 0; k < result.length; k++) {
+                        result[k] += iteration[k] / iterations;
+                    }
+                }
+                System.out.printf("%-36s %7d %14.0f %12.1f %12.1f%n", scenario.name, threads,
+                        result[0], result[1], result[2]);
+                if (lastNote != null) {
+                    System.out.println("    " + lastNote);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set up a fresh workload of one benchmark, for harnesses outside the default package such as the JMH
+     * module. They cannot name the types here, so the workload is handed out as a function from the calling
+     * thread's random source to a result that has to be consumed.
+     *
+     * @param name the benchmark name, as printed by this runner
+     * @return the workload, which is also {@link Closeable} and has to be closed after the run
+     * @throws IllegalArgumentException if there is no benchmark with that name
+     */
+    public static ToDoubleFunction<ThreadLocalRandom> setUp(String name) {
+        for (Scenario scenario : scenarios()) {
+            if (scenario.name.equals(name)) {
+                return scenario.setup.get();
+            }
+        }
+        throw new IllegalArgumentException("No benchmark named " + name);
+    }
+
+    /**
+     * All benchmarks, grouped by the code they exercise.
+     */
+    private static List<Scenario> scenarios() {
+        List<Scenario> scenarios = new ArrayList<>();
+        for (AccountEngine engine : AccountEngine.values()) {
+            String suffix = "." + engine.name().toLowerCase();
+            for (AccessPattern pattern : AccessPattern.values()) {
+                scenarios.add(new Scenario("transfer." + pattern.name().toLowerCase() + suffix,
+                        () -> transferWorkload(engine, pattern, TransferMode.PESSIMISTIC)));
+            }
+            scenarios.add(new Scenario("account.deposit" + suffix, () -> {
+                BankAccount account = engine.adopt(new BankAccount(1, 0));
+                return random -> {
+                    try {
+                        account.deposit(1);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return 0;
+                };
+            }));
+            scenarios.add(new Scenario("account.withdraw" + suffix, () -> {
+                BankAccount account = engine.adopt(new BankAccount(1, 1_000_000_000));
+                return random -> {
+                    try {
+                        account.withdraw(1);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return 0;
+                };
+            }));
+            scenarios.add(new Scenario("account.getBalance" + suffix, () -> {
+                BankAccount account = engine.adopt(new BankAccount(1, 1000));
+                return random -> account.getBalance();
+            }));
+        }
+        for (AccessPattern pattern : AccessPattern.values()) {
+            scenarios.add(new Scenario("transfer." + pattern.name().toLowerCase() + ".optimistic",
+                    () -> transferWorkload(AccountEngine.LOCKING, pattern, TransferMode.OPTIMISTIC)));
+        }
+        scenarios.add(new Scenario("account.deposit.striped", () -> {
+            BankAccount account = new StripedBankAccount(1, 0);
+            return random -> {
+                try {
+                    account.deposit(1);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return 0;
+            };
+        }));
+        scenarios.add(new Scenario("account.withdraw.striped", () -> {
+            BankAccount account = new StripedBankAccount(1, 1_000_000_000);
+            return random -> {
+                try {
+                    account.withdraw(1);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return 0;
+            };
+        }));
+        for (TransactionJournal.SyncPolicy policy : TransactionJournal.SyncPolicy.values()) {
+            scenarios.add(new Scenario("transfer.uniform.journal." + policy.name().toLowerCase(),
+                    () -> journaledTransferWorkload(policy)));
+        }
+        scenarios.add(new Scenario("transfer.retry_storm", TransactionSystemBenchmark::retryStormWorkload));
+        scenarios.add(new Scenario("dedup.hit", () -> {
+            TransferDedupCache cache = new TransferDedupCache(DEDUP_ENTRIES, 10, TimeUnit.MINUTES);
+            int cached = DEDUP_ENTRIES / 2; // Leaves room in every segment, so nothing is evicted
+            for (long id = 0; id < cached; id++) {
+                cache.claim(id, (int) id);
+                cache.complete(id, TransferResult.SUCCESS, false);
+            }
+            return new Workload() {
+                @Override
+                public double run(ThreadLocalRandom random) {
+                    int id = random.nextInt(cached);
+                    return cache.claim(id, id).ordinal();
+                }
+
+                @Override
+                public String note() {
+                    return describe(cache);
+                }
+            };
+        }));
+        scenarios.add(new Scenario("history.getTransactionHistory", () -> {
+            BankAccount account = new BankAccount(1, 0);
+            for (int i = 0; i < HISTORY_SIZE; i++) {
+                account.addTransaction(new Transaction(1, 2, i, false));
+            }
+            return random -> account.getTransactionHistory().size();
+        }));
+        scenarios.add(new Scenario("history.cursor", () -> {
+            BankAccount account = new BankAccount(1, 0);
+            for (int i = 0; i < HISTORY_SIZE; i++) {
+                account.addTransaction(new Transaction(1, 2, i, false));
+            }
+            return random -> {
+                HistoryCursor cursor = account.history();
+                double total = 0;
+                while (cursor.next()) {
+                    total += cursor.getAmount();
+                }
+                return total;
+            };
+        }));
+        return scenarios;
+    }
+
+    private static Workload transferWorkload(AccountEngine engine, AccessPattern pattern, TransferMode mode) {
+        List<BankAccount> accounts = new ArrayList<>(NUM_ACCOUNTS);
+        for (int i = 1; i <= NUM_ACCOUNTS; i++) {
+            accounts.add(new BankAccount(i, 1_000_000));
+        }
+        TransactionSystem transactionSystem = new TransactionSystem(accounts, engine);
+        transactionSystem.setEventLog(EVENTS);
+        transactionSystem.setTransferMode(mode);
+        AccessPattern.Picker picker = pattern.newPicker(NUM_ACCOUNTS, pattern == AccessPattern.HOT_PAIR ? 0.9 : 1.0);
+        return random -> {
+            long picked = picker.nextTransfer(random);
+            return transactionSystem.transfer(AccessPattern.Picker.sourceOf(picked),
+                    AccessPattern.Picker.destinationOf(picked), 1 + random.nextInt(100)) ? 1 : 0;
+        };
+    }
+
+    /**
+     * Transfers sent with request IDs, four in five of them retries of one of the last few requests. A request
+     * ID always stands for the same transfer, so retries are answered from the dedup cache.
+     */
+    private static Workload retryStormWorkload() {
+        List<BankAccount> accounts = new ArrayList<>(NUM_ACCOUNTS);
+        for (int i = 1; i <= NUM_ACCOUNTS; i++) {
+            accounts.add(new BankAccount(i, 1_000_000));
+        }
+        TransactionSystem transactionSystem = new TransactionSystem(accounts, AccountEngine.LOCKING);
+        transactionSystem.setEventLog(EVENTS);
+        transactionSystem.setDedupCache(new TransferDedupCache(DEDUP_ENTRIES, 10, TimeUnit.MINUTES));
+        AtomicLong nextRequestId = new AtomicLong(RETRY_WINDOW);
+        return new Workload() {
+            @Override
+            public double run(ThreadLocalRandom random) {
+                long requestId = random.nextInt(5) == 0
+                        ? nextRequestId.incrementAndGet()
+                        : nextRequestId.get() - random.nextInt(RETRY_WINDOW);
+                int from = 1 + (int) (requestId * 7919 % NUM_ACCOUNTS);
+                int to = 1 + (int) ((requestId * 104_729 + 1) % NUM_ACCOUNTS);
+                if (to == from) {
+                    to = from % NUM_ACCOUNTS + 1;
+                }
+                return transactionSystem.transfer(requestId, from, to, 1 + requestId % 100) ? 1 : 0;
+            }
+
+            @Override
+            public String note() {
+                return describe(transactionSystem.getDedupCache());
+            }
+        };
+    }
+
+    private static String describe(TransferDedupCache cache) {
+        long lookups = cache.getHitCount() + cache.getMissCount();
+        return String.format("%s, %.0f%% hits, %.1f B/entry", cache,
+                lookups == 0 ? 0 : 100.0 * cache.getHitCount() / lookups,
+                (double) cache.getFootprintBytes() / cache.getCapacity());
+    }
+
+    /**
+     * Uniform transfers on the locking engine, recorded in a journal in a temporary file.
+     */
+    private static Workload journaledTransferWorkload(TransactionJournal.SyncPolicy policy) {
+        try {
+            Path file = Files.createTempFile("transaction-journal", ".log");
+            TransactionJournal journal = TransactionJournal.open(file, policy, 10);
+            List<BankAccount> accounts = new ArrayList<>(NUM_ACCOUNTS);
+            for (int i = 1; i <= NUM_ACCOUNTS; i++) {
+                accounts.add(new BankAccount(i, 1_000_000));
+            }
+            TransactionSystem transactionSystem = new TransactionSystem(accounts, AccountEngine.LOCKING, journal);
+            transactionSystem.setEventLog(EVENTS);
+            AccessPattern.Picker picker = AccessPattern.UNIFORM.newPicker(NUM_ACCOUNTS, 1.0);
+            return new Workload() {
+                @Override
+                public double run(ThreadLocalRandom random) {
+                    long picked = picker.nextTransfer(random);
+                    return transactionSystem.transfer(AccessPattern.Picker.sourceOf(picked),
+                            AccessPattern.Picker.destinationOf(picked), 1 + random.nextInt(100)) ? 1 : 0;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    journal.close();
+                    Files.delete(file);
+                }
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Run one iteration of a benchmark.
+     *
+     * @return operations per second, bytes allocated per operation and megabytes allocated per second
+     */
+    private static double[] runIteration(Scenario scenario, int threadCount, long timeMillis) throws Exception {
+        Workload workload = scenario.setup.get();
+        long[] ops = new long[threadCount];
+        long[] allocated = new long[threadCount];
+        double[] sinks = new double[threadCount];
+        CyclicBarrier barrier = new CyclicBarrier(threadCount + 1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            int index = t;
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    barrier.await();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+                long count = 0;
+                double total = 0;
+                while (running) {
+                    total += workload.run(random);
+                    count++;
+                }
+                allocated[index] = THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+                ops[index] = count;
+                sinks[index] = total;
+            }, "Bench " + (t + 1));
+            threads[t].start();
+        }
+
+        running = true;
+        barrier.await();
+        long start = System.nanoTime();
+        Thread.sleep(timeMillis);
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        workload.close();
+        for (double total : sinks) {
+            sink += total;
+        }
+        lastNote = workload.note();
+
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int t = 0; t < threadCount; t++) {
+            totalOps += ops[t];
+            totalBytes += allocated[t];
+        }
+        return new double[]{
+                totalOps / seconds,
+                totalOps == 0 ? 0 : (double) totalBytes / totalOps,
+                totalBytes / seconds / (1024 * 1024)
+        };
+    }
+
+    private static int[] parseThreadCounts(String value) {
+        if (value != null) {
+            String[] parts = value.split(",");
+            int[] counts = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                counts[i] = Integer.parseInt(parts[i].trim());
+            }
+            return counts;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int n = 1; n < cores; n *= 2) {
+            counts.add(n);
+        }
+        counts.add(cores);
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+}
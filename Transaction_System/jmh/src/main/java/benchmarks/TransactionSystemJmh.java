@@ -0,0 +1,104 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Runs the scenarios of {@code TransactionSystemBenchmark} under JMH.
+ * <p>
+ * Every scenario runs in JVMs forked for it alone, so the JIT profile of one account engine cannot leak into
+ * the next, and every result goes to a {@link Blackhole}. The scenarios share one workload between all threads
+ * of an iteration and get a fresh one for every iteration, as in the quick runner. Run {@link #main} to get the
+ * GC profiler's allocation rate and bytes per operation next to the throughput; any JMH option can be added,
+ * for example {@code -p scenario=dedup.hit} to run one scenario.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TransactionSystemJmh {
+
+    @Param({
+            "transfer.uniform.locking", "transfer.zipf.locking", "transfer.hot_pair.locking",
+            "account.deposit.locking", "account.withdraw.locking", "account.getBalance.locking",
+            "transfer.uniform.lock_free", "transfer.zipf.lock_free", "transfer.hot_pair.lock_free",
+            "account.deposit.lock_free", "account.withdraw.lock_free", "account.getBalance.lock_free",
+            "transfer.uniform.optimistic", "transfer.zipf.optimistic", "transfer.hot_pair.optimistic",
+            "account.deposit.striped", "account.withdraw.striped",
+            "transfer.uniform.journal.always", "transfer.uniform.journal.interval", "transfer.uniform.journal.never",
+            "transfer.retry_storm", "dedup.hit",
+            "history.getTransactionHistory", "history.cursor"
+    })
+    public String scenario;
+
+    private ToDoubleFunction<ThreadLocalRandom> workload;
+
+    @Setup(Level.Iteration)
+    @SuppressWarnings("unchecked")
+    public void setUp() throws ReflectiveOperationException {
+        // The project is in the default package, which a named package can only reach through reflection
+        Method setUp = Class.forName("TransactionSystemBenchmark").getMethod("setUp", String.class);
+        workload = (ToDoubleFunction<ThreadLocalRandom>) setUp.invoke(null, scenario);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        ((Closeable) workload).close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void oneThread(Blackhole blackhole) {
+        blackhole.consume(workload.applyAsDouble(ThreadLocalRandom.current()));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void allThreads(Blackhole blackhole) {
+        blackhole.consume(workload.applyAsDouble(ThreadLocalRandom.current()));
+    }
+
+    /**
+     * Run the benchmarks with the GC profiler, on top of any JMH command line options.
+     *
+     * @param args JMH command line options
+     * @throws CommandLineOptionException if the options cannot be parsed
+     * @throws RunnerException if a benchmark fails
+     */
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * How transfer workloads pick their source and destination accounts, for accounts numbered 1 to N.
+ */
+public enum AccessPattern {
+
+    /**
+     * Every account is equally likely.
+     */
+    UNIFORM,
+
+    /**
+     * Account k is picked with probability proportional to 1 / k^skew, so low IDs are hot.
+     */
+    ZIPF,
+
+    /**
+     * A fraction {@code skew} of transfers go between accounts 1 and 2, the rest are uniform.
+     */
+    HOT_PAIR;
+
+    /**
+     * Create a picker for this pattern.
+     *
+     * @param numAccounts the number of accounts, at least 2
+     * @param skew        the Zipf exponent, or the hot-pair fraction between 0 and 1
+     * @return a picker that can be shared between threads
+     */
+    public Picker newPicker(int numAccounts, double skew) {
+        if (numAccounts < 2) {
+            throw new IllegalArgumentException("At least 2 accounts are needed. Provided: " + numAccounts);
+        }
+        return new Picker(this, numAccounts, skew);
+    }
+
+    /**
+     * Picks account IDs following an access pattern.
+     */
+    public static final class Picker {
+        private final AccessPattern pattern;
+        private final int numAccounts;
+        private final double skew;
+        private final double[] zipfCdf; // Cumulative probabilities of accounts 1..N, only for ZIPF
+
+        private Picker(AccessPattern pattern, int numAccounts, double skew) {
+            this.pattern = pattern;
+            this.numAccounts = numAccounts;
+            this.skew = skew;
+            this.zipfCdf = pattern == ZIPF ? zipfCdf(numAccounts, skew) : null;
+        }
+
+        /**
+         * Pick the source and destination accounts of a transfer. Whether a hot-pair transfer goes between
+         * the hot pair is decided once for both accounts, so the fraction of such transfers is the skew.
+         *
+         * @param random the random source of the calling thread
+         * @return both account IDs, between 1 and N and different from each other, packed into one value to
+         * be read with {@link #sourceOf} and {@link #destinationOf}
+         */
+        public long nextTransfer(Random random) {
+            int from;
+            int to;
+            if (pattern == HOT_PAIR && random.nextDouble() < skew) {
+                from = 1 + random.nextInt(2);
+                to = 3 - from;
+            } else {
+                from = pattern == ZIPF ? zipf(random) : uniform(random);
+                to = pattern == ZIPF ? zipf(random) : uniform(random);
+                while (to == from) {
+                    to = uniform(random);
+                }
+            }
+            return (long) from << 32 | to;
+        }
+
+        /**
+         * Get the source account of a transfer picked by {@link #nextTransfer}.
+         *
+         * @param transfer the picked transfer
+         * @return the source account ID
+         */
+        public static int sourceOf(long transfer) {
+            return (int) (transfer >>> 32);
+        }
+
+        /**
+         * Get the destination account of a transfer picked by {@link #nextTransfer}.
+         *
+         * @param transfer the picked transfer
+         * @return the destination account ID
+         */
+        public static int destinationOf(long transfer) {
+            return (int) transfer;
+        }
+
+        private int uniform(Random random) {
+            return 1 + random.nextInt(numAccounts);
+        }
+
+        private int zipf(Random random) {
+            int index = Arrays.binarySearch(zipfCdf, random.nextDouble());
+            return 1 + Math.min(index < 0 ? -index - 1 : index, numAccounts - 1);
+        }
+
+        private static double[] zipfCdf(int numAccounts, double skew) {
+            double[] cdf = new double[numAccounts];
+            double total = 0;
+            for (int k = 1; k <= numAccounts; k++) {
+                total += 1.0 / Math.pow(k, skew);
+                cdf[k - 1] = total;
+            }
+            for (int k = 0; k < numAccounts; k++) {
+                cdf[k] /= total;
+            }
+            return cdf;
+        }
+    }
+}
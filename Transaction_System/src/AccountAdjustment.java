@@ -0,0 +1,19 @@
+/**
+ * Computes the change a bulk operation makes to one account, such as accrued interest or a posted fee.
+ * <p>
+ * The change is computed from the balance it is applied to, with no other balance change in between. On
+ * lock-free accounts it may be computed more than once if a transfer races with it, so it must not have side
+ * effects.
+ */
+@FunctionalInterface
+public interface AccountAdjustment {
+
+    /**
+     * Compute the change for an account.
+     *
+     * @param accountId the account ID
+     * @param balance   the balance the change will be applied to
+     * @return the amount to credit if positive, to debit if negative, or 0 to leave the account unchanged
+     */
+    double amountFor(int accountId, double balance);
+}
@@ -0,0 +1,49 @@
+import java.util.function.Consumer;
+
+/**
+ * The accounts of a {@link TransactionSystem}, looked up by their primitive {@code int} ID.
+ * <p>
+ * A directory only reads accounts: how they get into it is up to the implementation. An
+ * {@link AccountRegistry} is filled with {@link AccountRegistry#put}, while a {@link SnapshotAccountRegistry}
+ * creates its accounts from a snapshot file the first time they are used.
+ */
+interface AccountDirectory {
+
+    /**
+     * Get the account with the given ID.
+     *
+     * @param accountId the account ID
+     * @return the account, or null if not found
+     */
+    BankAccount get(int accountId);
+
+    /**
+     * Get the number of accounts in the directory.
+     *
+     * @return the number of accounts
+     */
+    int size();
+
+    /**
+     * Run an action for every account in the directory.
+     *
+     * @param action the action to run
+     */
+    void forEach(Consumer<BankAccount> action);
+
+    /**
+     * Run an action for every account that is held in memory. That is every account, unless the directory
+     * creates accounts on first use, in which case accounts that have never been used are skipped.
+     *
+     * @param action the action to run
+     */
+    void forEachLoaded(Consumer<BankAccount> action);
+
+    /**
+     * Copy the ID and current balance of every account, in ascending ID order.
+     *
+     * @param ids      receives the account IDs, sized for {@link #size()} accounts
+     * @param balances receives the balances, sized for {@link #size()} accounts
+     */
+    void copyBalances(int[] ids, double[] balances);
+}
@@ -0,0 +1,59 @@
+/**
+ * The balance engine used for the accounts of a {@link TransactionSystem}.
+ */
+public enum AccountEngine {
+
+    /**
+     * Accounts keep a {@code double} balance behind a read/write lock and transfers hold both account locks.
+     */
+    LOCKING {
+        @Override
+        BankAccount adopt(BankAccount account) {
+            return account;
+        }
+
+        @Override
+        BankAccount newAccount(int id, double balance) {
+            return new BankAccount(id, balance);
+        }
+    },
+
+    /**
+     * Accounts keep their balance in cents and update it with compare-and-set, without any locks.
+     */
+    LOCK_FREE {
+        @Override
+        BankAccount adopt(BankAccount account) {
+            if (!account.needsTransferLock()) {
+                return account; // Already lock-free, for example a striped account
+            }
+            LockFreeBankAccount lockFree = new LockFreeBankAccount(account.getId(), account.getBalance());
+            for (Transaction transaction : account.getTransactionHistory()) {
+                lockFree.addTransaction(transaction);
+            }
+            return lockFree;
+        }
+
+        @Override
+        BankAccount newAccount(int id, double balance) {
+            return new LockFreeBankAccount(id, balance);
+        }
+    };
+
+    /**
+     * Convert an account to this engine, keeping its ID, balance and history.
+     *
+     * @param account the account to convert
+     * @return an account backed by this engine
+     */
+    abstract BankAccount adopt(BankAccount account);
+
+    /**
+     * Create an account backed by this engine.
+     *
+     * @param id      the account ID
+     * @param balance the opening balance
+     * @return the new account
+     */
+    abstract BankAccount newAccount(int id, double balance);
+}
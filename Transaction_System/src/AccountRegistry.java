@@ -0,0 +1,188 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Consumer;
+
+/**
+ * An open-addressing index of bank accounts keyed by their primitive {@code int} ID.
+ * <p>
+ * Lookups never lock and never box the key. The IDs are kept in an {@code int} array next to the accounts,
+ * so a lookup probes the IDs alone and only touches an account once it has found it. Inserts are serialized
+ * and publish each slot with release semantics, so readers always see a fully constructed account. The table
+ * grows by copying into larger arrays which then replace the old ones.
+ */
+public class AccountRegistry implements AccountDirectory {
+
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(BankAccount[].class);
+    private static final int MIN_CAPACITY = 16;
+    private static final int EMPTY = Integer.MIN_VALUE; // Key of an empty slot
+
+    private volatile Table table; // Slots are empty or hold the account whose ID hashes there
+    private volatile BankAccount emptyKeyAccount; // The account whose ID is EMPTY, kept out of the table
+    private int size; // Number of accounts, guarded by this
+
+    /**
+     * Create an empty registry sized for the expected number of accounts.
+     *
+     * @param expectedAccounts the expected number of accounts
+     */
+    public AccountRegistry(int expectedAccounts) {
+        this.table = new Table(capacityFor(expectedAccounts));
+    }
+
+    @Override
+    public BankAccount get(int accountId) {
+        if (accountId == EMPTY) {
+            return emptyKeyAccount;
+        }
+        Table current = table;
+        int[] keys = current.keys;
+        int mask = keys.length - 1;
+        for (int i = hash(accountId) & mask; ; i = (i + 1) & mask) {
+            int key = (int) KEYS.getAcquire(keys, i);
+            if (key == accountId) {
+                return (BankAccount) SLOTS.getAcquire(current.accounts, i); // Published before its key
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Add an account, replacing any account with the same ID.
+     *
+     * @param account the account to add
+     */
+    public synchronized void put(BankAccount account) {
+        if (account.getId() == EMPTY) {
+            if (emptyKeyAccount == null) {
+                size++;
+            }
+            emptyKeyAccount = account;
+            return;
+        }
+        Table current = table;
+        if ((size + 1) * 2 > current.keys.length) {
+            current = resize(current.keys.length * 2);
+        }
+        if (insert(current, account)) {
+            size++;
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public void forEach(Consumer<BankAccount> action) {
+        forEachLoaded(action);
+    }
+
+    /**
+     * Run an action for every account. The registry holds all of its accounts in memory, so this is the same
+     * as {@link #forEach}.
+     *
+     * @param action the action to run
+     */
+    @Override
+    public void forEachLoaded(Consumer<BankAccount> action) {
+        BankAccount[] slots = table.accounts;
+        for (int i = 0; i < slots.length; i++) {
+            BankAccount account = (BankAccount) SLOTS.getAcquire(slots, i);
+            if (account != null) {
+                action.accept(account);
+            }
+        }
+        BankAccount account = emptyKeyAccount;
+        if (account != null) {
+            action.accept(account);
+        }
+    }
+
+    @Override
+    public void copyBalances(int[] ids, double[] balances) {
+        BankAccount[] all = new BankAccount[ids.length];
+        int[] next = {0};
+        forEachLoaded(account -> all[next[0]++] = account);
+        Arrays.sort(all, Comparator.comparingInt(BankAccount::getId));
+        for (int i = 0; i < all.length; i++) {
+            ids[i] = all[i].getId();
+            balances[i] = all[i].getBalance();
+        }
+    }
+
+    /**
+     * Insert into the given table, which must have a free slot.
+     *
+     * @return true if a new slot was used, false if an existing account was replaced
+     */
+    private static boolean insert(Table table, BankAccount account) {
+        int[] keys = table.keys;
+        int mask = keys.length - 1;
+        int accountId = account.getId();
+        for (int i = hash(accountId) & mask; ; i = (i + 1) & mask) {
+            int key = keys[i];
+            if (key == accountId) {
+                SLOTS.setRelease(table.accounts, i, account);
+                return false;
+            }
+            if (key == EMPTY) {
+                SLOTS.setRelease(table.accounts, i, account);
+                KEYS.setRelease(keys, i, accountId); // The account is visible to anyone who finds its key
+                return true;
+            }
+        }
+    }
+
+    private Table resize(int capacity) {
+        Table old = table;
+        Table bigger = new Table(capacity);
+        for (BankAccount account : old.accounts) {
+            if (account != null) {
+                insert(bigger, account);
+            }
+        }
+        table = bigger; // Volatile write publishes the new table to readers
+        return bigger;
+    }
+
+    /**
+     * The account IDs and the accounts, in matching slots.
+     */
+    private static final class Table {
+        private final int[] keys; // Account IDs, EMPTY for a free slot
+        private final BankAccount[] accounts;
+
+        Table(int capacity) {
+            this.keys = new int[capacity];
+            this.accounts = new BankAccount[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    static int capacityFor(int expectedAccounts) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedAccounts * 2L) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Spread sequential account IDs across the table (murmur3 finalizer).
+     */
+    static int hash(int accountId) {
+        int h = accountId;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.zip.CRC32C;
+
+/**
+ * A compact binary file of account IDs and balances, used to start a {@link TransactionSystem} with millions
+ * of accounts without creating them up front.
+ * <p>
+ * The file starts with a 24-byte header: a magic number, the format version, the account count, the number of
+ * records per checksum block and a CRC32C of those 16 bytes. One 12-byte record per account follows, holding
+ * the ID and the raw bits of the balance, in ascending ID order. The file ends with a CRC32C of each block of
+ * records, so blocks can be verified independently and in parallel. An opened file is memory-mapped and read
+ * in place, without copying the records onto the heap.
+ */
+public final class AccountSnapshotFile {
+
+    private static final int MAGIC = 0x41435453; // "ACTS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int RECORD_SIZE = 12;
+    private static final int BLOCK_RECORDS = 4096;
+
+    private final Path path;
+    private final ByteBuffer mapped; // Read-only mapping of the whole file, only read with absolute gets
+    private final int count;
+    private final int blockRecords;
+
+    private AccountSnapshotFile(Path path, ByteBuffer mapped, int count, int blockRecords) {
+        this.path = path;
+        this.mapped = mapped;
+        this.count = count;
+        this.blockRecords = blockRecords;
+    }
+
+    /**
+     * Write the IDs and current balances of accounts to a snapshot file, replacing it atomically. Balances are
+     * read one account at a time.
+     *
+     * @param path     the file to write
+     * @param accounts the accounts, in any order
+     * @throws IOException              if the file cannot be written
+     * @throws IllegalArgumentException if two accounts have the same ID or an account uses
+     *                                  {@link TransactionSystem#EXTERNAL_ACCOUNT_ID}
+     */
+    public static void write(Path path, Collection<BankAccount> accounts) throws IOException {
+        BankAccount[] sorted = accounts.toArray(new BankAccount[0]);
+        Arrays.sort(sorted, Comparator.comparingInt(BankAccount::getId));
+        int[] ids = new int[sorted.length];
+        double[] balances = new double[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            ids[i] = sorted[i].getId();
+            balances[i] = sorted[i].getBalance();
+        }
+        write(path, ids, balances);
+    }
+
+    /**
+     * Write account IDs and balances to a snapshot file, replacing it atomically.
+     *
+     * @param path     the file to write
+     * @param ids      the account IDs, in strictly ascending order
+     * @param balances the balance of each account
+     * @throws IOException              if the file cannot be written
+     * @throws IllegalArgumentException if the IDs are not strictly ascending, an ID is
+     *                                  {@link TransactionSystem#EXTERNAL_ACCOUNT_ID} or a balance is negative
+     */
+    static void write(Path path, int[] ids, double[] balances) throws IOException {
+        int count = ids.length;
+        if ((long) count * RECORD_SIZE + HEADER_SIZE + blocksFor(count, BLOCK_RECORDS) * 4L > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many accounts for one snapshot file: " + count);
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(BLOCK_RECORDS);
+            CRC32C headerCrc = new CRC32C();
+            headerCrc.update(header.array(), 0, 16);
+            header.putInt((int) headerCrc.getValue()).putInt(0).flip();
+            writeFully(channel, header);
+
+            ByteBuffer checksums = ByteBuffer.allocate(blocksFor(count, BLOCK_RECORDS) * 4);
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_RECORDS * RECORD_SIZE);
+            CRC32C crc = new CRC32C();
+            for (int first = 0; first < count; first += BLOCK_RECORDS) {
+                int last = Math.min(first + BLOCK_RECORDS, count);
+                block.clear();
+                for (int i = first; i < last; i++) {
+                    if (i > 0 && ids[i] <= ids[i - 1]) {
+                        throw new IllegalArgumentException("Account IDs must be unique and ascending: " + ids[i]);
+                    }
+                    if (ids[i] == TransactionSystem.EXTERNAL_ACCOUNT_ID) {
+                        throw new IllegalArgumentException("Account ID " + ids[i]
+                                + " is reserved for external transfers");
+                    }
+                    if (!(balances[i] >= 0) || Double.isInfinite(balances[i])) {
+                        throw new IllegalArgumentException("Invalid balance for account " + ids[i] + ": "
+                                + balances[i]);
+                    }
+                    block.putInt(ids[i]).putLong(Double.doubleToRawLongBits(balances[i]));
+                }
+                block.flip();
+                crc.reset();
+                crc.update(block.array(), 0, block.limit());
+                checksums.putInt((int) crc.getValue());
+                writeFully(channel, block);
+            }
+            checksums.flip();
+            writeFully(channel, checksums);
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Map a snapshot file and check its header. The records are not verified until
+     * {@link #verifyBlock} is called for each block.
+     *
+     * @param path the file to open
+     * @return the open file
+     * @throws IOException if the file cannot be read or is not a valid snapshot file
+     */
+    public static AccountSnapshotFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Not an account snapshot file: " + path);
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32C headerCrc = new CRC32C();
+            headerCrc.update(mapped.slice(0, 16));
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(16) != (int) headerCrc.getValue()) {
+                throw new IOException("Not an account snapshot file: " + path);
+            }
+            if (mapped.getInt(4) != VERSION) {
+                throw new IOException("Unsupported account snapshot version " + mapped.getInt(4) + ": " + path);
+            }
+            int count = mapped.getInt(8);
+            int blockRecords = mapped.getInt(12);
+            if (count < 0 || blockRecords <= 0
+                    || HEADER_SIZE + (long) count * RECORD_SIZE + blocksFor(count, blockRecords) * 4L != size) {
+                throw new IOException("Account snapshot file is truncated or corrupt: " + path);
+            }
+            return new AccountSnapshotFile(path, mapped, count, blockRecords);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Get the number of accounts in the file.
+     *
+     * @return the account count
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get the number of checksum blocks the records are divided into.
+     *
+     * @return the block count
+     */
+    int blockCount() {
+        return blocksFor(count, blockRecords);
+    }
+
+    /**
+     * Get the record number of the first record in a block.
+     *
+     * @param block the block number
+     * @return the record number
+     */
+    int firstRecordOf(int block) {
+        return block * blockRecords;
+    }
+
+    /**
+     * Check the records of one block against their checksum. Safe to call from several threads at once.
+     *
+     * @param block the block number
+     * @return true if the block is intact
+     */
+    boolean verifyBlock(int block) {
+        int first = firstRecordOf(block);
+        int records = Math.min(blockRecords, count - first);
+        CRC32C crc = new CRC32C();
+        crc.update(mapped.slice(HEADER_SIZE + first * RECORD_SIZE, records * RECORD_SIZE));
+        int stored = mapped.getInt(HEADER_SIZE + count * RECORD_SIZE + block * 4);
+        return stored == (int) crc.getValue();
+    }
+
+    /**
+     * Get the account ID of a record.
+     *
+     * @param record the record number
+     * @return the account ID
+     */
+    int idAt(int record) {
+        return mapped.getInt(HEADER_SIZE + record * RECORD_SIZE);
+    }
+
+    /**
+     * Get the balance of a record.
+     *
+     * @param record the record number
+     * @return the balance
+     */
+    double balanceAt(int record) {
+        return Double.longBitsToDouble(mapped.getLong(HEADER_SIZE + record * RECORD_SIZE + 4));
+    }
+
+    private static int blocksFor(int count, int blockRecords) {
+        return (int) ((count + (long) blockRecords - 1) / blockRecords);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
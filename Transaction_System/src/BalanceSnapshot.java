@@ -0,0 +1,117 @@
+import java.util.Arrays;
+
+/**
+ * A point-in-time view of every account's balance and history, taken with {@link TransactionSystem#snapshot()}.
+ * <p>
+ * The view is consistent with completed transfers: every transfer and batch with a commit version at or
+ * below {@link #getVersion()} is fully included and every later one is fully excluded, so the total never
+ * shows half of a transfer. The snapshot is immutable and can be kept as long as needed.
+ */
+public final class BalanceSnapshot {
+
+    private final long version;
+    private int size;
+    private final int[] accountIds; // Ascending
+    private final double[] balances;
+    private final int[] historySizes;
+    private final BankAccount[] accounts;
+
+    BalanceSnapshot(long version, int capacity) {
+        this.version = version;
+        this.accountIds = new int[capacity];
+        this.balances = new double[capacity];
+        this.historySizes = new int[capacity];
+        this.accounts = new BankAccount[capacity];
+    }
+
+    /**
+     * Add the next account; accounts are added in ascending ID order.
+     */
+    void add(BankAccount account, BankAccount.BalanceVersion balanceVersion) {
+        if (balanceVersion == null) {
+            throw new IllegalStateException("No balance version " + version + " for account " + account.getId());
+        }
+        accountIds[size] = account.getId();
+        balances[size] = balanceVersion.balance;
+        historySizes[size] = balanceVersion.historySize;
+        accounts[size] = account;
+        size++;
+    }
+
+    /**
+     * Get the commit version this snapshot was taken at.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the IDs of all accounts in the snapshot, in ascending order.
+     *
+     * @return a copy of the account IDs
+     */
+    public int[] getAccountIds() {
+        return Arrays.copyOf(accountIds, size);
+    }
+
+    /**
+     * Get the balance of an account as of this snapshot.
+     *
+     * @param accountId the account ID
+     * @return the balance
+     * @throws IllegalArgumentException if the account is not in the snapshot
+     */
+    public double getBalance(int accountId) {
+        return balances[indexOf(accountId)];
+    }
+
+    /**
+     * Get the sum of all balances as of this snapshot.
+     *
+     * @return the total balance
+     */
+    public double getTotal() {
+        long totalCents = 0;
+        for (int i = 0; i < size; i++) {
+            totalCents += Money.toCents(balances[i]);
+        }
+        return Money.fromCents(totalCents);
+    }
+
+    /**
+     * Open a cursor over the transactions of an account that are part of this snapshot.
+     *
+     * @param accountId the account ID
+     * @return a cursor over the account's history as of this snapshot
+     * @throws IllegalArgumentException if the account is not in the snapshot
+     */
+    public HistoryCursor history(int accountId) {
+        int index = indexOf(accountId);
+        return accounts[index].historyPrefix(historySizes[index]);
+    }
+
+    /**
+     * Print the balances and history of all accounts, followed by the total.
+     */
+    public void print() {
+        for (int i = 0; i < size; i++) {
+            System.out.println("\nAccount " + accountIds[i] + ": $" + String.format("%.2f", balances[i]));
+            System.out.println("Transaction History:");
+            HistoryCursor cursor = accounts[i].historyPrefix(historySizes[i]);
+            while (cursor.next()) {
+                System.out.println("\t" + cursor.toTransaction());
+            }
+        }
+        System.out.println("\nTotal at version " + version + ": $" + String.format("%.2f", getTotal()));
+    }
+
+    private int indexOf(int accountId) {
+        int index = Arrays.binarySearch(accountIds, 0, size, accountId);
+        if (index < 0) {
+            throw new IllegalArgumentException("Account " + accountId + " is not in the snapshot");
+        }
+        return index;
+    }
+}
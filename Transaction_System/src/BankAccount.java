@@ -2,22 +2,44 @@ import exceptions.InsufficientFundsException;
 import exceptions.InvalidTransactionException;
 import exceptions.TransactionLockException;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * A bank account with a balance that can be deposited to and withdrawn from.
  */
 public class BankAccount {
+    private static final VarHandle LOCK;
+
+    static {
+        try {
+            LOCK = MethodHandles.lookup().findVarHandle(BankAccount.class, "lock", ReentrantLock.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private final int id;
-    private double balance;
-    private final ReentrantLock lock; // Lock for account operations
-    private final ReentrantReadWriteLock rwLock; // Lock for balance read/write operations
-    private final List<Transaction> transactionHistory; // List of transactions for this account
-    private final ReentrantReadWriteLock historyLock; // Lock for transaction history read/write operations
+    private final LockedBalance balanceLock; // Balance and its read/write lock, null if a subclass keeps the balance
+    private volatile ReentrantLock lock; // Lock for account operations, created on first use by lock-free accounts
+    private volatile HistoryIndex historyIndex; // Store and record index of this account's history
+    private volatile int historySize; // Number of records in the index, published after each append
+    private volatile long historySkew; // Largest amount an index key runs ahead of its record's timestamp
+    private long lastHistoryKey; // Key of the newest record in the index, guarded by the history lock
+    private final AtomicLong lastStamp = new AtomicLong(); // Newest clock stamp of a transaction on this account
+    private final ReentrantLock historyLock; // Lock serializing writers of the transaction history
+    private final LongAdder transferCount = new LongAdder(); // Transfers that have touched this account
+    private final LongAdder lockWaitNanos = new LongAdder(); // Time transfers spent waiting for the account lock
+    private final LongAdder heldCents = new LongAdder(); // Hold ledger: cents reserved by transfers in flight
+    private volatile BalanceVersion versions; // Newest committed balance version, null unless snapshots are on
+    private int versionCount; // Length of the version chain, guarded by the account lock
 
     /**
      * Create a new bank account with an initial balance.
@@ -27,15 +49,30 @@ public class BankAccount {
      * @throws IllegalArgumentException if the initial balance is negative
      */
     public BankAccount(int id, double initialBalance) {
+        this(id, initialBalance, true);
+    }
+
+    /**
+     * Create a new bank account, leaving out the locked balance for subclasses that keep their own.
+     *
+     * @param id the account ID
+     * @param initialBalance the initial balance
+     * @param lockedBalance whether the account keeps its balance behind a lock
+     * @throws IllegalArgumentException if the initial balance is negative
+     */
+    BankAccount(int id, double initialBalance, boolean lockedBalance) {
         if (initialBalance < 0) {
             throw new IllegalArgumentException("Initial balance cannot be negative");
         }
         this.id = id;
-        this.balance = initialBalance;
-        this.lock = new ReentrantLock(true);
-        this.rwLock = new ReentrantReadWriteLock(true);
-        this.transactionHistory = new ArrayList<>();
-        this.historyLock = new ReentrantReadWriteLock(true);
+        if (lockedBalance) {
+            this.balanceLock = new LockedBalance(initialBalance);
+            this.lock = new ReentrantLock(true);
+        } else {
+            this.balanceLock = null; // The subclass overrides every method that reads or writes the balance
+        }
+        this.historyIndex = new HistoryIndex(null);
+        this.historyLock = new ReentrantLock();
     }
 
     /**
@@ -53,12 +90,18 @@ public class BankAccount {
      * @return the current balance
      */
     public double getBalance() {
-        rwLock.readLock().lock();
-        try {
-            return balance;
-        } finally {
-            rwLock.readLock().unlock();
+        long stamp = balanceLock.tryOptimisticRead();
+        double current = balanceLock.balance;
+        if (!balanceLock.validate(stamp)) {
+            // A write got in the way, fall back to a read lock
+            stamp = balanceLock.readLock();
+            try {
+                current = balanceLock.balance;
+            } finally {
+                balanceLock.unlockRead(stamp);
+            }
         }
+        return current;
     }
 
     /**
@@ -67,12 +110,57 @@ public class BankAccount {
      * @return a list of transactions
      */
     public List<Transaction> getTransactionHistory() {
-        historyLock.readLock().lock();
-        try {
-            return new ArrayList<>(transactionHistory);
-        } finally {
-            historyLock.readLock().unlock();
+        HistoryCursor cursor = history();
+        List<Transaction> transactions = new ArrayList<>(historySize);
+        while (cursor.next()) {
+            transactions.add(cursor.toTransaction());
+        }
+        return transactions;
+    }
+
+    /**
+     * Open a cursor over the whole transaction history of the account, oldest first.
+     *
+     * @return a cursor over the history as it is now
+     */
+    public HistoryCursor history() {
+        return history(Long.MIN_VALUE, Long.MAX_VALUE, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Open a cursor over the transactions with a timestamp in a range, oldest first.
+     * <p>
+     * The cursor works on the history as it is when this method is called: it does not copy the history,
+     * does not block concurrent writers and does not see transactions added afterwards. The start of the
+     * range is found with a binary search on the timestamp index, so skipping old history is cheap.
+     *
+     * @param fromTime the earliest timestamp to include, in milliseconds since the epoch
+     * @param toTime   the latest timestamp to include, in milliseconds since the epoch
+     * @param offset   the number of matching transactions to skip
+     * @param limit    the maximum number of transactions to return
+     * @return a cursor over the matching transactions
+     * @throws IllegalArgumentException if the offset or limit is negative
+     */
+    public HistoryCursor history(long fromTime, long toTime, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit cannot be negative");
         }
+        int size = historySize; // Read the size first: the index published with it holds at least that many
+        HistoryIndex index = historyIndex;
+        long skew = historySkew;
+        long upperKey = toTime > Long.MAX_VALUE - skew ? Long.MAX_VALUE : toTime + skew;
+        int start = index.firstKeyAtLeast(fromTime, 0, size);
+        int end = upperKey == Long.MAX_VALUE ? size : index.firstKeyAtLeast(upperKey + 1, start, size);
+        return new HistoryCursor(index, start, end, fromTime, toTime, offset, limit);
+    }
+
+    /**
+     * Get the number of transactions in the account's history.
+     *
+     * @return the history size
+     */
+    public int getHistorySize() {
+        return historySize;
     }
 
     /**
@@ -81,11 +169,193 @@ public class BankAccount {
      * @param transaction the transaction to add
      */
     public void addTransaction(Transaction transaction) {
-        historyLock.writeLock().lock();
+        addHistoryRecord(store().appendStamped(transaction.getFromAccountId(), transaction.getToAccountId(),
+                transaction.getAmount(), transaction.getStamp(), transaction.isReversed()));
+    }
+
+    /**
+     * Add several transactions to the account's history under a single lock acquisition.
+     *
+     * @param transactions the transactions to add, in order
+     */
+    public void addTransactions(List<Transaction> transactions) {
+        HistoryStore store = store();
+        long[] ids = new long[transactions.size()];
+        for (int i = 0; i < ids.length; i++) {
+            Transaction transaction = transactions.get(i);
+            ids[i] = store.appendStamped(transaction.getFromAccountId(), transaction.getToAccountId(),
+                    transaction.getAmount(), transaction.getStamp(), transaction.isReversed());
+        }
+        addHistoryRecords(ids, ids.length);
+    }
+
+    /**
+     * Add a record that is already in this account's history store to its history.
+     *
+     * @param recordId the record ID in the store
+     */
+    void addHistoryRecord(long recordId) {
+        historyLock.lock();
         try {
-            transactionHistory.add(transaction);
+            HistoryIndex index = ensureHistoryCapacity(1);
+            int position = historySize;
+            appendToIndex(index, position, recordId);
+            historySize = position + 1; // Publish the new record
+            spillIfComplete(index, position);
         } finally {
-            historyLock.writeLock().unlock();
+            historyLock.unlock();
+        }
+    }
+
+    /**
+     * Add records that are already in this account's history store to its history, under a single lock acquisition.
+     *
+     * @param recordIds the record IDs in the store, in order
+     * @param count     the number of IDs to add
+     */
+    void addHistoryRecords(long[] recordIds, int count) {
+        historyLock.lock();
+        try {
+            HistoryIndex index = ensureHistoryCapacity(count);
+            int size = historySize;
+            for (int i = 0; i < count; i++) {
+                appendToIndex(index, size + i, recordIds[i]);
+            }
+            historySize = size + count; // Publish all the new records at once
+            for (int i = 0; i < count; i++) {
+                spillIfComplete(index, size + i);
+            }
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    /**
+     * Move this account's history into a shared store, so transfers can record each transaction once for both
+     * accounts.
+     *
+     * @param store the shared store
+     */
+    void attachHistoryStore(HistoryStore store) {
+        historyLock.lock();
+        try {
+            HistoryIndex previous = historyIndex;
+            int size = historySize;
+            HistoryIndex attached = previous.copy(store, size);
+            if (previous.store != null && previous.store != store) {
+                for (int i = 0; i < size; i++) {
+                    Transaction transaction = previous.store.read(previous.idAt(i));
+                    long recordId = store.appendStamped(transaction.getFromAccountId(),
+                            transaction.getToAccountId(), transaction.getAmount(), transaction.getStamp(),
+                            transaction.isReversed());
+                    attached.setId(i, recordId);
+                }
+            }
+            historyIndex = attached; // Readers see either the old store and IDs or the new ones, never a mix
+            for (int i = 0; i < size; i++) {
+                spillIfComplete(attached, i);
+            }
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    /**
+     * Get the store holding this account's history, creating a private one if the account is not part of a
+     * transaction system yet.
+     */
+    private HistoryStore store() {
+        HistoryStore store = historyIndex.store;
+        if (store == null) {
+            historyLock.lock();
+            try {
+                if (historyIndex.store == null) {
+                    historyIndex = historyIndex.copy(new HistoryStore(), historySize);
+                }
+                store = historyIndex.store;
+            } finally {
+                historyLock.unlock();
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Make room for more records in the index, publishing a larger copy if needed. Called with the history
+     * lock held.
+     */
+    private HistoryIndex ensureHistoryCapacity(int count) {
+        HistoryIndex index = historyIndex;
+        HistoryIndex grown = index.ensureCapacity(historySize, count);
+        if (grown != index) {
+            historyIndex = grown; // Published before the size that needs it
+        }
+        return grown;
+    }
+
+    /**
+     * Hand a page of the index that has just filled up to the store to be spilled, if the store spills
+     * history. Called with the history lock held, after the page's records have been published.
+     */
+    private void spillIfComplete(HistoryIndex index, int position) {
+        HistoryStore store = index.store;
+        HistoryIndex.Page page = store.spillsHistory() ? index.completedPage(position) : null;
+        if (page != null) {
+            int pageNumber = position >>> HistoryIndex.PAGE_SHIFT;
+            store.spillIndexPage(page, offset -> indexPageSpilled(store, pageNumber, offset));
+        }
+    }
+
+    /**
+     * Drop a page of the index from the heap once the store has written it to its spill file. Called on the
+     * store's spill thread.
+     */
+    private void indexPageSpilled(HistoryStore store, int pageNumber, long offset) {
+        historyLock.lock();
+        try {
+            HistoryIndex index = historyIndex;
+            if (index.store == store) { // Otherwise the history has moved to another store since
+                index.pageSpilled(pageNumber, offset);
+            }
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    /**
+     * Write one record into an unpublished slot of the index. Called with the history lock held.
+     */
+    private void appendToIndex(HistoryIndex index, int position, long recordId) {
+        long stamp = index.store.stampOf(recordId);
+        advanceStamp(stamp);
+        long timestamp = HybridLogicalClock.toMillis(stamp);
+        // Keys never decrease so they can be binary searched; the skew bounds how far a key can run ahead
+        long key = position == 0 ? timestamp : Math.max(timestamp, lastHistoryKey);
+        if (key - timestamp > historySkew) {
+            historySkew = key - timestamp;
+        }
+        index.set(position, recordId, key);
+        lastHistoryKey = key;
+    }
+
+    /**
+     * Get the newest clock stamp in the account's history. A transaction that touches the account is stamped
+     * after it, so the account's history stays in stamp order.
+     *
+     * @return the newest stamp, or 0 if the history is empty
+     */
+    long getLastStamp() {
+        return lastStamp.get();
+    }
+
+    /**
+     * Note that a transaction on the account was given a stamp, so later ones are stamped after it.
+     *
+     * @param stamp the stamp
+     */
+    void advanceStamp(long stamp) {
+        if (stamp > lastStamp.get()) {
+            lastStamp.accumulateAndGet(stamp, Math::max);
         }
     }
 
@@ -96,16 +366,9 @@ public class BankAccount {
      * @throws InvalidTransactionException if the amount is not positive
      */
     public void deposit(double amount) throws InvalidTransactionException {
-        if (amount <= 0) {
+        if (tryDeposit(amount) != TransferResult.SUCCESS) {
             throw new InvalidTransactionException("Deposit amount must be positive");
         }
-
-        rwLock.writeLock().lock();
-        try {
-            balance += amount;
-        } finally {
-            rwLock.writeLock().unlock();
-        }
     }
 
     /**
@@ -116,20 +379,194 @@ public class BankAccount {
      * @throws InvalidTransactionException if the amount is not positive
      */
     public void withdraw(double amount) throws InsufficientFundsException, InvalidTransactionException {
-        if (amount <= 0) {
+        TransferResult result = tryWithdraw(amount);
+        if (result == TransferResult.INSUFFICIENT_FUNDS) {
+            throw new InsufficientFundsException(id, amount, getBalance());
+        }
+        if (result == TransferResult.INVALID_AMOUNT) {
             throw new InvalidTransactionException("Withdrawal amount must be positive");
         }
+    }
+
+    /**
+     * Deposit funds into the account, reporting a rejection as a result instead of an exception.
+     *
+     * @param amount the amount to deposit
+     * @return SUCCESS, or INVALID_AMOUNT if the amount is not positive
+     */
+    public TransferResult tryDeposit(double amount) {
+        if (amount <= 0) {
+            return TransferResult.INVALID_AMOUNT;
+        }
+
+        long stamp = balanceLock.writeLock();
+        try {
+            balanceLock.balance += amount;
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+        return TransferResult.SUCCESS;
+    }
+
+    /**
+     * Withdraw funds from the account, reporting a rejection as a result instead of an exception.
+     *
+     * @param amount the amount to withdraw
+     * @return SUCCESS, INSUFFICIENT_FUNDS if the account has insufficient funds, or INVALID_AMOUNT if the
+     * amount is not positive
+     */
+    public TransferResult tryWithdraw(double amount) {
+        if (amount <= 0) {
+            return TransferResult.INVALID_AMOUNT;
+        }
 
-        rwLock.writeLock().lock();
+        long stamp = balanceLock.writeLock();
         try {
-            if (balance >= amount) {
-                balance -= amount;
-            } else {
-                throw new InsufficientFundsException(id, amount, balance);
+            if (balanceLock.balance < amount) {
+                return TransferResult.INSUFFICIENT_FUNDS;
             }
+            balanceLock.balance -= amount;
         } finally {
-            rwLock.writeLock().unlock();
+            balanceLock.unlockWrite(stamp);
+        }
+        return TransferResult.SUCCESS;
+    }
+
+    /**
+     * Get the funds held on the account by transfers that are still in flight. Held funds have left the
+     * balance but not yet reached their destination, so the balance plus the held amount never drops while a
+     * transfer runs.
+     *
+     * @return the held amount, to the cent
+     */
+    public double getHeldAmount() {
+        return Money.fromCents(heldCents.sum());
+    }
+
+    /**
+     * Hold funds for a transfer. The amount leaves the balance and is recorded on the hold ledger until the
+     * transfer commits or releases it.
+     *
+     * @param amount the amount to hold
+     * @return SUCCESS, INSUFFICIENT_FUNDS if the account has insufficient funds, or INVALID_AMOUNT if the
+     * amount is not positive
+     */
+    TransferResult reserve(double amount) {
+        long cents = Money.toCents(amount);
+        heldCents.add(cents); // Ledger first, so the money is never missing from balance plus holds
+        TransferResult result = tryWithdraw(amount);
+        if (result != TransferResult.SUCCESS) {
+            heldCents.add(-cents);
         }
+        return result;
+    }
+
+    /**
+     * Settle a hold once the destination has been credited.
+     *
+     * @param amount the amount that was held
+     */
+    void commitHold(double amount) {
+        heldCents.add(-Money.toCents(amount));
+    }
+
+    /**
+     * Give a held amount back to the balance after a transfer failed.
+     *
+     * @param amount the amount that was held
+     */
+    void releaseHold(double amount) {
+        tryDeposit(amount); // The amount was already accepted by the reserve, so this cannot be rejected
+        heldCents.add(-Money.toCents(amount));
+    }
+
+    /**
+     * Check whether a deposit of the amount would be accepted, so a transfer can find out before it commits.
+     *
+     * @param amount the amount to deposit
+     * @return true if {@link #tryDeposit} accepts the amount
+     */
+    boolean acceptsDeposit(double amount) {
+        return amount > 0;
+    }
+
+    /**
+     * Round an amount to the resolution the balance is kept in, which is what a deposit or withdrawal of the
+     * amount actually moves.
+     *
+     * @param amount the amount
+     * @return the amount as the account would apply it
+     */
+    double roundAmount(double amount) {
+        return amount;
+    }
+
+    /**
+     * Apply a change computed from the current balance, with no other balance change in between.
+     *
+     * @param adjustment computes the change from the balance
+     * @return the amount applied, negative for a debit, 0 if nothing changed, or NaN if the change was rejected
+     * because it was not a finite number or would overdraw the account
+     */
+    double adjust(AccountAdjustment adjustment) {
+        long stamp = balanceLock.writeLock();
+        try {
+            double balance = balanceLock.balance;
+            double amount = adjustment.amountFor(id, balance);
+            if (!Double.isFinite(amount) || balance + amount < 0) {
+                return Double.NaN;
+            }
+            balanceLock.balance = balance + amount;
+            return amount;
+        } finally {
+            balanceLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Try to move money to another account without taking either account lock.
+     * <p>
+     * The source balance is read optimistically and the funds check is committed by converting that read
+     * into a write lock, which only succeeds if no other write has happened since. The destination is
+     * locked for writing only if it is free; its balance does not affect the outcome, so it needs no
+     * validation. Nothing is changed unless both succeed.
+     *
+     * @param from   the source account
+     * @param to     the destination account
+     * @param amount the amount, already validated as positive
+     * @param clock  the clock that stamps the transfer while both balances are locked, so stamps follow the
+     *               order transfers commit in
+     * @param stamp  receives the stamp of the transfer if it succeeds
+     * @return SUCCESS if the money was moved, INSUFFICIENT_FUNDS if the validated source balance is too low,
+     * or null if another write got in the way and the caller should retry
+     */
+    static TransferResult tryTransferOptimistic(BankAccount from, BankAccount to, double amount,
+                                                HybridLogicalClock clock, long[] stamp) {
+        long fromStamp = from.balanceLock.tryOptimisticRead();
+        double fromBalance = from.balanceLock.balance;
+        if (!from.balanceLock.validate(fromStamp)) {
+            return null; // A write was in progress
+        }
+        if (fromBalance < amount) {
+            return TransferResult.INSUFFICIENT_FUNDS;
+        }
+        long fromWrite = from.balanceLock.tryConvertToWriteLock(fromStamp);
+        if (fromWrite == 0) {
+            return null; // The balance changed since it was read
+        }
+        long toWrite = to.balanceLock.tryWriteLock();
+        if (toWrite == 0) {
+            from.balanceLock.unlockWrite(fromWrite);
+            return null;
+        }
+        from.balanceLock.balance = fromBalance - amount;
+        to.balanceLock.balance += amount;
+        stamp[0] = clock.tick(Math.max(from.getLastStamp(), to.getLastStamp()));
+        from.advanceStamp(stamp[0]);
+        to.advanceStamp(stamp[0]);
+        to.balanceLock.unlockWrite(toWrite);
+        from.balanceLock.unlockWrite(fromWrite);
+        return TransferResult.SUCCESS;
     }
 
     /**
@@ -139,7 +576,7 @@ public class BankAccount {
      */
     public void lock() throws TransactionLockException {
         try {
-            if (!lock.tryLock(5, TimeUnit.SECONDS)) {
+            if (!transferLock().tryLock(5, TimeUnit.SECONDS)) {
                 throw new TransactionLockException("Unable to acquire lock for account " + id);
             }
         } catch (InterruptedException e) {
@@ -148,10 +585,156 @@ public class BankAccount {
         }
     }
 
+    /**
+     * Lock the account as part of a set of accounts that is always locked in ascending ID order. The ordering
+     * already rules out deadlock, so this waits as long as it takes instead of timing out.
+     *
+     * @throws TransactionLockException if the thread is interrupted while waiting
+     */
+    void lockInOrder() throws TransactionLockException {
+        try {
+            transferLock().lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionLockException("Lock acquisition interrupted for account " + id);
+        }
+    }
+
     /**
      * Unlock the account after a transaction.
      */
     public void unlock() {
-        lock.unlock();
+        lock.unlock(); // Created by the lock call this pairs with
+    }
+
+    /**
+     * Get the account lock, creating it if this is the first time a lock-free account is locked.
+     */
+    private ReentrantLock transferLock() {
+        ReentrantLock current = lock;
+        if (current == null) {
+            ReentrantLock created = new ReentrantLock(true);
+            ReentrantLock witness = (ReentrantLock) LOCK.compareAndExchange(this, null, created);
+            current = witness == null ? created : witness;
+        }
+        return current;
+    }
+
+    /**
+     * Get the number of transfers that have touched this account, whether they succeeded or not.
+     *
+     * @return the transfer count
+     */
+    public long getTransferCount() {
+        return transferCount.sum();
+    }
+
+    /**
+     * Get the total time transfers have spent waiting for this account's lock.
+     *
+     * @return the lock wait time in nanoseconds
+     */
+    public long getLockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    /**
+     * Count a transfer that touched this account.
+     *
+     * @param waitNanos how long the transfer waited for the account lock
+     */
+    void recordContention(long waitNanos) {
+        transferCount.increment();
+        if (waitNanos > 0) {
+            lockWaitNanos.add(waitNanos);
+        }
+    }
+
+    /**
+     * Record the balance and history size left by a committed change. Called with the account lock held.
+     *
+     * @param version the commit version
+     * @param clock   the clock, to find the oldest version readers still need
+     */
+    void publishVersion(long version, VersionClock clock) {
+        BalanceVersion head = new BalanceVersion(version, getBalance(), historySize, versions);
+        versions = head;
+        if (++versionCount > 8) {
+            // Keep the newest version the oldest reader can see, and everything after it
+            long oldest = clock.oldestReader();
+            BalanceVersion keep = head;
+            int count = 1;
+            while (keep.version > oldest && keep.previous != null) {
+                keep = keep.previous;
+                count++;
+            }
+            keep.previous = null;
+            versionCount = count;
+        }
+    }
+
+    /**
+     * Get the newest balance version at or below a version.
+     *
+     * @param version the snapshot version
+     * @return the balance version, or null if the account has none that old
+     */
+    BalanceVersion versionAt(long version) {
+        BalanceVersion current = versions;
+        while (current != null && current.version > version) {
+            current = current.previous;
+        }
+        return current;
+    }
+
+    /**
+     * Open a cursor over the first records of the account's history.
+     *
+     * @param size the number of records, at most the current history size
+     * @return a cursor over those records
+     */
+    HistoryCursor historyPrefix(int size) {
+        HistoryIndex index = historyIndex; // Read after the caller's view of the size, so it holds the records
+        return new HistoryCursor(index, 0, size, Long.MIN_VALUE, Long.MAX_VALUE, 0, size);
+    }
+
+    /**
+     * Whether a transfer has to hold this account's lock while it updates the balance.
+     *
+     * @return true if the account must be locked during transfers
+     */
+    boolean needsTransferLock() {
+        return true;
+    }
+
+    /**
+     * The balance of a locking account together with the lock that guards it, so reading the balance touches
+     * a single object.
+     */
+    private static final class LockedBalance extends StampedLock {
+        private static final long serialVersionUID = 1L;
+
+        private double balance; // Guarded by this lock
+
+        LockedBalance(double balance) {
+            this.balance = balance;
+        }
+    }
+
+    /**
+     * The balance and history size of an account as of one commit version.
+     */
+    static final class BalanceVersion {
+        final long version;
+        final double balance;
+        final int historySize;
+        BalanceVersion previous; // Older version, cut once no reader can need it
+
+        BalanceVersion(long version, double balance, int historySize, BalanceVersion previous) {
+            this.version = version;
+            this.balance = balance;
+            this.historySize = historySize;
+            this.previous = previous;
+        }
     }
 }
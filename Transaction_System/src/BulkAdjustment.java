@@ -0,0 +1,173 @@
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress and outcome of an {@link AccountAdjustment} applied to every account of a transaction system.
+ * <p>
+ * The counters are updated as each account is processed, so they can be read while the operation runs to
+ * report progress.
+ */
+public class BulkAdjustment {
+
+    private final int accountCount;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder processed = new LongAdder(); // Accounts done, whatever the outcome
+    private final LongAdder applied = new LongAdder(); // Accounts whose balance changed
+    private final LongAdder rejected = new LongAdder(); // Debits larger than the balance, or invalid amounts
+    private final LongAdder failed = new LongAdder(); // Changes undone because the journal failed
+    private final DoubleAdder credited = new DoubleAdder();
+    private final DoubleAdder debited = new DoubleAdder();
+    private volatile long elapsedNanos = -1; // Set once the operation is done
+    private volatile ForkJoinTask<BulkAdjustment> task;
+
+    BulkAdjustment(int accountCount) {
+        this.accountCount = accountCount;
+    }
+
+    /**
+     * Get the number of accounts the operation covers.
+     *
+     * @return the number of accounts
+     */
+    public int getAccountCount() {
+        return accountCount;
+    }
+
+    /**
+     * Get the number of accounts processed so far.
+     *
+     * @return the number of processed accounts
+     */
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    /**
+     * Get the fraction of accounts processed so far.
+     *
+     * @return a value from 0 to 1
+     */
+    public double getProgress() {
+        return accountCount == 0 ? 1 : Math.min(1, (double) processed.sum() / accountCount);
+    }
+
+    /**
+     * Get the number of accounts whose balance was changed.
+     *
+     * @return the number of applied changes
+     */
+    public long getAppliedCount() {
+        return applied.sum();
+    }
+
+    /**
+     * Get the number of accounts left unchanged because the computed debit was larger than the balance or the
+     * amount was not a finite number.
+     *
+     * @return the number of rejected changes
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Get the number of changes that were undone because they could not be journaled.
+     *
+     * @return the number of failed changes
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Get the total amount credited to accounts.
+     *
+     * @return the credited amount
+     */
+    public double getCredited() {
+        return credited.sum();
+    }
+
+    /**
+     * Get the total amount debited from accounts.
+     *
+     * @return the debited amount, as a positive number
+     */
+    public double getDebited() {
+        return debited.sum();
+    }
+
+    /**
+     * Check whether every account has been processed.
+     *
+     * @return true if the operation is done
+     */
+    public boolean isDone() {
+        return elapsedNanos >= 0;
+    }
+
+    /**
+     * Get how long the operation took, or has taken so far.
+     *
+     * @param unit the unit of the result
+     * @return the elapsed time
+     */
+    public long getElapsed(TimeUnit unit) {
+        long elapsed = elapsedNanos;
+        return unit.convert(elapsed >= 0 ? elapsed : System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Wait for the operation to finish.
+     *
+     * @return this operation, done
+     */
+    public BulkAdjustment await() {
+        return task.join();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Bulk adjustment: %d/%d accounts, %d applied, %d rejected, %d failed, "
+                        + "credited $%.2f, debited $%.2f, %d ms", getProcessedCount(), accountCount,
+                getAppliedCount(), getRejectedCount(), getFailedCount(), getCredited(), getDebited(),
+                getElapsed(TimeUnit.MILLISECONDS));
+    }
+
+    void start(ForkJoinTask<BulkAdjustment> task) {
+        this.task = task;
+    }
+
+    void recordApplied(double amount) {
+        applied.increment();
+        if (amount > 0) {
+            credited.add(amount);
+        } else {
+            debited.add(-amount);
+        }
+    }
+
+    void recordRejected() {
+        rejected.increment();
+    }
+
+    void recordFailed(double amount) {
+        failed.increment();
+        applied.decrement();
+        if (amount > 0) {
+            credited.add(-amount);
+        } else {
+            debited.add(amount);
+        }
+    }
+
+    void recordProcessed(int count) {
+        processed.add(count);
+    }
+
+    void finish() {
+        elapsedNanos = System.nanoTime() - startNanos;
+    }
+}
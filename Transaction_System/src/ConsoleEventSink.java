@@ -0,0 +1,46 @@
+import java.io.PrintStream;
+
+/**
+ * Writes events to the console: warnings and errors to standard error, everything else to standard output.
+ * <p>
+ * Lines are built in a reused buffer, and each stream is flushed once per drained run of events rather
+ * than once per line.
+ */
+public class ConsoleEventSink implements EventSink {
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final StringBuilder line = new StringBuilder(128); // Only used by the drain thread
+
+    /**
+     * Create a sink that writes to {@link System#out} and {@link System#err}.
+     */
+    public ConsoleEventSink() {
+        this(System.out, System.err);
+    }
+
+    /**
+     * Create a sink that writes to the given streams.
+     *
+     * @param out the stream for debug and info events
+     * @param err the stream for warnings and errors
+     */
+    public ConsoleEventSink(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    @Override
+    public void accept(TransferEvent event) {
+        line.setLength(0);
+        event.getType().format(event, line);
+        line.append(System.lineSeparator());
+        (event.getLevel().isAtLeast(EventLevel.WARN) ? err : out).append(line);
+    }
+
+    @Override
+    public void endOfBatch() {
+        out.flush();
+        err.flush();
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * Severity of a transfer event, in increasing order.
+ */
+public enum EventLevel {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR,
+    OFF; // Only used as a threshold, to disable all events
+
+    /**
+     * Whether events of this level pass a threshold.
+     *
+     * @param threshold the lowest level to keep
+     * @return true if events of this level are kept
+     */
+    public boolean isAtLeast(EventLevel threshold) {
+        return compareTo(threshold) >= 0;
+    }
+}
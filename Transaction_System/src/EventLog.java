@@ -0,0 +1,242 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous event log backed by a preallocated ring buffer.
+ * <p>
+ * Publishing an event checks the level threshold and sampling rate, claims a slot with a single
+ * compare-and-set and fills in primitive fields: it does no formatting, no I/O and no allocation. A
+ * background thread drains the ring in order and hands each event to the {@link EventSink}. When the ring
+ * is full the event is dropped and counted rather than blocking the publisher.
+ */
+public class EventLog implements AutoCloseable {
+
+    private static final long IDLE_PARK_NANOS = 1_000_000; // Drain thread sleep when the ring is empty
+    private static EventLog console; // Shared default log, created on first use
+
+    private final TransferEvent[] ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // Next position to claim
+    private volatile long tail; // Next position to drain, written only by the drain thread
+    private final EventSink sink;
+    private final Thread drainThread;
+    private final LongAdder dropped = new LongAdder();
+    private volatile EventLevel threshold;
+    private volatile int sampleEvery; // Keep 1 in this many events below WARN
+    private volatile boolean closed;
+
+    /**
+     * Create a log and start its drain thread.
+     *
+     * @param sink     the sink to hand events to
+     * @param capacity the number of slots, rounded up to a power of two
+     * @param level    the lowest level to keep
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public EventLog(EventSink sink, int capacity, EventLevel level) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30. Provided: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        size = Math.max(size, 1);
+        this.ring = new TransferEvent[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new TransferEvent(i);
+        }
+        this.mask = size - 1;
+        this.sink = sink;
+        this.threshold = level;
+        this.sampleEvery = 1;
+        this.drainThread = new Thread(this::drain, "Event Log");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    /**
+     * Get the shared log that writes to the console at {@link EventLevel#INFO}, used by transaction systems
+     * that are not given a log of their own.
+     *
+     * @return the shared console log
+     */
+    public static synchronized EventLog console() {
+        if (console == null) {
+            console = new EventLog(new ConsoleEventSink(), 8192, EventLevel.INFO);
+        }
+        return console;
+    }
+
+    /**
+     * Set the lowest level to keep. Events below it are discarded before anything is written.
+     *
+     * @param level the new threshold
+     */
+    public void setLevel(EventLevel level) {
+        threshold = level;
+    }
+
+    public EventLevel getLevel() {
+        return threshold;
+    }
+
+    /**
+     * Keep only a random 1 in {@code n} of the events below {@link EventLevel#WARN}. Warnings and errors are
+     * always kept.
+     *
+     * @param n the sampling interval, 1 to keep everything
+     * @throws IllegalArgumentException if n is not positive
+     */
+    public void setSampleEvery(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Sampling interval must be positive. Provided: " + n);
+        }
+        sampleEvery = n;
+    }
+
+    /**
+     * Whether events of a type are currently kept at all, so callers can skip gathering their fields.
+     *
+     * @param type the event type
+     * @return true if the type passes the level threshold
+     */
+    public boolean isEnabled(EventType type) {
+        return type.getLevel().isAtLeast(threshold);
+    }
+
+    /**
+     * Publish a transfer event.
+     */
+    public void publish(EventType type, int fromAccountId, int toAccountId, double amount) {
+        publish(type, fromAccountId, toAccountId, amount, 0, 0, 0, null);
+    }
+
+    /**
+     * Publish a failure event.
+     */
+    public void publish(EventType type, int fromAccountId, int toAccountId, double amount, Throwable error) {
+        publish(type, fromAccountId, toAccountId, amount, 0, 0, 0, error);
+    }
+
+    /**
+     * Publish a transfer rejected for insufficient funds, without creating an exception to describe it.
+     *
+     * @param available the balance of the source account when the transfer was rejected
+     */
+    public void publishInsufficientFunds(int fromAccountId, int toAccountId, double amount, double available) {
+        publish(EventType.INSUFFICIENT_FUNDS, fromAccountId, toAccountId, amount, available, 0, 0, null);
+    }
+
+    /**
+     * Publish a batch event.
+     */
+    public void publishBatch(EventType type, int count, int rejected, Throwable error) {
+        publish(type, 0, 0, 0, 0, count, rejected, error);
+    }
+
+    /**
+     * Publish a multi-leg posting event.
+     *
+     * @param accountId the account that rejected the posting, or 0
+     * @param legs      the number of legs
+     */
+    public void publishPosting(EventType type, int accountId, int legs) {
+        publish(type, accountId, 0, 0, 0, legs, 0, null);
+    }
+
+    /**
+     * Get the number of events dropped because the ring was full.
+     *
+     * @return the dropped event count
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Wait until every event published so far has been handed to the sink.
+     */
+    public void flush() {
+        long target = head.get();
+        while (tail < target && drainThread.isAlive()) {
+            LockSupport.unpark(drainThread);
+            Thread.onSpinWait();
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Drain the remaining events and stop the drain thread. The shared console log is never closed.
+     */
+    @Override
+    public void close() {
+        if (this == console) {
+            flush();
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(drainThread);
+        try {
+            drainThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void publish(EventType type, int fromAccountId, int toAccountId, double amount, double available,
+                         int count, int rejected, Throwable error) {
+        EventLevel level = type.getLevel();
+        if (!level.isAtLeast(threshold)) {
+            return;
+        }
+        int every = sampleEvery;
+        if (every > 1 && !level.isAtLeast(EventLevel.WARN) && ThreadLocalRandom.current().nextInt(every) != 0) {
+            return;
+        }
+        while (true) {
+            long position = head.get();
+            TransferEvent slot = ring[(int) position & mask];
+            long sequence = slot.sequence;
+            if (sequence == position) {
+                if (head.compareAndSet(position, position + 1)) {
+                    slot.set(type, Thread.currentThread().getName(), System.currentTimeMillis(), fromAccountId,
+                            toAccountId, amount, available, count, rejected, error);
+                    slot.sequence = position + 1; // Hand the slot to the drain thread
+                    return;
+                }
+            } else if (sequence < position) {
+                dropped.increment(); // The drain thread has not freed this slot yet, so the ring is full
+                return;
+            }
+            // Another publisher claimed this position first; try the next one
+        }
+    }
+
+    private void drain() {
+        long position = tail;
+        while (true) {
+            TransferEvent slot = ring[(int) position & mask];
+            if (slot.sequence != position + 1) {
+                if (closed && head.get() == position) {
+                    return;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            // Hand over every ready event, then let the sink flush once
+            do {
+                try {
+                    sink.accept(slot);
+                } catch (RuntimeException e) {
+                    dropped.increment();
+                }
+                slot.set(null, null, 0, 0, 0, 0, 0, 0, 0, null); // Do not keep the thread name or error alive
+                slot.sequence = position + ring.length; // Free the slot for the next lap
+                position++;
+                slot = ring[(int) position & mask];
+            } while (slot.sequence == position + 1);
+            tail = position;
+            sink.endOfBatch();
+        }
+    }
+}
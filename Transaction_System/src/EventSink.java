@@ -0,0 +1,23 @@
+/**
+ * Receives the events drained from an {@link EventLog}, one at a time on the log's drain thread.
+ */
+public interface EventSink {
+
+    /**
+     * A sink that ignores every event.
+     */
+    EventSink DISCARD = event -> { };
+
+    /**
+     * Handle an event. The event is reused after this method returns.
+     *
+     * @param event the event
+     */
+    void accept(TransferEvent event);
+
+    /**
+     * Called after each run of drained events, so the sink can flush any buffered output.
+     */
+    default void endOfBatch() {
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * The kinds of event the transaction system reports, each with a fixed level and message.
+ * <p>
+ * Events carry only primitive fields and references that already exist, and are turned into text by
+ * {@link #format} on the drain thread, never on the thread that published them.
+ */
+public enum EventType {
+    TRANSFER_STARTED(EventLevel.DEBUG) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Starting transfer of $");
+            appendAmount(event.getAmount(), out);
+            out.append(" from Account ").append(event.getFromAccountId())
+                    .append(" to Account ").append(event.getToAccountId());
+        }
+    },
+    TRANSFER_COMPLETED(EventLevel.INFO) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Transfer of $");
+            appendAmount(event.getAmount(), out);
+            out.append(" from Account ").append(event.getFromAccountId())
+                    .append(" to Account ").append(event.getToAccountId()).append(" completed successfully.");
+        }
+    },
+    ACCOUNT_NOT_FOUND(EventLevel.WARN) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Account ").append(event.getFromAccountId()).append(" not found in the system");
+        }
+    },
+    SAME_ACCOUNT(EventLevel.WARN) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Cannot transfer money to the same account.");
+        }
+    },
+    INVALID_AMOUNT(EventLevel.WARN) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Transfer amount must be greater than 0.");
+        }
+    },
+    TRANSFER_FAILED(EventLevel.WARN) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Error during transfer: ").append(event.getError().getMessage());
+        }
+    },
+    INSUFFICIENT_FUNDS(EventLevel.WARN) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Error during transfer: Account ").append(event.getFromAccountId())
+                    .append(": Insufficient funds. Requested: $");
+            appendAmount(event.getAmount(), out);
+            out.append(", Available: $");
+            appendAmount(event.getAvailable(), out);
+        }
+    },
+    LOCK_FAILED(EventLevel.ERROR) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Error: ").append(event.getError().getMessage());
+        }
+    },
+    DEPOSIT_ROLLED_BACK(EventLevel.INFO) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Rolled back deposit of $");
+            appendAmount(event.getAmount(), out);
+            out.append(" from Account ").append(event.getToAccountId());
+        }
+    },
+    WITHDRAWAL_ROLLED_BACK(EventLevel.INFO) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Rolled back withdrawal of $");
+            appendAmount(event.getAmount(), out);
+            out.append(" to Account ").append(event.getFromAccountId());
+        }
+    },
+    HOLD_RELEASED(EventLevel.INFO) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Released hold of $");
+            appendAmount(event.getAmount(), out);
+            out.append(" on Account ").append(event.getFromAccountId());
+        }
+    },
+    ROLLBACK_FAILED(EventLevel.ERROR) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Rollback failed: ").append(event.getError().getMessage());
+        }
+    },
+    BATCH_COMPLETED(EventLevel.INFO) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Batch of ").append(event.getCount()).append(" transfers completed: ")
+                    .append(event.getCount() - event.getRejected()).append(" succeeded, ")
+                    .append(event.getRejected()).append(" rejected.");
+        }
+    },
+    BULK_ADJUSTMENT_COMPLETED(EventLevel.INFO) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Bulk adjustment of ").append(event.getCount()).append(" accounts completed: ")
+                    .append(event.getRejected()).append(" rejected.");
+        }
+    },
+    POSTING_COMPLETED(EventLevel.INFO) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Posting of ").append(event.getCount()).append(" legs completed.");
+        }
+    },
+    POSTING_REJECTED(EventLevel.WARN) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Posting of ").append(event.getCount()).append(" legs rejected: insufficient funds");
+            if (event.getFromAccountId() != 0) {
+                out.append(" in Account ").append(event.getFromAccountId());
+            }
+        }
+    },
+    BATCH_FAILED(EventLevel.ERROR) {
+        @Override
+        void appendMessage(TransferEvent event, StringBuilder out) {
+            out.append("Error during batch: ").append(event.getError().getMessage());
+        }
+    };
+
+    private final EventLevel level;
+
+    EventType(EventLevel level) {
+        this.level = level;
+    }
+
+    /**
+     * Get the level of this kind of event.
+     *
+     * @return the event level
+     */
+    public EventLevel getLevel() {
+        return level;
+    }
+
+    /**
+     * Write an event as a log line, prefixed with the name of the thread that published it.
+     *
+     * @param event the event to format
+     * @param out   the builder to append to
+     */
+    public void format(TransferEvent event, StringBuilder out) {
+        out.append(event.getThreadName()).append(' ');
+        appendMessage(event, out);
+    }
+
+    abstract void appendMessage(TransferEvent event, StringBuilder out);
+
+    /**
+     * Append an amount with two decimals without going through {@link String#format}.
+     */
+    private static void appendAmount(double amount, StringBuilder out) {
+        long cents = Money.toCents(amount);
+        if (cents < 0) {
+            out.append('-');
+            cents = -cents;
+        }
+        long fraction = cents % Money.CENTS_PER_DOLLAR;
+        out.append(cents / Money.CENTS_PER_DOLLAR).append('.');
+        if (fraction < 10) {
+            out.append('0');
+        }
+        out.append(fraction);
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * A forward-only cursor over a stable snapshot of an account's transaction history.
+ * <p>
+ * The cursor reads records straight from the shared {@link HistoryStore} one at a time, so walking it neither
+ * copies the history nor takes any lock, and transactions added after the cursor was opened are not seen.
+ * The fields of the current record are exposed directly; {@link #toTransaction()} creates an object only
+ * when one is needed.
+ * <pre>
+ *   HistoryCursor cursor = account.history(from, to, 0, 50);
+ *   while (cursor.next()) {
+ *       total += cursor.getAmount();
+ *   }
+ * </pre>
+ */
+public final class HistoryCursor {
+
+    private final HistoryStore store;
+    private final HistoryIndex index;
+    private HistoryIndex.Page page; // Page holding the current position, read back once if it was spilled
+    private int pageNumber = -1;
+    private final long fromTime;
+    private final long toTime;
+    private int position;
+    private final int end;
+    private int skip; // Matching records still to skip for the offset
+    private int remaining; // Matching records still to return for the limit
+
+    private int fromAccountId;
+    private int toAccountId;
+    private double amount;
+    private long stamp;
+    private long timestamp;
+    private long sequence;
+    private boolean reversed;
+
+    HistoryCursor(HistoryIndex index, int start, int end, long fromTime, long toTime, int offset, int limit) {
+        this.store = index.store;
+        this.index = index;
+        this.position = start;
+        this.end = end;
+        this.fromTime = fromTime;
+        this.toTime = toTime;
+        this.skip = offset;
+        this.remaining = limit;
+    }
+
+    /**
+     * Move to the next matching record.
+     *
+     * @return true if there is a current record, false when the cursor is exhausted
+     */
+    public boolean next() {
+        while (remaining > 0 && position < end) {
+            int current = position++;
+            if (current >>> HistoryIndex.PAGE_SHIFT != pageNumber) {
+                pageNumber = current >>> HistoryIndex.PAGE_SHIFT;
+                page = index.page(pageNumber);
+            }
+            store.load(page.ids[current & (HistoryIndex.PAGE_SIZE - 1)], this);
+            if (timestamp < fromTime || timestamp > toTime) {
+                continue;
+            }
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            remaining--;
+            return true;
+        }
+        return false;
+    }
+
+    public int getFromAccountId() {
+        return fromAccountId;
+    }
+
+    public int getToAccountId() {
+        return toAccountId;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getStamp() {
+        return stamp;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isReversed() {
+        return reversed;
+    }
+
+    /**
+     * Create a transaction object for the current record.
+     *
+     * @return the current record as a transaction
+     */
+    public Transaction toTransaction() {
+        return new Transaction(fromAccountId, toAccountId, amount, stamp, sequence, reversed);
+    }
+
+    /**
+     * Set the current record, called by the store.
+     */
+    void set(int fromAccountId, int toAccountId, double amount, long stamp, long sequence, boolean reversed) {
+        this.fromAccountId = fromAccountId;
+        this.toAccountId = toAccountId;
+        this.amount = amount;
+        this.stamp = stamp;
+        this.timestamp = HybridLogicalClock.toMillis(stamp);
+        this.sequence = sequence;
+        this.reversed = reversed;
+    }
+}
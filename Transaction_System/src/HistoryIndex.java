@@ -0,0 +1,206 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * The store and record index of an account's history: the record IDs in the order they were added, with a
+ * running maximum of their timestamps as search keys.
+ * <p>
+ * The index is split into pages of {@link #PAGE_SIZE} records. Slots below the published history size are
+ * never changed, and growing or moving to another store publishes a new index. When the store spills history
+ * to disk, full pages are written to the store's spill file in the background and dropped from the heap, so
+ * only the last page of each account stays in memory; a page switches from memory to disk by having its slot
+ * cleared after its file offset has been set, and readers that find the slot empty read the page back.
+ */
+final class HistoryIndex {
+
+    static final int PAGE_SHIFT = 9;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int FIRST_PAGE_CAPACITY = 4;
+    private static final int NEXT_PAGE_CAPACITY = 64;
+    private static final VarHandle PAGES = MethodHandles.arrayElementVarHandle(Page[].class);
+
+    final HistoryStore store; // Null until the first record is added or a store is attached
+    private final Page[] pages; // Null once a page has been spilled
+    private final long[] spillOffsets; // Where each spilled page starts in the store's index spill file
+    private final long[] firstKeys; // First key of each spilled page, so searches only read one page back
+
+    HistoryIndex(HistoryStore store) {
+        this(store, new Page[4]);
+        pages[0] = new Page(FIRST_PAGE_CAPACITY);
+    }
+
+    private HistoryIndex(HistoryStore store, Page[] pages) {
+        this.store = store;
+        this.pages = pages;
+        this.spillOffsets = new long[pages.length];
+        this.firstKeys = new long[pages.length];
+    }
+
+    /**
+     * Copy the first records of the index into a new index for another store, with every page in memory.
+     * The caller rewrites the IDs if the records themselves move to the new store.
+     */
+    HistoryIndex copy(HistoryStore store, int size) {
+        HistoryIndex copy = new HistoryIndex(store);
+        copy = copy.ensureCapacity(0, size);
+        for (int position = 0; position < size; position++) {
+            Page page = page(position >>> PAGE_SHIFT);
+            copy.set(position, page.ids[position & PAGE_MASK], page.keys[position & PAGE_MASK]);
+        }
+        return copy;
+    }
+
+    /**
+     * Make room for more records, returning this index or a larger one that replaces it. Called with the
+     * account's history lock held.
+     *
+     * @param size  the number of records in the index
+     * @param count the number of records about to be added
+     */
+    HistoryIndex ensureCapacity(int size, int count) {
+        int end = size + count;
+        int lastPage = (end - 1) >>> PAGE_SHIFT;
+        HistoryIndex index = this;
+        if (count > 0 && lastPage >= pages.length) {
+            index = new HistoryIndex(store, new Page[Math.max(pages.length * 2, lastPage + 1)]);
+            System.arraycopy(pages, 0, index.pages, 0, pages.length);
+            System.arraycopy(spillOffsets, 0, index.spillOffsets, 0, pages.length);
+            System.arraycopy(firstKeys, 0, index.firstKeys, 0, pages.length);
+        }
+        for (int p = size >>> PAGE_SHIFT; count > 0 && p <= lastPage; p++) {
+            int needed = Math.min(PAGE_SIZE, end - (p << PAGE_SHIFT));
+            Page page = index.pages[p];
+            if (page == null) {
+                page = new Page(Math.max(needed, p == 0 ? FIRST_PAGE_CAPACITY : NEXT_PAGE_CAPACITY));
+            } else if (page.ids.length < needed) {
+                page = page.grow(Math.min(PAGE_SIZE, Math.max(page.ids.length * 2, needed)),
+                        Math.max(0, size - (p << PAGE_SHIFT)));
+            } else {
+                continue;
+            }
+            if (index == this) {
+                // Swapping a page readers may hold needs a new index, like growing the page array
+                index = new HistoryIndex(store, pages.clone());
+                System.arraycopy(spillOffsets, 0, index.spillOffsets, 0, pages.length);
+                System.arraycopy(firstKeys, 0, index.firstKeys, 0, pages.length);
+            }
+            index.pages[p] = page;
+        }
+        return index;
+    }
+
+    /**
+     * Write a record into an unpublished slot. Called with the account's history lock held.
+     */
+    void set(int position, long recordId, long key) {
+        Page page = pages[position >>> PAGE_SHIFT];
+        page.ids[position & PAGE_MASK] = recordId;
+        page.keys[position & PAGE_MASK] = key;
+    }
+
+    /**
+     * Rewrite the record ID at a position of a copy that has not been published yet, keeping its key.
+     */
+    void setId(int position, long recordId) {
+        pages[position >>> PAGE_SHIFT].ids[position & PAGE_MASK] = recordId;
+    }
+
+    /**
+     * Get the page a position is in, if the position ends a page, so it can be spilled.
+     *
+     * @return the full page, or null if the position does not end a page
+     */
+    Page completedPage(int position) {
+        return (position & PAGE_MASK) == PAGE_MASK ? pages[position >>> PAGE_SHIFT] : null;
+    }
+
+    /**
+     * Note that a full page has been written to the store's spill file and drop it from the heap. Called with
+     * the account's history lock held.
+     */
+    void pageSpilled(int pageNumber, long offset) {
+        Page page = pages[pageNumber];
+        spillOffsets[pageNumber] = offset;
+        firstKeys[pageNumber] = page.keys[0];
+        PAGES.setRelease(pages, pageNumber, null); // Readers that see the empty slot also see the offset
+    }
+
+    /**
+     * Get a page, reading it back from the spill file if it has been spilled.
+     */
+    Page page(int pageNumber) {
+        Page page = (Page) PAGES.getAcquire(pages, pageNumber);
+        return page != null ? page : store.readIndexPage(spillOffsets[pageNumber]);
+    }
+
+    /**
+     * Get the record ID at a position.
+     */
+    long idAt(int position) {
+        return page(position >>> PAGE_SHIFT).ids[position & PAGE_MASK];
+    }
+
+    /**
+     * Find the first position in [from, to) whose key is at least the given value. At most one spilled page
+     * is read back.
+     */
+    int firstKeyAtLeast(long key, int from, int to) {
+        if (from >= to) {
+            return from;
+        }
+        // Find the last page in range whose first key is below the key; the answer is in it or right after it
+        int low = from >>> PAGE_SHIFT;
+        int high = (to - 1) >>> PAGE_SHIFT;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (firstKey(mid) < key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        Page page = page(low);
+        int pageStart = low << PAGE_SHIFT;
+        int lowRow = Math.max(from, pageStart) - pageStart;
+        int highRow = Math.min(to, pageStart + PAGE_SIZE) - pageStart;
+        while (lowRow < highRow) {
+            int mid = (lowRow + highRow) >>> 1;
+            if (page.keys[mid] < key) {
+                lowRow = mid + 1;
+            } else {
+                highRow = mid;
+            }
+        }
+        return pageStart + lowRow;
+    }
+
+    private long firstKey(int pageNumber) {
+        Page page = (Page) PAGES.getAcquire(pages, pageNumber);
+        return page != null ? page.keys[0] : firstKeys[pageNumber];
+    }
+
+    /**
+     * One page of the index.
+     */
+    static final class Page {
+        final long[] ids; // Record IDs in the store
+        final long[] keys; // Running maximum of the record timestamps
+
+        Page(int capacity) {
+            this(new long[capacity], new long[capacity]);
+        }
+
+        Page(long[] ids, long[] keys) {
+            this.ids = ids;
+            this.keys = keys;
+        }
+
+        Page grow(int capacity, int size) {
+            Page grown = new Page(capacity);
+            System.arraycopy(ids, 0, grown.ids, 0, size);
+            System.arraycopy(keys, 0, grown.keys, 0, size);
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,511 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * A shared, column-oriented store of transaction records.
+ * <p>
+ * Each transfer is stored once, as one row across primitive column arrays grouped in fixed-size chunks, and
+ * is identified by a record ID that both accounts keep in their history index. Appending takes an ID with a
+ * single atomic increment, claims the ID's row by setting its flags and writes the row without locking. When
+ * a spill directory is configured, only the newest {@code maxResidentRecords} records are kept in memory:
+ * once a chunk is complete and the memory limit is exceeded, the oldest chunks are written to a spill file and
+ * dropped from the heap. The accounts' history indexes spill their full pages to a second file the same way.
+ * Spilling runs on a background thread, so the transfers that fill a chunk or a page never wait for the disk
+ * while they hold account locks.
+ * <p>
+ * Record IDs are handed out in append order across all threads, so they double as a global sequence number:
+ * a reader that remembers the last ID it has seen can pick up every later record with {@link #forEachSince}.
+ * An ID is only left without a record, as a hole, if its chunk was spilled before the appending thread got
+ * to claim its row; the thread then takes another ID. Each record carries a {@link HybridLogicalClock} stamp
+ * rather than a plain timestamp.
+ */
+public class HistoryStore implements AutoCloseable {
+
+    private static final int CHUNK_SHIFT = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int SPILL_RECORD_SIZE = 32;
+    private static final byte REVERSED = 1;
+    private static final byte WRITTEN = 2; // Set last, once the rest of the row is in place
+    private static final byte CLAIMED = 4; // The row is being written by the thread that took its ID
+    private static final byte HOLE = 8; // The chunk was sealed before the row was claimed, so it has no record
+    private static final VarHandle FLAGS = MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final SpillTask STOP = () -> { };
+
+    private final AtomicLong nextId = new AtomicLong(); // ID of the next record to append
+    private volatile AtomicReferenceArray<Chunk> directory = new AtomicReferenceArray<>(16); // Chunks by index
+    private final Path spillDirectory; // Null if history is never spilled
+    private final int maxResidentChunks;
+    private volatile long spilledRecords; // Records below this ID live only in the spill file
+    private volatile FileChannel spillFile; // Created on first spill
+    private FileChannel indexSpillFile; // Created by the spill thread on the first index page spill
+    private long indexSpillEnd; // Length of the index spill file, only used by the spill thread
+    private final BlockingQueue<SpillTask> spillTasks = new LinkedBlockingQueue<>();
+    private final AtomicBoolean chunkSpillQueued = new AtomicBoolean(); // Set while a chunk spill is queued
+    private final Thread spillThread; // Null if history is never spilled
+    private volatile IOException spillFailure; // First spill error; nothing more is spilled after it
+
+    /**
+     * Create a store that keeps all history in memory.
+     */
+    public HistoryStore() {
+        this(null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a store that keeps the newest records in memory and spills older ones to disk.
+     *
+     * @param spillDirectory     the directory for the spill file, or null to keep everything in memory
+     * @param maxResidentRecords the number of records to keep in memory, rounded up to whole chunks
+     */
+    public HistoryStore(Path spillDirectory, long maxResidentRecords) {
+        if (maxResidentRecords <= 0) {
+            throw new IllegalArgumentException(
+                    "Resident record limit must be positive. Provided: " + maxResidentRecords);
+        }
+        this.spillDirectory = spillDirectory;
+        this.maxResidentChunks = (int) Math.min(Integer.MAX_VALUE,
+                (maxResidentRecords + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        if (spillDirectory != null) {
+            spillThread = new Thread(this::runSpills, "History spill");
+            spillThread.setDaemon(true);
+            spillThread.start();
+        } else {
+            spillThread = null;
+        }
+    }
+
+    /**
+     * Store a transaction record that only has a wall-clock time, stamping it with the first stamp of its
+     * millisecond.
+     *
+     * @return the record ID
+     */
+    public long append(int fromAccountId, int toAccountId, double amount, long timestamp, boolean isReversed) {
+        return appendStamped(fromAccountId, toAccountId, amount, HybridLogicalClock.fromMillis(timestamp),
+                isReversed);
+    }
+
+    /**
+     * Store a transaction record.
+     *
+     * @param stamp the hybrid logical clock stamp of the transaction
+     * @return the record ID, which is also the transaction's sequence number
+     */
+    long appendStamped(int fromAccountId, int toAccountId, double amount, long stamp, boolean isReversed) {
+        while (true) {
+            long id = nextId.getAndIncrement();
+            if ((id & CHUNK_MASK) == 0 && id > 0 && spillDirectory != null
+                    && chunkSpillQueued.compareAndSet(false, true)) {
+                spillTasks.add(this::spillOldChunks); // The chunk before this one may be due for spilling now
+            }
+            Chunk chunk = chunkForWrite(id);
+            int row = (int) (id & CHUNK_MASK);
+            if (chunk == null || !FLAGS.compareAndSet(chunk.flags, row, (byte) 0, CLAIMED)) {
+                continue; // The spill thread sealed the chunk first and made the ID a hole
+            }
+            chunk.from[row] = fromAccountId;
+            chunk.to[row] = toAccountId;
+            chunk.amount[row] = amount;
+            chunk.stamp[row] = stamp;
+            FLAGS.setRelease(chunk.flags, row, isReversed ? REVERSED | WRITTEN : WRITTEN);
+            return id;
+        }
+    }
+
+    /**
+     * Read a record back as a transaction. The record must have been appended before its ID was published.
+     *
+     * @param id the record ID
+     * @return the transaction
+     */
+    public Transaction read(long id) {
+        Chunk chunk = id < spilledRecords ? null : directory.get((int) (id >>> CHUNK_SHIFT));
+        if (chunk == null) {
+            return readSpilled(id);
+        }
+        int row = (int) (id & CHUNK_MASK);
+        return new Transaction(chunk.from[row], chunk.to[row], chunk.amount[row], chunk.stamp[row], id,
+                (chunk.flags[row] & REVERSED) != 0);
+    }
+
+    /**
+     * Load a record into a cursor without creating any objects, unless the record has been spilled.
+     *
+     * @param id     the record ID
+     * @param cursor the cursor to fill
+     */
+    void load(long id, HistoryCursor cursor) {
+        Chunk chunk = id < spilledRecords ? null : directory.get((int) (id >>> CHUNK_SHIFT));
+        if (chunk == null) {
+            Transaction transaction = readSpilled(id);
+            cursor.set(transaction.getFromAccountId(), transaction.getToAccountId(), transaction.getAmount(),
+                    transaction.getStamp(), id, transaction.isReversed());
+            return;
+        }
+        int row = (int) (id & CHUNK_MASK);
+        cursor.set(chunk.from[row], chunk.to[row], chunk.amount[row], chunk.stamp[row], id,
+                (chunk.flags[row] & REVERSED) != 0);
+    }
+
+    /**
+     * Get the stamp of a record.
+     *
+     * @param id the record ID
+     * @return the hybrid logical clock stamp
+     */
+    long stampOf(long id) {
+        Chunk chunk = id < spilledRecords ? null : directory.get((int) (id >>> CHUNK_SHIFT));
+        return chunk == null ? readSpilled(id).getStamp() : chunk.stamp[(int) (id & CHUNK_MASK)];
+    }
+
+    /**
+     * Read records in sequence order, starting at a sequence number and stopping before the first record that
+     * is still being written, so no record is ever skipped. Calling again with the returned sequence number
+     * continues where the previous call stopped, which is how a replica follows the store.
+     *
+     * @param sequence the sequence number of the first record to read
+     * @param limit    the most sequence numbers to read, holes included
+     * @param action   receives each record
+     * @return the sequence number to continue from
+     */
+    public long forEachSince(long sequence, int limit, Consumer<Transaction> action) {
+        long end = Math.min(nextId.get(), sequence + limit);
+        long id = sequence;
+        for (; id < end; id++) {
+            if (id < spilledRecords) {
+                Transaction transaction = readSpilled(id);
+                if (transaction != null) {
+                    action.accept(transaction);
+                }
+                continue;
+            }
+            Chunk chunk = residentChunk(id);
+            int row = (int) (id & CHUNK_MASK);
+            byte flags = chunk == null ? 0 : (byte) FLAGS.getAcquire(chunk.flags, row);
+            if ((flags & WRITTEN) != 0) {
+                action.accept(read(id));
+                continue;
+            }
+            if ((flags & HOLE) == 0) {
+                break; // Taken but not written yet, or spilled just now; the next call picks it up
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Get the number of record IDs handed out so far. That is the number of records appended, unless some
+     * IDs became holes when their chunk was spilled before they were claimed.
+     *
+     * @return the number of IDs handed out
+     */
+    public long size() {
+        return nextId.get();
+    }
+
+    /**
+     * Get the number of records that have been moved to the spill file.
+     *
+     * @return the spilled record count
+     */
+    public long getSpilledRecords() {
+        return spilledRecords;
+    }
+
+    /**
+     * Get the error that stopped history from being spilled, if any. After a spill fails, the store keeps
+     * every later record and index page in memory.
+     *
+     * @return the first spill error, or null if spilling works
+     */
+    public IOException getSpillFailure() {
+        return spillFailure;
+    }
+
+    /**
+     * Check whether the store spills history to disk, and so wants the accounts' full index pages.
+     *
+     * @return true if a spill directory is configured
+     */
+    boolean spillsHistory() {
+        return spillDirectory != null;
+    }
+
+    /**
+     * Queue a full page of an account's history index to be written to the index spill file.
+     *
+     * @param page      the page, which is never changed again
+     * @param whenDone  receives the page's offset in the file once it has been written, on the spill thread
+     */
+    void spillIndexPage(HistoryIndex.Page page, LongConsumer whenDone) {
+        spillTasks.add(() -> whenDone.accept(writeIndexPage(page)));
+    }
+
+    /**
+     * Read a spilled page of an account's history index back from the index spill file.
+     *
+     * @param offset the page's offset, as handed to the spill callback
+     * @return the page
+     */
+    HistoryIndex.Page readIndexPage(long offset) {
+        ByteBuffer buffer = ByteBuffer.allocate(HistoryIndex.PAGE_SIZE * 16);
+        // The spill thread opened the file before it handed out the offset, so a reader with the offset sees it
+        readFully(indexSpillFile, buffer, offset, "Unable to read spilled history index");
+        buffer.flip();
+        long[] ids = new long[HistoryIndex.PAGE_SIZE];
+        long[] keys = new long[HistoryIndex.PAGE_SIZE];
+        buffer.asLongBuffer().get(ids).get(keys);
+        return new HistoryIndex.Page(ids, keys);
+    }
+
+    /**
+     * Stop the spill thread once it has finished the spills queued so far, then close and delete the spill
+     * files, if any were created.
+     *
+     * @throws IOException if a file cannot be closed or deleted
+     */
+    @Override
+    public void close() throws IOException {
+        if (spillThread != null && spillThread.isAlive()) {
+            spillTasks.add(STOP);
+            boolean interrupted = false;
+            while (spillThread.isAlive()) {
+                try {
+                    spillThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true; // The files cannot be closed under a running spill
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (spillFile != null) {
+                spillFile.close();
+            }
+        } finally {
+            if (indexSpillFile != null) {
+                indexSpillFile.close();
+            }
+        }
+    }
+
+    /**
+     * Run queued spills one at a time until the store is closed. The first failure is kept and every later
+     * spill is skipped, leaving that history in memory.
+     */
+    private void runSpills() {
+        while (true) {
+            SpillTask task;
+            try {
+                task = spillTasks.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == STOP) {
+                return;
+            }
+            if (spillFailure != null) {
+                continue;
+            }
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                spillFailure = e instanceof IOException ? (IOException) e
+                        : new IOException("Unable to spill transaction history", e);
+                System.err.println(Thread.currentThread().getName()
+                        + " Error spilling transaction history, keeping it in memory: " + e.getMessage());
+            }
+        }
+    }
+
+    private Chunk residentChunk(long id) {
+        AtomicReferenceArray<Chunk> chunks = directory;
+        int index = (int) (id >>> CHUNK_SHIFT);
+        return index < chunks.length() ? chunks.get(index) : null;
+    }
+
+    /**
+     * Get the chunk an ID is written to, creating it if needed.
+     *
+     * @return the chunk, or null if it has been spilled
+     */
+    private Chunk chunkForWrite(long id) {
+        int index = (int) (id >>> CHUNK_SHIFT);
+        AtomicReferenceArray<Chunk> chunks = directory;
+        if (index < chunks.length()) {
+            Chunk chunk = chunks.get(index);
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+        synchronized (this) {
+            if (id < spilledRecords) {
+                return null; // Spilled chunks are dropped under this lock, after the count is raised
+            }
+            chunks = directory;
+            if (index >= chunks.length()) {
+                AtomicReferenceArray<Chunk> grown =
+                        new AtomicReferenceArray<>(Math.max(chunks.length() * 2, index + 1));
+                for (int i = 0; i < chunks.length(); i++) {
+                    grown.set(i, chunks.get(i));
+                }
+                directory = grown;
+                chunks = grown;
+            }
+            Chunk chunk = chunks.get(index);
+            if (chunk == null) {
+                chunk = new Chunk();
+                chunks.set(index, chunk);
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Move the oldest chunks to the spill file until the memory limit is met. Runs on the spill thread, which
+     * is the only thread that changes the spilled record count.
+     */
+    private void spillOldChunks() throws IOException {
+        chunkSpillQueued.set(false); // A chunk started from now on queues another pass
+        long firstResident = spilledRecords >>> CHUNK_SHIFT;
+        long lastStarted = (nextId.get() - 1) >>> CHUNK_SHIFT;
+        while (lastStarted - firstResident + 1 > maxResidentChunks) {
+            Chunk chunk = seal(firstResident << CHUNK_SHIFT);
+            writeSpilled(chunk, firstResident << CHUNK_SHIFT);
+            spilledRecords = (firstResident + 1) << CHUNK_SHIFT; // Readers switch to the file first
+            synchronized (this) {
+                directory.set((int) firstResident, null); // then the chunk can be dropped
+            }
+            firstResident++;
+        }
+    }
+
+    /**
+     * Make every row of a chunk final before it is spilled: IDs nobody has claimed yet become holes, and rows
+     * being written are waited for, which only takes the few stores left of an append. Runs on the spill
+     * thread.
+     *
+     * @param firstId the first ID of the chunk
+     * @return the chunk
+     */
+    private Chunk seal(long firstId) {
+        Chunk chunk = chunkForWrite(firstId); // Created if no thread got to its IDs, so none can later
+        for (int row = 0; row < CHUNK_SIZE; row++) {
+            while (true) {
+                byte flags = (byte) FLAGS.getAcquire(chunk.flags, row);
+                if ((flags & (WRITTEN | HOLE)) != 0
+                        || (flags == 0 && FLAGS.compareAndSet(chunk.flags, row, (byte) 0, HOLE))) {
+                    break;
+                }
+                Thread.yield(); // Claimed; the writer sets WRITTEN right after the row, once it gets to run
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Append an index page to the index spill file. Runs on the spill thread.
+     *
+     * @return the offset the page was written at
+     */
+    private long writeIndexPage(HistoryIndex.Page page) throws IOException {
+        if (indexSpillFile == null) {
+            Path file = Files.createTempFile(spillDirectory, "history-index", ".spill");
+            indexSpillFile = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HistoryIndex.PAGE_SIZE * 16);
+        buffer.asLongBuffer().put(page.ids).put(page.keys);
+        long offset = indexSpillEnd;
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += indexSpillFile.write(buffer, position);
+        }
+        indexSpillEnd = position;
+        return offset;
+    }
+
+    private void writeSpilled(Chunk chunk, long firstId) throws IOException {
+        if (spillFile == null) {
+            Path file = Files.createTempFile(spillDirectory, "history", ".spill");
+            spillFile = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE * SPILL_RECORD_SIZE);
+        for (int row = 0; row < CHUNK_SIZE; row++) {
+            buffer.putInt(chunk.from[row])
+                    .putInt(chunk.to[row])
+                    .putDouble(chunk.amount[row])
+                    .putLong(chunk.stamp[row])
+                    .put(chunk.flags[row])
+                    .position((row + 1) * SPILL_RECORD_SIZE);
+        }
+        buffer.flip();
+        long position = firstId * SPILL_RECORD_SIZE;
+        while (buffer.hasRemaining()) {
+            position += spillFile.write(buffer, position);
+        }
+    }
+
+    /**
+     * Read a spilled record.
+     *
+     * @return the transaction, or null if the ID is a hole
+     */
+    private Transaction readSpilled(long id) {
+        ByteBuffer buffer = ByteBuffer.allocate(SPILL_RECORD_SIZE);
+        readFully(spillFile, buffer, id * SPILL_RECORD_SIZE, "Unable to read spilled transaction history");
+        buffer.flip();
+        byte flags = buffer.get(24);
+        return (flags & HOLE) != 0 ? null : new Transaction(buffer.getInt(), buffer.getInt(), buffer.getDouble(),
+                buffer.getLong(), id, (flags & REVERSED) != 0);
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position, String message) {
+        try {
+            while (buffer.hasRemaining()) {
+                int read = file.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("Spill file ends before position " + (position + buffer.position()));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(message, e);
+        }
+    }
+
+    /**
+     * A write to a spill file, run on the spill thread.
+     */
+    private interface SpillTask {
+        void run() throws IOException;
+    }
+
+    /**
+     * A block of consecutive records, one array per column.
+     */
+    private static final class Chunk {
+        private final int[] from = new int[CHUNK_SIZE];
+        private final int[] to = new int[CHUNK_SIZE];
+        private final double[] amount = new double[CHUNK_SIZE];
+        private final long[] stamp = new long[CHUNK_SIZE];
+        private final byte[] flags = new byte[CHUNK_SIZE];
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A hybrid logical clock that stamps committed transactions.
+ * <p>
+ * A stamp keeps the wall-clock time in milliseconds in its upper 48 bits and a logical counter in its lower
+ * 16 bits, so stamps compare like timestamps but still increase when many transactions commit within the same
+ * millisecond. A stamp never falls behind the wall clock and, when a transaction depends on earlier ones, is
+ * always larger than theirs. The transaction system stamps a transfer while its balances are locked, after the
+ * newest stamp of both accounts, so the stamps of an account's transactions increase in the order they commit.
+ * Transfers between lock-free accounts are stamped once they have been applied, so stamps of transfers racing
+ * on such an account may come in either order.
+ * <p>
+ * The clock is striped: each thread ticks its own padded cell, so stamping does not make threads contend.
+ * Stamps from different cells are not ordered against each other beyond the wall clock and the dependencies
+ * passed in, and two cells can hand out the same stamp; ties are broken by the record's sequence number.
+ */
+public class HybridLogicalClock {
+
+    static final int LOGICAL_BITS = 16;
+    private static final int PADDING = 8; // Longs per cell, one cache line
+
+    private final AtomicLongArray cells; // Last stamp per cell, every PADDING-th slot
+    private final int mask;
+
+    /**
+     * Create a clock with one cell per available processor.
+     */
+    public HybridLogicalClock() {
+        int stripes = Runtime.getRuntime().availableProcessors();
+        int cellCount = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.cells = new AtomicLongArray(cellCount * PADDING);
+        this.mask = cellCount - 1;
+    }
+
+    /**
+     * Get a new stamp.
+     *
+     * @return a stamp no earlier than the wall clock
+     */
+    public long now() {
+        return tick(0);
+    }
+
+    /**
+     * Get a new stamp for a transaction that depends on earlier ones.
+     *
+     * @param after the newest stamp the transaction depends on
+     * @return a stamp larger than {@code after} and no earlier than the wall clock
+     */
+    public long tick(long after) {
+        int slot = homeCell() * PADDING;
+        long physical = fromMillis(System.currentTimeMillis());
+        long last = cells.get(slot);
+        while (true) {
+            long next = Math.max(physical, Math.max(last, after) + 1);
+            long witness = cells.compareAndExchange(slot, last, next);
+            if (witness == last) {
+                return next;
+            }
+            last = witness; // Another thread shares the cell, retry against its stamp
+        }
+    }
+
+    /**
+     * Move every cell past a stamp, so stamps handed out from now on are larger. Used after replaying a journal
+     * whose stamps may be ahead of the wall clock.
+     *
+     * @param stamp the stamp to move past
+     */
+    public void observe(long stamp) {
+        for (int cell = 0; cell <= mask; cell++) {
+            cells.accumulateAndGet(cell * PADDING, stamp, Math::max);
+        }
+    }
+
+    /**
+     * Get the wall-clock part of a stamp.
+     *
+     * @param stamp the stamp
+     * @return the time in milliseconds since the epoch
+     */
+    public static long toMillis(long stamp) {
+        return stamp >>> LOGICAL_BITS;
+    }
+
+    /**
+     * Get the logical part of a stamp.
+     *
+     * @param stamp the stamp
+     * @return the number of stamps handed out before it in the same millisecond, as far as its cell knows
+     */
+    public static int logicalOf(long stamp) {
+        return (int) (stamp & ((1 << LOGICAL_BITS) - 1));
+    }
+
+    /**
+     * Get the first stamp of a millisecond, for records that only carry a wall-clock time.
+     *
+     * @param millis the time in milliseconds since the epoch
+     * @return the stamp
+     */
+    public static long fromMillis(long millis) {
+        return millis << LOGICAL_BITS;
+    }
+
+    /**
+     * Pick the calling thread's cell.
+     */
+    private int homeCell() {
+        return AccountRegistry.hash((int) Thread.currentThread().getId()) & mask;
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent, fixed-size histogram of latencies in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets: exact below 32, then 16 buckets per power of two, which keeps
+ * the relative error of any reported percentile under about 6%. Recording is a single atomic increment and
+ * never allocates.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 32;
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKET_COUNT = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    /**
+     * Record one latency.
+     *
+     * @param nanos the latency in nanoseconds; negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.getAndIncrement(bucketOf(value));
+        totalCount.increment();
+        totalNanos.add(value);
+    }
+
+    /**
+     * Get the number of recorded values.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * Get the mean of the recorded values.
+     *
+     * @return the mean in nanoseconds, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) totalNanos.sum() / count;
+    }
+
+    /**
+     * Get the value at a percentile.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Get the largest recorded value.
+     *
+     * @return the upper bound of the highest non-empty bucket, in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getMax() {
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) {
+                return upperBoundOf(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Clear all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalNanos.reset();
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - 4;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,129 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A bank account that keeps its balance as a whole number of cents and updates it with
+ * compare-and-set operations, so deposits, withdrawals and balance reads never block.
+ * <p>
+ * The account carries no balance lock, and its account lock is only created if something locks it, such as
+ * a transfer while balance snapshots are enabled.
+ */
+public class LockFreeBankAccount extends BankAccount {
+
+    private static final VarHandle BALANCE_CENTS;
+
+    static {
+        try {
+            BALANCE_CENTS = MethodHandles.lookup()
+                    .findVarHandle(LockFreeBankAccount.class, "balanceCents", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long balanceCents; // Balance in cents, only updated through BALANCE_CENTS
+
+    /**
+     * Create a new lock-free bank account with an initial balance.
+     *
+     * @param id the account ID
+     * @param initialBalance the initial balance, rounded to the nearest cent
+     * @throws IllegalArgumentException if the initial balance is negative
+     */
+    public LockFreeBankAccount(int id, double initialBalance) {
+        super(id, initialBalance, false);
+        this.balanceCents = Money.toCents(initialBalance);
+    }
+
+    /**
+     * Get the current balance of the account in cents.
+     *
+     * @return the current balance in cents
+     */
+    public long getBalanceCents() {
+        return balanceCents;
+    }
+
+    @Override
+    public double getBalance() {
+        return Money.fromCents(balanceCents);
+    }
+
+    @Override
+    public TransferResult tryDeposit(double amount) {
+        long cents = Money.toCents(amount);
+        if (cents <= 0) {
+            return TransferResult.INVALID_AMOUNT;
+        }
+        BALANCE_CENTS.getAndAdd(this, cents);
+        return TransferResult.SUCCESS;
+    }
+
+    @Override
+    public TransferResult tryWithdraw(double amount) {
+        long cents = Money.toCents(amount);
+        if (cents <= 0) {
+            return TransferResult.INVALID_AMOUNT;
+        }
+
+        long current = balanceCents;
+        while (true) {
+            if (current < cents) {
+                return TransferResult.INSUFFICIENT_FUNDS;
+            }
+            long witness = (long) BALANCE_CENTS.compareAndExchange(this, current, current - cents);
+            if (witness == current) {
+                return TransferResult.SUCCESS;
+            }
+            current = witness; // Lost the race, retry against the latest balance
+        }
+    }
+
+    /**
+     * Compute the change from the balance and apply it with compare-and-set, computing it again if a
+     * concurrent update got in first. The change is rounded to the nearest cent.
+     */
+    @Override
+    double adjust(AccountAdjustment adjustment) {
+        long current = balanceCents;
+        while (true) {
+            double amount = adjustment.amountFor(getId(), Money.fromCents(current));
+            if (!Double.isFinite(amount)) {
+                return Double.NaN;
+            }
+            long cents = Money.toCents(amount);
+            if (cents == 0) {
+                return 0;
+            }
+            if (current + cents < 0) {
+                return Double.NaN;
+            }
+            long witness = (long) BALANCE_CENTS.compareAndExchange(this, current, current + cents);
+            if (witness == current) {
+                return Money.fromCents(cents);
+            }
+            current = witness; // Lost the race, recompute against the latest balance
+        }
+    }
+
+    /**
+     * Amounts are kept in whole cents, so only deposits of at least half a cent are accepted.
+     */
+    @Override
+    boolean acceptsDeposit(double amount) {
+        return Money.toCents(amount) > 0;
+    }
+
+    @Override
+    double roundAmount(double amount) {
+        return Money.fromCents(Money.toCents(amount));
+    }
+
+    /**
+     * Deposits and withdrawals are atomic on their own, so transfers do not need to hold the account lock.
+     */
+    @Override
+    boolean needsTransferLock() {
+        return false;
+    }
+}
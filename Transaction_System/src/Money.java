@@ -0,0 +1,30 @@
+/**
+ * Conversions between dollar amounts and whole cents (fixed-point minor units).
+ */
+public final class Money {
+
+    public static final long CENTS_PER_DOLLAR = 100;
+
+    private Money() {
+    }
+
+    /**
+     * Convert a dollar amount to whole cents, rounding to the nearest cent.
+     *
+     * @param amount the amount in dollars
+     * @return the amount in cents
+     */
+    public static long toCents(double amount) {
+        return Math.round(amount * CENTS_PER_DOLLAR);
+    }
+
+    /**
+     * Convert a number of cents back to a dollar amount.
+     *
+     * @param cents the amount in cents
+     * @return the amount in dollars
+     */
+    public static double fromCents(long cents) {
+        return (double) cents / CENTS_PER_DOLLAR;
+    }
+}
@@ -1,59 +1,158 @@
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * An open-loop load driver for the transaction system.
+ * <p>
+ * Transfers are issued at a fixed target rate no matter how fast earlier ones complete, and each latency is
+ * measured from the moment the transfer was scheduled to start, so time spent queueing is included.
+ * Options are passed as {@code key=value} arguments:
+ * <pre>
+ *   mode=pool|forkjoin|virtual        executor that runs the transfers (default pool)
+ *   threads=N                         worker threads for pool and forkjoin (default: number of cores)
+ *   rate=N                            target transfers per second (default 20000)
+ *   accounts=N                        number of accounts (default 10)
+ *   pattern=uniform|zipf|hot_pair     how accounts are picked (default uniform)
+ *   skew=X                            Zipf exponent or hot-pair fraction (default 1.0 for zipf, 0.9 for hot_pair)
+ *   duration=S                        run time in seconds (default 10)
+ *   engine=locking|lock_free          account balance engine (default locking)
+ *   transfer=pessimistic|optimistic   how transfers between locking accounts commit (default pessimistic)
+ *   events=debug|info|warn|error|off  lowest transfer event level to publish (default info); events are
+ *                                     published as usual and then discarded, keeping console I/O out of the run
+ * </pre>
+ */
 public class MultipleConcurrentTransactions {
     private static final int NUM_ACCOUNTS = 10;
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = parseOptions(args);
+        String mode = options.getOrDefault("mode", "pool");
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "20000"));
+        int numAccounts = Integer.parseInt(options.getOrDefault("accounts", String.valueOf(NUM_ACCOUNTS)));
+        AccessPattern pattern = AccessPattern.valueOf(options.getOrDefault("pattern", "uniform").toUpperCase(Locale.ROOT));
+        double skew = Double.parseDouble(options.getOrDefault("skew", pattern == AccessPattern.HOT_PAIR ? "0.9" : "1.0"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "10"));
+        AccountEngine engine = AccountEngine.valueOf(options.getOrDefault("engine", "locking").toUpperCase(Locale.ROOT));
+        TransferMode transferMode = TransferMode.valueOf(
+                options.getOrDefault("transfer", "pessimistic").toUpperCase(Locale.ROOT));
+        EventLevel eventLevel = EventLevel.valueOf(options.getOrDefault("events", "info").toUpperCase(Locale.ROOT));
+
         // Create bank accounts
-        List<BankAccount> accounts = new ArrayList<>(NUM_ACCOUNTS);
-        for (int i = 1; i <= NUM_ACCOUNTS; i++) {
-            Random rand = new Random();
+        List<BankAccount> accounts = new ArrayList<>(numAccounts);
+        Random rand = new Random();
+        for (int i = 1; i <= numAccounts; i++) {
             accounts.add(new BankAccount(i, rand.nextDouble(1000, 20000)));
         }
 
         // Create transaction system
-        TransactionSystem transactionSystem = new TransactionSystem(accounts);
-
-        // Create 1000 threads for transactions simulation
-        Thread[] randomThreads = new Thread[1000]; // Array to hold all threads
-
-        for (int i = 0; i < 1000; i++){
-            Random rand = new Random();
-            Thread randThread = new Thread(() -> {
-                int account1 = rand.nextInt(1, NUM_ACCOUNTS);
-                int account2 = rand.nextInt(1, NUM_ACCOUNTS);
-                while (account1 == account2){ // making sure no invalid transactions
-                    account2 = rand.nextInt(1, NUM_ACCOUNTS);
+        TransactionSystem transactionSystem = new TransactionSystem(accounts, engine);
+        EventLog events = new EventLog(EventSink.DISCARD, 1 << 16, eventLevel);
+        transactionSystem.setEventLog(events);
+        transactionSystem.setTransferMode(transferMode);
+        AccessPattern.Picker picker = pattern.newPicker(numAccounts, skew);
+        LatencyHistogram latencies = new LatencyHistogram();
+        LongAdder succeeded = new LongAdder();
+        ExecutorService executor = newExecutor(mode, threads);
+
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long issued = 0;
+        while (true) {
+            long intendedStart = startNanos + (long) (issued * 1e9 / rate);
+            if (intendedStart >= endNanos) {
+                break;
+            }
+            long now = System.nanoTime();
+            if (intendedStart > now) {
+                LockSupport.parkNanos(intendedStart - now);
+                continue;
+            }
+            executor.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long picked = picker.nextTransfer(random);
+                int from = AccessPattern.Picker.sourceOf(picked);
+                int to = AccessPattern.Picker.destinationOf(picked);
+                if (transactionSystem.transfer(from, to, random.nextDouble(1000))) {
+                    succeeded.increment();
                 }
-                transactionSystem.transfer(account1, account2, rand.nextDouble(1000));
-            }, "Thread " + (i+1));
-            randomThreads[i] = randThread;
+                latencies.record(System.nanoTime() - intendedStart);
+            });
+            issued++;
         }
 
-        // Start threads with random delays to simulate real life transaction system
-        for (Thread thread : randomThreads) {
-            Random rand = new Random();
-            try {
-                Thread.sleep(rand.nextInt(50)); // Random delay of 0-50 milliseconds
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-            thread.start();
+        // Wait for all queued transfers to complete
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.MINUTES);
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        events.close();
+
+        // Print throughput and latency percentiles
+        long completed = latencies.getCount();
+        System.out.printf("Mode: %s (%d threads), engine: %s, transfer: %s, pattern: %s (skew %.2f), accounts: %d%n",
+                mode, threads, engine, transferMode, pattern, skew, numAccounts);
+        System.out.printf("Issued: %d, completed: %d, succeeded: %d%n", issued, completed, succeeded.sum());
+        System.out.printf("Throughput: %.0f transfers/s (target %d/s)%n", completed / elapsedSeconds, rate);
+        System.out.printf("Latency (us): mean %.1f | p50 %.1f | p90 %.1f | p99 %.1f | p99.9 %.1f | max %.1f%n",
+                latencies.getMean() / 1000, latencies.getPercentile(50) / 1000.0,
+                latencies.getPercentile(90) / 1000.0, latencies.getPercentile(99) / 1000.0,
+                latencies.getPercentile(99.9) / 1000.0, latencies.getMax() / 1000.0);
+        System.out.printf("Events: level %s, dropped %d%n", eventLevel, events.getDropped());
+        System.out.println(transactionSystem.getMetrics().snapshot());
+    }
+
+    /**
+     * Create the executor for a driver mode.
+     */
+    private static ExecutorService newExecutor(String mode, int threads) {
+        switch (mode) {
+            case "pool":
+                return Executors.newFixedThreadPool(threads);
+            case "forkjoin":
+                return new ForkJoinPool(threads);
+            case "virtual":
+                return newVirtualThreadExecutor();
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
         }
+    }
 
-        // Wait for all threads to complete
+    /**
+     * Virtual threads need Java 21; on older runtimes fall back to a cached pool of platform threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
         try {
-            for (Thread thread : randomThreads) {
-                thread.join();
-            }
-        } catch (InterruptedException e) {
-            System.err.println("Error: " + e.getMessage());
-            Thread.currentThread().interrupt();
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not available on this Java version, using a cached thread pool.");
+            return Executors.newCachedThreadPool();
         }
+    }
 
-        // Print final balances and transaction history
-        transactionSystem.printAccountBalances();
+    /**
+     * Parse {@code key=value} arguments.
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return options;
     }
 }
@@ -0,0 +1,274 @@
+import exceptions.InsufficientFundsException;
+import exceptions.InvalidTransactionException;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs transfers asynchronously on a fixed set of single-writer partitions.
+ * <p>
+ * Every account is owned by exactly one partition, chosen by hashing its ID, and only that partition's
+ * thread changes its balance or history, so no account locks are taken. A transfer between two accounts
+ * of the same partition is applied in one step. A cross-partition transfer debits the source on its
+ * partition and then hands the credit to the destination partition; each partition works through its
+ * queue in order, so hand-offs between two partitions are applied in the order they were made.
+ * <p>
+ * Every accepted transfer is counted as in flight until its last step on a partition has run, including a
+ * credit handed to another partition, so shutting down can wait for the count to drain before it stops the
+ * workers.
+ */
+class PartitionedTransferExecutor {
+
+    private static final Runnable STOP = () -> { };
+
+    private final AccountDirectory accounts;
+    private final TransactionJournal journal; // May be null
+    private final HistoryStore historyStore;
+    private final HybridLogicalClock clock;
+    private final Partition[] partitions;
+    private final AtomicLong inFlight = new AtomicLong(); // Accepted transfers whose steps have not all run
+    private volatile boolean accepting = true;
+
+    /**
+     * Create the executor and start one worker thread per partition.
+     *
+     * @param accounts       the accounts to transfer between
+     * @param journal        the journal to record completed transfers in, or null
+     * @param historyStore   the store for transaction records
+     * @param clock          the clock that stamps transaction records
+     * @param partitionCount the number of partitions
+     * @throws IllegalArgumentException if the partition count is not positive
+     */
+    PartitionedTransferExecutor(AccountDirectory accounts, TransactionJournal journal, HistoryStore historyStore,
+                                HybridLogicalClock clock, int partitionCount) {
+        if (partitionCount <= 0) {
+            throw new IllegalArgumentException("Partition count must be positive. Provided: " + partitionCount);
+        }
+        this.accounts = accounts;
+        this.journal = journal;
+        this.historyStore = historyStore;
+        this.clock = clock;
+        this.partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition("Partition " + (i + 1));
+            partitions[i].start();
+        }
+    }
+
+    /**
+     * Queue a transfer on the partitions that own the two accounts.
+     *
+     * @param fromAccountId the ID of the account to transfer money from
+     * @param toAccountId   the ID of the account to transfer money to
+     * @param amount        the amount of money to transfer
+     * @return a future completed with the result once the transfer has been applied or rejected, or
+     * exceptionally if the executor is shutting down or a step of the transfer failed
+     */
+    CompletableFuture<TransferResult> submit(int fromAccountId, int toAccountId, double amount) {
+        inFlight.incrementAndGet(); // Before checking the flag, so a shutdown that cleared it waits for us
+        if (!accepting) {
+            finished();
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException("Asynchronous mode is shutting down"));
+        }
+        try {
+            return accept(fromAccountId, toAccountId, amount);
+        } catch (RuntimeException e) {
+            finished();
+            throw e;
+        }
+    }
+
+    /**
+     * Queue a transfer that has been counted as in flight. Every path ends in exactly one call to
+     * {@link #finished()}.
+     */
+    private CompletableFuture<TransferResult> accept(int fromAccountId, int toAccountId, double amount) {
+        BankAccount fromAccount = accounts.get(fromAccountId);
+        BankAccount toAccount = accounts.get(toAccountId);
+        TransferResult invalid = null;
+        if (fromAccount == null || toAccount == null) {
+            invalid = TransferResult.ACCOUNT_NOT_FOUND;
+        } else if (fromAccountId == toAccountId) {
+            invalid = TransferResult.SAME_ACCOUNT;
+        } else if (amount <= 0) {
+            invalid = TransferResult.INVALID_AMOUNT;
+        }
+        if (invalid != null) {
+            finished();
+            return CompletableFuture.completedFuture(invalid);
+        }
+
+        CompletableFuture<TransferResult> future = new CompletableFuture<>();
+        Partition source = partitionOf(fromAccountId);
+        Partition destination = partitionOf(toAccountId);
+
+        source.execute(step(future, () -> {
+            TransferResult withdrawn = fromAccount.tryWithdraw(amount);
+            if (withdrawn != TransferResult.SUCCESS) {
+                future.complete(withdrawn);
+                finished();
+                return;
+            }
+            long stamp = clock.tick(Math.max(fromAccount.getLastStamp(), toAccount.getLastStamp()));
+            long recordId = historyStore.appendStamped(fromAccountId, toAccountId, amount, stamp, false);
+            fromAccount.addHistoryRecord(recordId);
+
+            Runnable credit = () -> {
+                long journalSequence = 0;
+                if (journal != null) {
+                    try {
+                        journalSequence = journal.appendTransfer(fromAccountId, toAccountId, amount, stamp);
+                    } catch (IOException e) {
+                        // Nothing was credited yet, so give the money back to the source on its own partition
+                        source.execute(step(future, () -> {
+                            refund(fromAccount, toAccountId, amount);
+                            future.complete(TransferResult.JOURNAL_FAILED);
+                            finished();
+                        }));
+                        return;
+                    }
+                }
+                try {
+                    toAccount.deposit(amount);
+                } catch (InvalidTransactionException e) {
+                    // The amount was already accepted by the withdrawal, so this cannot happen
+                    throw new IllegalStateException(e);
+                }
+                toAccount.addHistoryRecord(recordId);
+                finished(); // Applied; waiting for the journal does not need the partitions
+                if (journal == null) {
+                    future.complete(TransferResult.SUCCESS);
+                } else {
+                    journal.whenDurable(journalSequence, error -> {
+                        if (error == null) {
+                            future.complete(TransferResult.SUCCESS);
+                        } else {
+                            future.completeExceptionally(error);
+                        }
+                    });
+                }
+            };
+            if (destination == source) {
+                credit.run();
+            } else {
+                destination.execute(step(future, credit)); // Handing off is the last thing this step does
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * Stop accepting transfers, wait until every accepted transfer has been applied or rejected, including
+     * credits still being handed between partitions, and then stop the workers and wait for them to exit.
+     * Transfers submitted from now on complete exceptionally.
+     */
+    void shutdown() {
+        accepting = false;
+        boolean interrupted = false;
+        synchronized (inFlight) {
+            while (inFlight.get() > 0) {
+                try {
+                    inFlight.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; // Stopping now could strand a credit, so keep waiting
+                }
+            }
+        }
+        for (Partition partition : partitions) {
+            partition.execute(STOP); // Nothing is in flight, so nothing can be queued behind this
+        }
+        for (Partition partition : partitions) {
+            while (partition.isAlive()) {
+                try {
+                    partition.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wrap one step of a transfer so that if it throws, the transfer's future completes exceptionally and
+     * the transfer stops counting as in flight, instead of leaving the future pending.
+     */
+    private Runnable step(CompletableFuture<TransferResult> future, Runnable body) {
+        return () -> {
+            try {
+                body.run();
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+                finished();
+                throw e; // Let the partition report it
+            }
+        };
+    }
+
+    /**
+     * Note that an accepted transfer has run its last step, waking a shutdown waiting for the last one.
+     */
+    private void finished() {
+        if (inFlight.decrementAndGet() == 0 && !accepting) {
+            synchronized (inFlight) {
+                inFlight.notifyAll();
+            }
+        }
+    }
+
+    private void refund(BankAccount fromAccount, int toAccountId, double amount) {
+        try {
+            fromAccount.deposit(amount);
+            fromAccount.addHistoryRecord(historyStore.appendStamped(fromAccount.getId(), toAccountId, amount,
+                    clock.tick(fromAccount.getLastStamp()), true));
+        } catch (InvalidTransactionException e) {
+            // The amount was already accepted by the withdrawal, so this cannot happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Partition partitionOf(int accountId) {
+        return partitions[Math.floorMod(AccountRegistry.hash(accountId), partitions.length)];
+    }
+
+    /**
+     * A worker thread that runs the tasks for the accounts it owns, one at a time and in order.
+     */
+    private static class Partition extends Thread {
+        private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+
+        Partition(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            queue.add(task);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Runnable task = queue.take();
+                    if (task == STOP) {
+                        break;
+                    }
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println(getName() + " Error during transfer: " + e.getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pipelined connection to one {@link ShardServer}.
+ * <p>
+ * Any number of threads can send requests without waiting for earlier responses. Senders only queue their
+ * requests; a writer thread writes them out and flushes once no more requests are waiting, as the server does
+ * with its responses, so a burst of requests goes out in a few writes and no sender waits on the socket. A
+ * reader thread matches each response to its request by ID and completes the request's future. If the
+ * connection fails, every pending request and every later one fails with an {@link IOException}.
+ */
+class ShardClient implements AutoCloseable {
+
+    private static final ShardProtocol.Request STOP = new ShardProtocol.Request();
+
+    private final Socket socket;
+    private final BlockingQueue<ShardProtocol.Request> outgoing = new LinkedBlockingQueue<>(); // For the writer
+    private final ConcurrentHashMap<Long, CompletableFuture<ShardProtocol.Response>> pending =
+            new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private volatile IOException failure; // Set once the connection has failed
+
+    /**
+     * Connect to a shard.
+     *
+     * @param address the shard's address
+     * @throws IOException if the connection cannot be made
+     */
+    ShardClient(InetSocketAddress address) throws IOException {
+        this.socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Thread writer = new Thread(() -> writeRequests(out), "Shard client writer " + address.getPort());
+        writer.setDaemon(true);
+        writer.start();
+        Thread reader = new Thread(() -> readResponses(in), "Shard client " + address.getPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send a request.
+     *
+     * @return a future completed with the shard's response, or exceptionally if the connection fails first
+     */
+    CompletableFuture<ShardProtocol.Response> send(byte op, long transactionId, int fromAccountId, int toAccountId,
+                                                   double amount) {
+        ShardProtocol.Request request = new ShardProtocol.Request();
+        request.op = op;
+        request.requestId = nextRequestId.incrementAndGet();
+        request.transactionId = transactionId;
+        request.fromAccountId = fromAccountId;
+        request.toAccountId = toAccountId;
+        request.amount = amount;
+        CompletableFuture<ShardProtocol.Response> response = new CompletableFuture<>();
+        pending.put(request.requestId, response);
+        outgoing.add(request);
+        if (failure != null) {
+            fail(failure); // The connection may have failed before this request was added
+        }
+        return response;
+    }
+
+    /**
+     * Close the connection, failing any requests still waiting for a response.
+     *
+     * @throws IOException if the socket cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        outgoing.add(STOP);
+        socket.close();
+    }
+
+    /**
+     * Write queued requests until the client is closed, flushing whenever the queue runs empty.
+     */
+    private void writeRequests(DataOutputStream out) {
+        try {
+            while (true) {
+                ShardProtocol.Request request = outgoing.take();
+                while (request != null) {
+                    if (request == STOP) {
+                        return;
+                    }
+                    ShardProtocol.writeRequest(out, request.op, request.requestId, request.transactionId,
+                            request.fromAccountId, request.toAccountId, request.amount);
+                    request = outgoing.poll();
+                }
+                out.flush(); // Nothing else is waiting, so send every request written so far
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new IOException("Shard client writer was interrupted", e));
+        }
+    }
+
+    private void readResponses(DataInputStream in) {
+        try {
+            while (true) {
+                long requestId = in.readLong();
+                byte status = in.readByte();
+                double value = in.readDouble();
+                CompletableFuture<ShardProtocol.Response> response = pending.remove(requestId);
+                if (response != null) {
+                    response.complete(new ShardProtocol.Response(status, value));
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        for (Long requestId : pending.keySet()) {
+            CompletableFuture<ShardProtocol.Response> response = pending.remove(requestId);
+            if (response != null) {
+                response.completeExceptionally(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The binary protocol between a {@link ShardedTransactionSystem} coordinator and its {@link ShardServer}s.
+ * <p>
+ * Every request is a fixed 33-byte frame: an op code, a request ID chosen by the client, a two-phase commit
+ * transaction ID, two account IDs and the raw bits of an amount. Every response is a fixed 17-byte frame: the
+ * request ID it answers, a status byte and a value. Requests on one connection are applied in order, but a
+ * client does not have to wait for a response before sending the next request, and matches responses to
+ * requests by their ID. Both ends must come from the same build, as statuses are {@link TransferResult}
+ * ordinals.
+ */
+final class ShardProtocol {
+
+    static final byte TRANSFER = 1; // A transfer between two accounts of the same shard
+    static final byte PREPARE_DEBIT = 2; // Hold the amount on the source account of a cross-shard transfer
+    static final byte PREPARE_CREDIT = 3; // Check that the destination account can take the amount
+    static final byte COMMIT = 4; // Apply a prepared leg
+    static final byte ABORT = 5; // Drop a prepared leg, releasing its hold
+    static final byte BALANCE = 6; // Read the balance of an account
+    static final byte SHUTDOWN = 7; // Stop the shard process
+
+    static final byte UNKNOWN_TRANSACTION = -1; // Status of a commit or abort for a leg that was never prepared
+
+    private static final TransferResult[] RESULTS = TransferResult.values();
+
+    private ShardProtocol() {
+    }
+
+    /**
+     * A request frame.
+     */
+    static final class Request {
+        byte op;
+        long requestId;
+        long transactionId;
+        int fromAccountId;
+        int toAccountId;
+        double amount;
+
+        /**
+         * Read the next request into this object.
+         *
+         * @throws IOException if the connection fails or is closed
+         */
+        void read(DataInputStream in) throws IOException {
+            op = in.readByte();
+            requestId = in.readLong();
+            transactionId = in.readLong();
+            fromAccountId = in.readInt();
+            toAccountId = in.readInt();
+            amount = in.readDouble();
+        }
+    }
+
+    /**
+     * A response frame.
+     */
+    static final class Response {
+        final byte status;
+        final double value;
+
+        Response(byte status, double value) {
+            this.status = status;
+            this.value = value;
+        }
+
+        /**
+         * Get the result of a transfer or two-phase commit request.
+         *
+         * @return the result, or null if the transaction was unknown to the shard
+         */
+        TransferResult result() {
+            return status < 0 ? null : RESULTS[status];
+        }
+    }
+
+    static void writeRequest(DataOutputStream out, byte op, long requestId, long transactionId, int fromAccountId,
+                             int toAccountId, double amount) throws IOException {
+        out.writeByte(op);
+        out.writeLong(requestId);
+        out.writeLong(transactionId);
+        out.writeInt(fromAccountId);
+        out.writeInt(toAccountId);
+        out.writeDouble(amount);
+    }
+
+    static void writeResponse(DataOutputStream out, long requestId, byte status, double value) throws IOException {
+        out.writeLong(requestId);
+        out.writeByte(status);
+        out.writeDouble(value);
+    }
+
+    static byte status(TransferResult result) {
+        return (byte) result.ordinal();
+    }
+}
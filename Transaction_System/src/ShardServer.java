@@ -0,0 +1,237 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A process that owns a range of accounts and serves transfers on them over TCP, as one shard of a
+ * {@link ShardedTransactionSystem}.
+ * <p>
+ * Transfers between two accounts of the shard are applied directly by its {@link TransactionSystem}. For a
+ * cross-shard transfer the shard takes part in a two-phase commit: preparing a debit holds the amount on the
+ * source account, preparing a credit checks the destination, and the coordinator then commits or aborts
+ * both legs. Prepared legs are kept in memory until then. The legs are neither journaled nor versioned, so
+ * the system must run without a journal or snapshots.
+ * <p>
+ * Each connection is served by its own thread, which applies requests in the order they arrive. Responses are
+ * flushed once no more requests are waiting, so a client that pipelines many requests gets its responses
+ * back in a few writes.
+ * <p>
+ * Usage: {@code java ShardServer <port> <firstAccountId> <accountCount> <openingBalance>}. Port 0 picks a
+ * free port. Once listening, the process prints {@code READY <port>} on standard output.
+ */
+public class ShardServer implements AutoCloseable {
+
+    private final TransactionSystem system;
+    private final ServerSocket serverSocket;
+    private final ConcurrentHashMap<Long, PreparedLeg> prepared = new ConcurrentHashMap<>(); // By transaction ID
+    private final List<Socket> connections = new ArrayList<>(); // Guarded by itself
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * Start serving a transaction system on a loopback port.
+     *
+     * @param system the transaction system that owns this shard's accounts
+     * @param port   the port to listen on, or 0 for any free port
+     * @throws IOException if the port cannot be bound
+     * @throws IllegalStateException if the system has a journal or snapshots enabled
+     */
+    public ShardServer(TransactionSystem system, int port) throws IOException {
+        system.checkShardLegsSupported();
+        this.system = system;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Thread acceptor = new Thread(this::acceptConnections, "Shard acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.err.println("Usage: java ShardServer <port> <firstAccountId> <accountCount> <openingBalance>");
+            System.exit(2);
+        }
+        int port = Integer.parseInt(args[0]);
+        int firstAccountId = Integer.parseInt(args[1]);
+        int accountCount = Integer.parseInt(args[2]);
+        double openingBalance = Double.parseDouble(args[3]);
+
+        List<BankAccount> accounts = new ArrayList<>(accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            accounts.add(new BankAccount(firstAccountId + i, openingBalance));
+        }
+        TransactionSystem system = new TransactionSystem(accounts);
+        system.setEventLog(new EventLog(EventSink.DISCARD, 1 << 10, EventLevel.OFF)); // Keep stdout for READY
+        try (ShardServer server = new ShardServer(system, port)) {
+            System.out.println("READY " + server.getPort());
+            System.out.flush();
+            server.awaitShutdown();
+        }
+    }
+
+    /**
+     * Get the port the shard is listening on.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Wait until a client asks the shard to shut down or the server is closed.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void awaitShutdown() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Stop accepting connections and close the open ones.
+     *
+     * @throws IOException if the server socket cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        stopped.countDown();
+        serverSocket.close();
+        synchronized (connections) {
+            for (Socket connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        try {
+            while (true) {
+                Socket connection = serverSocket.accept();
+                connection.setTcpNoDelay(true);
+                synchronized (connections) {
+                    connections.add(connection);
+                }
+                Thread worker = new Thread(() -> serve(connection), "Shard connection " + connection.getPort());
+                worker.setDaemon(true);
+                worker.start();
+            }
+        } catch (IOException e) {
+            // The server socket was closed
+        }
+    }
+
+    private void serve(Socket connection) {
+        try (connection) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            ShardProtocol.Request request = new ShardProtocol.Request();
+            while (true) {
+                request.read(in);
+                if (request.op == ShardProtocol.SHUTDOWN) {
+                    byte success = ShardProtocol.status(TransferResult.SUCCESS);
+                    ShardProtocol.writeResponse(out, request.requestId, success, 0);
+                    out.flush();
+                    close();
+                    return;
+                }
+                apply(request, out);
+                if (in.available() == 0) {
+                    out.flush(); // Nothing else is waiting, so send every response written so far
+                }
+            }
+        } catch (EOFException e) {
+            // The client closed the connection
+        } catch (IOException e) {
+            if (stopped.getCount() > 0) {
+                System.err.println("Shard connection failed: " + e.getMessage());
+            }
+        } finally {
+            synchronized (connections) {
+                connections.remove(connection);
+            }
+        }
+    }
+
+    private void apply(ShardProtocol.Request request, DataOutputStream out) throws IOException {
+        byte status;
+        double value = 0;
+        switch (request.op) {
+            case ShardProtocol.TRANSFER:
+                status = ShardProtocol.status(system.tryTransfer(request.fromAccountId, request.toAccountId,
+                        request.amount));
+                break;
+            case ShardProtocol.PREPARE_DEBIT:
+            case ShardProtocol.PREPARE_CREDIT:
+                status = ShardProtocol.status(prepare(request));
+                break;
+            case ShardProtocol.COMMIT:
+            case ShardProtocol.ABORT:
+                status = finish(request);
+                break;
+            case ShardProtocol.BALANCE:
+                value = system.balanceOf(request.fromAccountId);
+                status = ShardProtocol.status(Double.isNaN(value) ? TransferResult.ACCOUNT_NOT_FOUND
+                        : TransferResult.SUCCESS);
+                break;
+            default:
+                throw new IOException("Unknown shard request: " + request.op);
+        }
+        ShardProtocol.writeResponse(out, request.requestId, status, value);
+    }
+
+    private TransferResult prepare(ShardProtocol.Request request) {
+        boolean debit = request.op == ShardProtocol.PREPARE_DEBIT;
+        TransferResult vote = debit ? system.prepareDebit(request.fromAccountId, request.amount)
+                : system.prepareCredit(request.toAccountId, request.amount);
+        if (vote == TransferResult.SUCCESS) {
+            prepared.put(request.transactionId,
+                    new PreparedLeg(debit, request.fromAccountId, request.toAccountId, request.amount));
+        }
+        return vote;
+    }
+
+    private byte finish(ShardProtocol.Request request) {
+        PreparedLeg leg = prepared.remove(request.transactionId);
+        if (leg == null) {
+            return ShardProtocol.UNKNOWN_TRANSACTION;
+        }
+        TransferResult result = TransferResult.SUCCESS;
+        if (request.op == ShardProtocol.ABORT) {
+            if (leg.debit) {
+                system.abortDebit(leg.fromAccountId, leg.amount);
+            }
+        } else if (leg.debit) {
+            system.commitDebit(leg.fromAccountId, leg.toAccountId, leg.amount);
+        } else {
+            result = system.commitCredit(leg.fromAccountId, leg.toAccountId, leg.amount);
+        }
+        return ShardProtocol.status(result);
+    }
+
+    /**
+     * One side of a cross-shard transfer that has voted to commit.
+     */
+    private static final class PreparedLeg {
+        private final boolean debit; // True for the source side, false for the destination side
+        private final int fromAccountId;
+        private final int toAccountId;
+        private final double amount;
+
+        PreparedLeg(boolean debit, int fromAccountId, int toAccountId, double amount) {
+            this.debit = debit;
+            this.fromAccountId = fromAccountId;
+            this.toAccountId = toAccountId;
+            this.amount = amount;
+        }
+    }
+}
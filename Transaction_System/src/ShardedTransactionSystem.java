@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A coordinator for accounts split by ID range across several {@link ShardServer} processes.
+ * <p>
+ * A transfer between two accounts of the same shard is sent to that shard as a single request. A transfer
+ * between shards runs a two-phase commit: both shards are asked to prepare their leg at the same time, the
+ * source by holding the amount and the destination by checking it can take it. If both vote yes, both legs
+ * are committed; otherwise the legs that were prepared are aborted and the source's hold is released.
+ * <p>
+ * Transfers never block the caller. Each connection is pipelined, so many transfers can be in flight at
+ * once, and the second phase is sent from a coordinator thread so that a full connection never stops
+ * responses from being read.
+ * <p>
+ * The coordinator keeps no log of its own. If it stops between the two phases, prepared debits stay held on
+ * their shard.
+ */
+public class ShardedTransactionSystem implements AutoCloseable {
+
+    private final ShardClient[] shards;
+    private final int[] firstAccountIds; // Shard i owns IDs from firstAccountIds[i] up to the next shard's first
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "Shard coordinator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong nextTransactionId = new AtomicLong(ThreadLocalRandom.current().nextLong() >>> 1);
+    private final LongAdder localTransfers = new LongAdder();
+    private final LongAdder crossShardTransfers = new LongAdder();
+
+    private ShardedTransactionSystem(ShardClient[] shards, int[] firstAccountIds) {
+        this.shards = shards;
+        this.firstAccountIds = firstAccountIds;
+    }
+
+    /**
+     * Connect to a set of shards.
+     *
+     * @param addresses       the address of each shard
+     * @param firstAccountIds the lowest account ID owned by each shard, in ascending order
+     * @return a coordinator connected to every shard
+     * @throws IOException if a shard cannot be reached
+     */
+    public static ShardedTransactionSystem connect(List<InetSocketAddress> addresses, int[] firstAccountIds)
+            throws IOException {
+        if (addresses.size() != firstAccountIds.length || addresses.isEmpty()) {
+            throw new IllegalArgumentException("Need one first account ID per shard");
+        }
+        for (int i = 1; i < firstAccountIds.length; i++) {
+            if (firstAccountIds[i] <= firstAccountIds[i - 1]) {
+                throw new IllegalArgumentException("Shard account ranges must be in ascending order");
+            }
+        }
+        ShardClient[] shards = new ShardClient[addresses.size()];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new ShardClient(addresses.get(i));
+            }
+        } catch (IOException e) {
+            closeAll(shards);
+            throw e;
+        }
+        return new ShardedTransactionSystem(shards, firstAccountIds.clone());
+    }
+
+    /**
+     * Transfer money between two accounts, on the same shard or on different ones.
+     *
+     * @param fromAccountId the source account
+     * @param toAccountId   the destination account
+     * @param amount        the amount to transfer
+     * @return a future completed with SUCCESS once the transfer is applied, or with the reason it was not
+     */
+    public CompletableFuture<TransferResult> transfer(int fromAccountId, int toAccountId, double amount) {
+        if (fromAccountId == toAccountId) {
+            return CompletableFuture.completedFuture(TransferResult.SAME_ACCOUNT);
+        }
+        if (!(amount > 0)) {
+            return CompletableFuture.completedFuture(TransferResult.INVALID_AMOUNT);
+        }
+        int fromShard = shardOf(fromAccountId);
+        int toShard = shardOf(toAccountId);
+        if (fromShard < 0 || toShard < 0) {
+            return CompletableFuture.completedFuture(TransferResult.ACCOUNT_NOT_FOUND);
+        }
+        if (fromShard == toShard) {
+            localTransfers.increment();
+            return resultOf(shards[fromShard].send(ShardProtocol.TRANSFER, 0, fromAccountId, toAccountId, amount));
+        }
+
+        crossShardTransfers.increment();
+        long transactionId = nextTransactionId.incrementAndGet();
+        ShardClient source = shards[fromShard];
+        ShardClient destination = shards[toShard];
+        CompletableFuture<TransferResult> debitVote =
+                resultOf(source.send(ShardProtocol.PREPARE_DEBIT, transactionId, fromAccountId, toAccountId, amount));
+        CompletableFuture<TransferResult> creditVote =
+                resultOf(destination.send(ShardProtocol.PREPARE_CREDIT, transactionId, fromAccountId, toAccountId,
+                        amount));
+        return debitVote.thenCombineAsync(creditVote, (debit, credit) -> {
+            if (debit == TransferResult.SUCCESS && credit == TransferResult.SUCCESS) {
+                return finish(ShardProtocol.COMMIT, transactionId, source, destination);
+            }
+            finish(ShardProtocol.ABORT, transactionId, debit == TransferResult.SUCCESS ? source : null,
+                    credit == TransferResult.SUCCESS ? destination : null);
+            return CompletableFuture.completedFuture(debit != TransferResult.SUCCESS ? debit : credit);
+        }, coordinator).thenCompose(result -> result);
+    }
+
+    /**
+     * Get the balance of an account from the shard that owns it.
+     *
+     * @param accountId the account ID
+     * @return a future completed with the balance, or exceptionally if the account does not exist or its shard
+     *         cannot be reached
+     */
+    public CompletableFuture<Double> getBalance(int accountId) {
+        int shard = shardOf(accountId);
+        if (shard < 0) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Account not found: " + accountId));
+        }
+        return shards[shard].send(ShardProtocol.BALANCE, 0, accountId, 0, 0).thenApply(response -> {
+            if (response.result() != TransferResult.SUCCESS) {
+                throw new IllegalArgumentException("Account not found: " + accountId);
+            }
+            return response.value;
+        });
+    }
+
+    /**
+     * Get the number of transfers sent to a single shard.
+     *
+     * @return the number of same-shard transfers
+     */
+    public long getLocalTransferCount() {
+        return localTransfers.sum();
+    }
+
+    /**
+     * Get the number of transfers that ran a two-phase commit across two shards.
+     *
+     * @return the number of cross-shard transfers
+     */
+    public long getCrossShardTransferCount() {
+        return crossShardTransfers.sum();
+    }
+
+    /**
+     * Get the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Ask every shard process to stop, then close the connections.
+     *
+     * @throws IOException if a connection cannot be closed
+     */
+    public void shutdownShards() throws IOException {
+        CompletableFuture<?>[] acks = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            acks[i] = shards[i].send(ShardProtocol.SHUTDOWN, 0, 0, 0, 0);
+        }
+        CompletableFuture.allOf(acks).exceptionally(e -> null).join();
+        close();
+    }
+
+    /**
+     * Close the connections to the shards. The shard processes keep running.
+     *
+     * @throws IOException if a connection cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        coordinator.shutdown();
+        closeAll(shards);
+    }
+
+    /**
+     * Find the shard that owns an account.
+     *
+     * @return the shard index, or -1 if the ID is below every shard's range
+     */
+    private int shardOf(int accountId) {
+        int low = 0;
+        int high = firstAccountIds.length - 1;
+        int shard = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (firstAccountIds[mid] <= accountId) {
+                shard = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * Send the second phase to the legs that need it.
+     *
+     * @return a future completed with SUCCESS once every shard has applied its leg, with the reason a shard
+     *         rejected its leg, or with SHARD_UNAVAILABLE if a shard could not be reached or did not know the
+     *         transaction
+     */
+    private static CompletableFuture<TransferResult> finish(byte op, long transactionId, ShardClient source,
+                                                            ShardClient destination) {
+        CompletableFuture<TransferResult> debit = acknowledge(source, op, transactionId);
+        CompletableFuture<TransferResult> credit = acknowledge(destination, op, transactionId);
+        return debit.thenCombine(credit, (debitDone, creditDone) ->
+                debitDone != TransferResult.SUCCESS ? debitDone : creditDone);
+    }
+
+    private static CompletableFuture<TransferResult> acknowledge(ShardClient shard, byte op, long transactionId) {
+        if (shard == null) {
+            return CompletableFuture.completedFuture(TransferResult.SUCCESS);
+        }
+        return shard.send(op, transactionId, 0, 0, 0).handle((response, e) ->
+                e != null || response.result() == null ? TransferResult.SHARD_UNAVAILABLE : response.result());
+    }
+
+    /**
+     * Map a response to its result, treating a failed connection as an unavailable shard.
+     */
+    private static CompletableFuture<TransferResult> resultOf(CompletableFuture<ShardProtocol.Response> response) {
+        return response.handle((r, e) -> e != null ? TransferResult.SHARD_UNAVAILABLE : r.result());
+    }
+
+    private static void closeAll(ShardClient[] shards) throws IOException {
+        IOException failure = null;
+        for (ShardClient shard : shards) {
+            if (shard == null) {
+                continue;
+            }
+            try {
+                shard.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the transaction system as several shard processes on loopback and drives transfers across them.
+ * <p>
+ * Each shard is a separate {@link ShardServer} process owning a contiguous range of account IDs. Transfers
+ * pick two random accounts, so most of them cross shards and run a two-phase commit. At the end, the total
+ * balance across all shards is checked against the total the accounts opened with.
+ * Options are passed as {@code key=value} arguments:
+ * <pre>
+ *   shards=N       number of shard processes (default 3)
+ *   accounts=N     accounts per shard (default 1000)
+ *   transfers=N    number of transfers to run (default 200000)
+ *   inflight=N     most transfers in flight at once (default 256)
+ *   balance=X      opening balance of every account (default 1000)
+ * </pre>
+ */
+public class ShardedTransactions {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int shardCount = Integer.parseInt(options.getOrDefault("shards", "3"));
+        int accountsPerShard = Integer.parseInt(options.getOrDefault("accounts", "1000"));
+        int transfers = Integer.parseInt(options.getOrDefault("transfers", "200000"));
+        int inflight = Integer.parseInt(options.getOrDefault("inflight", "256"));
+        double openingBalance = Double.parseDouble(options.getOrDefault("balance", "1000"));
+        int totalAccounts = shardCount * accountsPerShard;
+
+        // Start one process per shard and wait until each is listening
+        List<Process> processes = new ArrayList<>(shardCount);
+        List<InetSocketAddress> addresses = new ArrayList<>(shardCount);
+        int[] firstAccountIds = new int[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                firstAccountIds[i] = 1 + i * accountsPerShard;
+                Process process = startShard(firstAccountIds[i], accountsPerShard, openingBalance);
+                processes.add(process);
+                addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), awaitReady(process)));
+            }
+
+            try (ShardedTransactionSystem system = ShardedTransactionSystem.connect(addresses, firstAccountIds)) {
+                // Run the transfers, keeping at most the in-flight limit outstanding
+                Map<TransferResult, LongAdder> results = new ConcurrentHashMap<>();
+                LatencyHistogram latencies = new LatencyHistogram();
+                Semaphore window = new Semaphore(inflight);
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long startNanos = System.nanoTime();
+                for (int i = 0; i < transfers; i++) {
+                    window.acquire();
+                    int from = 1 + random.nextInt(totalAccounts);
+                    int to = 1 + random.nextInt(totalAccounts);
+                    double amount = Math.round(random.nextDouble(1, 500) * 100) / 100.0;
+                    long issuedNanos = System.nanoTime();
+                    system.transfer(from, to, amount).whenComplete((result, e) -> {
+                        latencies.record(System.nanoTime() - issuedNanos);
+                        results.computeIfAbsent(e == null ? result : TransferResult.SHARD_UNAVAILABLE,
+                                r -> new LongAdder()).increment();
+                        window.release();
+                    });
+                }
+                window.acquire(inflight); // Wait for the last transfers to finish
+                double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+                // Check that no money was created or lost
+                List<CompletableFuture<Double>> balances = new ArrayList<>(totalAccounts);
+                for (int id = 1; id <= totalAccounts; id++) {
+                    balances.add(system.getBalance(id));
+                }
+                double total = 0;
+                for (CompletableFuture<Double> balance : balances) {
+                    total += balance.join();
+                }
+                double expected = openingBalance * totalAccounts;
+
+                Map<TransferResult, Long> counts = new EnumMap<>(TransferResult.class);
+                results.forEach((result, count) -> counts.put(result, count.sum()));
+                System.out.printf("Shards: %d, accounts: %d, transfers: %d, in flight: %d%n",
+                        shardCount, totalAccounts, transfers, inflight);
+                System.out.printf("Throughput: %.0f transfers/s%n", transfers / elapsedSeconds);
+                System.out.printf("Latency (us): mean %.1f | p50 %.1f | p99 %.1f | max %.1f%n",
+                        latencies.getMean() / 1000, latencies.getPercentile(50) / 1000.0,
+                        latencies.getPercentile(99) / 1000.0, latencies.getMax() / 1000.0);
+                System.out.printf("Same shard: %d, cross shard: %d%n",
+                        system.getLocalTransferCount(), system.getCrossShardTransferCount());
+                System.out.println("Results: " + counts);
+                System.out.printf("Total balance: %.2f (expected %.2f) %s%n", total, expected,
+                        Math.abs(total - expected) < 0.005 ? "OK" : "MISMATCH");
+                system.shutdownShards();
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Launch a shard process with the same Java runtime and class path as this one.
+     */
+    private static Process startShard(int firstAccountId, int accountCount, double openingBalance)
+            throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "ShardServer", "0",
+                String.valueOf(firstAccountId), String.valueOf(accountCount), String.valueOf(openingBalance))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    /**
+     * Read the port a shard process reports once it is listening.
+     */
+    private static int awaitReady(Process process) throws IOException {
+        BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8));
+        String line = out.readLine();
+        if (line == null || !line.startsWith("READY ")) {
+            throw new IOException("Shard process failed to start: " + line);
+        }
+        return Integer.parseInt(line.substring("READY ".length()));
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+/**
+ * An account directory backed by a memory-mapped {@link AccountSnapshotFile}. Its accounts are the ones in the
+ * file, so unlike an {@link AccountRegistry} it cannot be added to.
+ * <p>
+ * Opening the registry verifies the file's checksum blocks and indexes its records in parallel, into a
+ * primitive open-addressing table of record numbers, so no account objects are created up front. An account
+ * is created from its record the first time it is looked up and is kept in a slot of its own record from then
+ * on. Threads that race to create the same account settle it with a compare-and-set on that slot, so creating
+ * accounts never takes a lock and different accounts never contend.
+ */
+class SnapshotAccountRegistry implements AccountDirectory {
+
+    private static final VarHandle RECORDS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle LOADED = MethodHandles.arrayElementVarHandle(BankAccount[].class);
+
+    private final AccountSnapshotFile file;
+    private final int[] records; // Record number + 1 of each account, by ID hash; 0 marks an empty slot
+    private final BankAccount[] loaded; // Account of each record, by record number; null until first used
+    private final AccountEngine engine;
+    private final HistoryStore historyStore;
+
+    /**
+     * Verify and index a snapshot file.
+     *
+     * @param file         the snapshot file
+     * @param engine       the balance engine for accounts created from the file
+     * @param historyStore the store the new accounts record their history in
+     * @throws IOException if a block of the file is corrupt, its IDs are out of order or it holds
+     *                     {@link TransactionSystem#EXTERNAL_ACCOUNT_ID}
+     */
+    SnapshotAccountRegistry(AccountSnapshotFile file, AccountEngine engine, HistoryStore historyStore)
+            throws IOException {
+        this.file = file;
+        this.records = new int[AccountRegistry.capacityFor(file.size())];
+        this.loaded = new BankAccount[file.size()];
+        this.engine = engine;
+        this.historyStore = historyStore;
+
+        AtomicInteger firstBadBlock = new AtomicInteger(Integer.MAX_VALUE);
+        IntStream.range(0, file.blockCount()).parallel().forEach(block -> {
+            if (!indexBlock(block)) {
+                firstBadBlock.accumulateAndGet(block, Math::min);
+            }
+        });
+        if (firstBadBlock.get() != Integer.MAX_VALUE) {
+            throw new IOException("Account snapshot " + file.getPath() + " is corrupt in block "
+                    + firstBadBlock.get());
+        }
+        if (recordOf(TransactionSystem.EXTERNAL_ACCOUNT_ID) >= 0) {
+            throw new IOException("Account snapshot " + file.getPath() + " holds account "
+                    + TransactionSystem.EXTERNAL_ACCOUNT_ID + ", which is reserved for external transfers");
+        }
+    }
+
+    @Override
+    public BankAccount get(int accountId) {
+        int record = recordOf(accountId);
+        if (record < 0) {
+            return null;
+        }
+        BankAccount account = (BankAccount) LOADED.getAcquire(loaded, record);
+        return account != null ? account : materialize(record);
+    }
+
+    /**
+     * Get the number of accounts in the snapshot file, whether they have been used yet or not.
+     *
+     * @return the number of accounts
+     */
+    @Override
+    public int size() {
+        return file.size();
+    }
+
+    /**
+     * Run an action for every account in the snapshot file, in ascending ID order, creating the accounts that
+     * have not been used yet.
+     *
+     * @param action the action to run
+     */
+    @Override
+    public void forEach(Consumer<BankAccount> action) {
+        for (int record = 0; record < file.size(); record++) {
+            action.accept(get(file.idAt(record)));
+        }
+    }
+
+    @Override
+    public void forEachLoaded(Consumer<BankAccount> action) {
+        for (int record = 0; record < loaded.length; record++) {
+            BankAccount account = (BankAccount) LOADED.getAcquire(loaded, record);
+            if (account != null) {
+                action.accept(account);
+            }
+        }
+    }
+
+    /**
+     * Copy the ID and balance of every account, reading accounts that have not been used yet straight from
+     * the file instead of creating them.
+     */
+    @Override
+    public void copyBalances(int[] ids, double[] balances) {
+        for (int record = 0; record < file.size(); record++) {
+            int accountId = file.idAt(record);
+            BankAccount account = (BankAccount) LOADED.getAcquire(loaded, record);
+            ids[record] = accountId;
+            balances[record] = account != null ? account.getBalance() : file.balanceAt(record);
+        }
+    }
+
+    /**
+     * Check one block against its checksum and index its records. The IDs of a block must ascend from the
+     * last ID of the block before it, which also rules out duplicates.
+     *
+     * @return false if the block is corrupt
+     */
+    private boolean indexBlock(int block) {
+        if (!file.verifyBlock(block)) {
+            return false;
+        }
+        int first = file.firstRecordOf(block);
+        int end = Math.min(file.firstRecordOf(block + 1), file.size());
+        int mask = records.length - 1;
+        int previousId = first == 0 ? Integer.MIN_VALUE : file.idAt(first - 1);
+        for (int record = first; record < end; record++) {
+            int id = file.idAt(record);
+            double balance = file.balanceAt(record);
+            if ((record > 0 && id <= previousId) || !(balance >= 0) || Double.isInfinite(balance)) {
+                return false;
+            }
+            previousId = id;
+            for (int i = AccountRegistry.hash(id) & mask; ; i = (i + 1) & mask) {
+                if (RECORDS.compareAndSet(records, i, 0, record + 1)) {
+                    break; // IDs are unique, so any taken slot belongs to another account
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the record of an account in the index.
+     *
+     * @return the record number, or -1 if the account is not in the file
+     */
+    private int recordOf(int accountId) {
+        int mask = records.length - 1;
+        for (int i = AccountRegistry.hash(accountId) & mask; ; i = (i + 1) & mask) {
+            int record = records[i] - 1;
+            if (record < 0 || file.idAt(record) == accountId) {
+                return record;
+            }
+        }
+    }
+
+    /**
+     * Create the account of a record and publish it in the record's slot. If another thread publishes one
+     * first, the new account is dropped and theirs is returned; an account that was never published has no
+     * history and no balance changes yet, so nothing is lost.
+     */
+    private BankAccount materialize(int record) {
+        BankAccount account = engine.newAccount(file.idAt(record), file.balanceAt(record));
+        account.attachHistoryStore(historyStore);
+        BankAccount winner = (BankAccount) LOADED.compareAndExchange(loaded, record, null, account);
+        return winner != null ? winner : account;
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bank account for hot destinations, such as settlement or merchant accounts, that spreads its balance
+ * over several cells of cents.
+ * <p>
+ * Each thread deposits into its own cell with one atomic add, so deposits from many threads do not contend.
+ * Withdrawals are serialized and take from the depositing thread's cell first, borrowing from the other
+ * cells only when that cell is short. Deposits only ever add to cells, so once a withdrawal has seen enough
+ * money across the cells it is guaranteed to collect it, and the balance can never go negative.
+ */
+public class StripedBankAccount extends BankAccount {
+
+    private static final int PADDING = 8; // Longs per cell, one cache line
+
+    private final AtomicLongArray cells; // Cents per cell, every PADDING-th slot
+    private final int mask;
+    private final ReentrantLock withdrawLock = new ReentrantLock(); // Serializes withdrawals
+
+    /**
+     * Create a striped account with one cell per available processor.
+     *
+     * @param id             the account ID
+     * @param initialBalance the initial balance, rounded to the nearest cent
+     * @throws IllegalArgumentException if the initial balance is negative
+     */
+    public StripedBankAccount(int id, double initialBalance) {
+        this(id, initialBalance, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a striped account.
+     *
+     * @param id             the account ID
+     * @param initialBalance the initial balance, rounded to the nearest cent
+     * @param stripes        the number of cells, rounded up to a power of two
+     * @throws IllegalArgumentException if the initial balance is negative or the stripe count is not positive
+     */
+    public StripedBankAccount(int id, double initialBalance, int stripes) {
+        super(id, initialBalance, false);
+        if (stripes <= 0 || stripes > 1 << 16) {
+            throw new IllegalArgumentException("Stripe count must be between 1 and 65536. Provided: " + stripes);
+        }
+        int cellCount = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.cells = new AtomicLongArray(cellCount * PADDING);
+        this.mask = cellCount - 1;
+        cells.set(0, Money.toCents(initialBalance));
+    }
+
+    /**
+     * Get the number of cells the balance is spread over.
+     *
+     * @return the stripe count
+     */
+    public int getStripeCount() {
+        return mask + 1;
+    }
+
+    /**
+     * Get the current balance in cents. While a withdrawal is collecting from several cells, the result can
+     * fall between the balance before and after it.
+     *
+     * @return the current balance in cents
+     */
+    public long getBalanceCents() {
+        long total = 0;
+        for (int cell = 0; cell <= mask; cell++) {
+            total += cells.get(cell * PADDING);
+        }
+        return total;
+    }
+
+    @Override
+    public double getBalance() {
+        return Money.fromCents(getBalanceCents());
+    }
+
+    @Override
+    public TransferResult tryDeposit(double amount) {
+        long cents = Money.toCents(amount);
+        if (cents <= 0) {
+            return TransferResult.INVALID_AMOUNT;
+        }
+        cells.getAndAdd(homeCell() * PADDING, cents);
+        return TransferResult.SUCCESS;
+    }
+
+    @Override
+    public TransferResult tryWithdraw(double amount) {
+        long cents = Money.toCents(amount);
+        if (cents <= 0) {
+            return TransferResult.INVALID_AMOUNT;
+        }
+
+        withdrawLock.lock();
+        try {
+            int home = homeCell();
+            long current = cells.get(home * PADDING);
+            while (current >= cents) {
+                long witness = cells.compareAndExchange(home * PADDING, current, current - cents);
+                if (witness == current) {
+                    return TransferResult.SUCCESS; // The common case: the home cell covers the whole amount
+                }
+                current = witness; // A deposit landed in the cell, retry against the larger value
+            }
+
+            // Borrow across cells. Only this thread takes money out, so the total can only grow from here.
+            long available = getBalanceCents();
+            if (available < cents) {
+                return TransferResult.INSUFFICIENT_FUNDS;
+            }
+            long remaining = cents;
+            for (int i = 0; remaining > 0; i++) {
+                int slot = ((home + i) & mask) * PADDING;
+                long value = cells.get(slot);
+                while (value > 0) {
+                    long take = Math.min(value, remaining);
+                    long witness = cells.compareAndExchange(slot, value, value - take);
+                    if (witness == value) {
+                        remaining -= take;
+                        break;
+                    }
+                    value = witness;
+                }
+            }
+            return TransferResult.SUCCESS;
+        } finally {
+            withdrawLock.unlock();
+        }
+    }
+
+    /**
+     * Compute the change from the balance while holding off withdrawals, then apply it. Deposits can still
+     * land meanwhile, so the change is based on the balance when the call started, and a debit that fit then
+     * still fits. The change is rounded to the nearest cent.
+     */
+    @Override
+    double adjust(AccountAdjustment adjustment) {
+        withdrawLock.lock();
+        try {
+            double amount = adjustment.amountFor(getId(), getBalance());
+            if (!Double.isFinite(amount)) {
+                return Double.NaN;
+            }
+            long cents = Money.toCents(amount);
+            if (cents == 0) {
+                return 0;
+            }
+            TransferResult result = cents > 0 ? tryDeposit(amount) : tryWithdraw(-amount);
+            return result == TransferResult.SUCCESS ? Money.fromCents(cents) : Double.NaN;
+        } finally {
+            withdrawLock.unlock();
+        }
+    }
+
+    /**
+     * Amounts are kept in whole cents, so only deposits of at least half a cent are accepted.
+     */
+    @Override
+    boolean acceptsDeposit(double amount) {
+        return Money.toCents(amount) > 0;
+    }
+
+    @Override
+    double roundAmount(double amount) {
+        return Money.fromCents(Money.toCents(amount));
+    }
+
+    /**
+     * Deposits and withdrawals are atomic on their own, so transfers do not need to hold the account lock.
+     */
+    @Override
+    boolean needsTransferLock() {
+        return false;
+    }
+
+    /**
+     * Pick the calling thread's cell.
+     */
+    private int homeCell() {
+        return AccountRegistry.hash((int) Thread.currentThread().getId()) & mask;
+    }
+}
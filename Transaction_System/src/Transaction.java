@@ -1,12 +1,26 @@
+import java.util.Comparator;
+
 /**
  * Represents a transaction between two accounts.
+ * <p>
+ * A transaction read back from a transaction system carries its sequence number, the ID of its record in the
+ * system's history, which increases in the order records are stored, and a {@link HybridLogicalClock} stamp,
+ * which increases in the order transactions commit on each account. Sorting by {@link #COMMIT_ORDER} merges
+ * the histories of several accounts into one commit order.
  */
 public class Transaction {
 
+    /**
+     * Orders transactions by stamp, then by sequence number.
+     */
+    public static final Comparator<Transaction> COMMIT_ORDER =
+            Comparator.comparingLong(Transaction::getStamp).thenComparingLong(Transaction::getSequence);
+
     private final int fromAccountId;
     private final int toAccountId;
     private final double amount;
-    private final long timestamp;
+    private final long stamp;
+    private final long sequence; // History record ID, or -1 if the transaction has not been stored
     private final boolean isReversed;
 
     /**
@@ -18,17 +32,69 @@ public class Transaction {
      * @param isReversed    true if the transaction is a reversal, false otherwise
      */
     public Transaction(int fromAccountId, int toAccountId, double amount, boolean isReversed) {
+        this(fromAccountId, toAccountId, amount, System.currentTimeMillis(), isReversed);
+    }
+
+    /**
+     * Create a transaction with a known timestamp, for example when it is read back from storage.
+     *
+     * @param fromAccountId the ID of the account the money is coming from
+     * @param toAccountId   the ID of the account the money is going to
+     * @param amount        the amount of money being transferred
+     * @param timestamp     the time of the transaction in milliseconds since the epoch
+     * @param isReversed    true if the transaction is a reversal, false otherwise
+     */
+    Transaction(int fromAccountId, int toAccountId, double amount, long timestamp, boolean isReversed) {
+        this(fromAccountId, toAccountId, amount, HybridLogicalClock.fromMillis(timestamp), -1, isReversed);
+    }
+
+    /**
+     * Create a transaction read back from a history store.
+     *
+     * @param stamp    the hybrid logical clock stamp of the transaction
+     * @param sequence the ID of the transaction's history record
+     */
+    Transaction(int fromAccountId, int toAccountId, double amount, long stamp, long sequence, boolean isReversed) {
         this.fromAccountId = fromAccountId;
         this.toAccountId = toAccountId;
         this.amount = amount;
-        this.timestamp = System.currentTimeMillis();
+        this.stamp = stamp;
+        this.sequence = sequence;
         this.isReversed = isReversed;
     }
 
+    public int getFromAccountId() {
+        return fromAccountId;
+    }
+
+    public int getToAccountId() {
+        return toAccountId;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public long getTimestamp() {
+        return HybridLogicalClock.toMillis(stamp);
+    }
+
+    public long getStamp() {
+        return stamp;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isReversed() {
+        return isReversed;
+    }
+
     @Override
     public String toString() {
         String status = isReversed ? "REV:" : "TRX:";
         return String.format("%s $%.2f | from Account %d | to Account %d | %tc",
-                status, amount, fromAccountId, toAccountId, timestamp);
+                status, amount, fromAccountId, toAccountId, getTimestamp());
     }
 }
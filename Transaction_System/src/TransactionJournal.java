@@ -0,0 +1,503 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only binary write-ahead journal of account openings and transfers.
+ * <p>
+ * Appending threads only copy their record into an in-memory buffer. A background flusher swaps that buffer
+ * for a spare one, writes it to the file in one call and, depending on the {@link SyncPolicy}, forces it to
+ * disk, so every transfer that arrived in the meantime shares the same write and fsync (group commit).
+ * <p>
+ * Records are 32 bytes: type, a flag byte, a format byte, a reserved byte, two account IDs, the raw bits of
+ * the amount, the {@link HybridLogicalClock} stamp and a CRC32C of the preceding 28 bytes. Records written
+ * before stamps were introduced hold a plain millisecond timestamp, marked by a zero format byte, and are read
+ * back with the first stamp of that millisecond. A torn or corrupt tail left by a crash is detected by
+ * its checksum and cut off when the journal is reopened. The legs of a multi-leg posting are written as
+ * consecutive transfer records, each but the last flagged as having more legs to follow, and a posting that
+ * was not written completely is cut off with the tail.
+ */
+public class TransactionJournal implements AutoCloseable {
+
+    /**
+     * When appended records are forced to disk.
+     */
+    public enum SyncPolicy {
+        /**
+         * Every flush is followed by an fsync, and {@link #awaitDurable} waits for it.
+         */
+        ALWAYS,
+        /**
+         * Written data is forced to disk at most once per sync interval; callers do not wait.
+         */
+        INTERVAL,
+        /**
+         * Data is written to the file and left to the operating system to persist; callers do not wait.
+         */
+        NEVER
+    }
+
+    /**
+     * Receives the records of a journal in the order they were appended.
+     */
+    public interface Visitor {
+        void onOpen(int accountId, double balance, long stamp);
+
+        void onTransfer(int fromAccountId, int toAccountId, double amount, long stamp);
+    }
+
+    static final int RECORD_SIZE = 32;
+    private static final int CHECKSUM_OFFSET = 28;
+    private static final byte OPEN = 1;
+    private static final byte TRANSFER = 2;
+    private static final byte MORE_LEGS = 1; // Flag: the next record belongs to the same posting
+    private static final byte STAMPED = 1; // Format: the record holds a clock stamp rather than a timestamp
+    private static final int BUFFER_RECORDS = 4096;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final SyncPolicy policy;
+    private final long syncIntervalNanos;
+    private final long recoveredRecords; // Number of valid records found when the journal was opened
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasWork = lock.newCondition(); // Signalled when records are appended or on close
+    private final Condition hasSpace = lock.newCondition(); // Signalled when the flusher hands back a buffer
+    private final Condition flushed = lock.newCondition(); // Signalled when durableSequence advances
+    private final PriorityQueue<Callback> callbacks = new PriorityQueue<>(); // Waiting for durability, by sequence
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE); // Scratch space, guarded by lock
+    private final CRC32C checksum = new CRC32C(); // Guarded by lock
+    private ByteBuffer pending; // Records waiting to be written, guarded by lock
+    private ByteBuffer spare; // Empty buffer for the next swap, null while the flusher is writing
+    private long appendedSequence; // Sequence number of the last appended record
+    private long durableSequence; // Sequence number of the last record that met the sync policy
+    private IOException failure; // First write error; the journal accepts no more records after it
+    private boolean closed;
+
+    private final Thread flusher;
+
+    private TransactionJournal(Path path, FileChannel channel, SyncPolicy policy, long syncIntervalMillis,
+                               long recoveredRecords) {
+        this.path = path;
+        this.channel = channel;
+        this.policy = policy;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+        this.recoveredRecords = recoveredRecords;
+        this.appendedSequence = recoveredRecords;
+        this.durableSequence = recoveredRecords;
+        this.pending = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE);
+        this.spare = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_SIZE);
+        this.flusher = new Thread(this::flushLoop, "Journal flusher " + path.getFileName());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Open a journal file, creating it if needed and cutting off any torn tail left by a crash.
+     *
+     * @param path               the journal file
+     * @param policy             when appended records are forced to disk
+     * @param syncIntervalMillis the sync interval for {@link SyncPolicy#INTERVAL}
+     * @return the open journal, positioned after its last valid record
+     * @throws IOException if the file cannot be opened or read
+     */
+    public static TransactionJournal open(Path path, SyncPolicy policy, long syncIntervalMillis) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long validRecords = scan(channel, Long.MAX_VALUE, null);
+            channel.truncate(validRecords * RECORD_SIZE);
+            channel.position(validRecords * RECORD_SIZE);
+            return new TransactionJournal(path, channel, policy, syncIntervalMillis, validRecords);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Replay the records that were in the journal when it was opened.
+     *
+     * @param visitor receives each record in order
+     * @throws IOException if the file cannot be read
+     */
+    public void replay(Visitor visitor) throws IOException {
+        scan(channel, recoveredRecords, visitor);
+    }
+
+    /**
+     * Get the number of valid records that were in the journal when it was opened.
+     *
+     * @return the number of recovered records
+     */
+    public long getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    /**
+     * Append the opening balance of an account.
+     *
+     * @param stamp the clock stamp of the opening
+     * @return the sequence number of the record
+     * @throws IOException if the journal has failed or is closed
+     */
+    public long appendOpen(int accountId, double balance, long stamp) throws IOException {
+        return append(OPEN, accountId, 0, balance, stamp);
+    }
+
+    /**
+     * Append a completed transfer.
+     *
+     * @param stamp the clock stamp of the transfer
+     * @return the sequence number of the record
+     * @throws IOException if the journal has failed or is closed
+     */
+    public long appendTransfer(int fromAccountId, int toAccountId, double amount, long stamp) throws IOException {
+        return append(TRANSFER, fromAccountId, toAccountId, amount, stamp);
+    }
+
+    /**
+     * Append the legs of a multi-leg posting. The legs are written together, so after a crash either all of
+     * them are replayed or none.
+     *
+     * @param legs  the legs of the posting
+     * @param stamp the clock stamp of the posting, shared by its legs
+     * @return the sequence number of the last leg
+     * @throws IOException              if the journal has failed or is closed
+     * @throws IllegalArgumentException if the posting has no legs or does not fit in a journal buffer
+     */
+    public long appendPosting(List<TransferRequest> legs, long stamp) throws IOException {
+        int count = legs.size();
+        if (count == 0 || count > BUFFER_RECORDS) {
+            throw new IllegalArgumentException("A posting must have between 1 and " + BUFFER_RECORDS +
+                    " legs. Provided: " + count);
+        }
+        lock.lock();
+        try {
+            awaitSpace(count * RECORD_SIZE);
+            for (int i = 0; i < count; i++) {
+                TransferRequest leg = legs.get(i);
+                encode(record, checksum, TRANSFER, i < count - 1 ? MORE_LEGS : 0, leg.getFromAccountId(),
+                        leg.getToAccountId(), leg.getAmount(), stamp);
+                pending.put(record.array());
+            }
+            appendedSequence += count;
+            hasWork.signal();
+            return appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check whether callers have to wait for records to become durable under this journal's policy.
+     *
+     * @return true if appended records are only durable after {@link #awaitDurable} returns
+     */
+    public boolean isSynchronous() {
+        return policy == SyncPolicy.ALWAYS;
+    }
+
+    /**
+     * Wait until a record meets the sync policy. Returns at once unless the policy is {@link SyncPolicy#ALWAYS}.
+     *
+     * @param sequence the sequence number returned by an append
+     * @throws IOException if the journal failed before the record was written
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        if (!isSynchronous()) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (durableSequence < sequence && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            if (durableSequence < sequence) {
+                throw new IOException("Journal write failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Run an action once a record meets the sync policy, without blocking the caller.
+     * The action runs on the flusher thread, or at once if no waiting is needed.
+     *
+     * @param sequence the sequence number returned by an append
+     * @param action   receives null once the record is durable, or the error if the journal failed first
+     */
+    public void whenDurable(long sequence, Consumer<IOException> action) {
+        IOException error = null;
+        if (isSynchronous()) {
+            lock.lock();
+            try {
+                if (durableSequence < sequence && failure == null) {
+                    callbacks.add(new Callback(sequence, action));
+                    return;
+                }
+                if (durableSequence < sequence) {
+                    error = new IOException("Journal write failed", failure);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        action.accept(error);
+    }
+
+    /**
+     * Write all appended records, force them to disk and close the file.
+     *
+     * @throws IOException if the final write or close fails
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            hasWork.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (failure == null) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private long append(byte type, int first, int second, double amount, long stamp) throws IOException {
+        lock.lock();
+        try {
+            awaitSpace(RECORD_SIZE);
+            encode(record, checksum, type, (byte) 0, first, second, amount, stamp);
+            pending.put(record.array());
+            appendedSequence++;
+            hasWork.signal();
+            return appendedSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the pending buffer has room for some bytes. Called with the lock held.
+     *
+     * @throws IOException if the journal has failed or is closed
+     */
+    private void awaitSpace(int bytes) throws IOException {
+        while (pending.remaining() < bytes && failure == null && !closed) {
+            hasSpace.awaitUninterruptibly(); // Both buffers are full, wait for the flusher
+        }
+        if (failure != null) {
+            throw new IOException("Journal " + path + " has failed", failure);
+        }
+        if (closed) {
+            throw new IOException("Journal " + path + " is closed");
+        }
+    }
+
+    /**
+     * Background loop that writes out appended records in groups.
+     */
+    private void flushLoop() {
+        long lastSync = System.nanoTime();
+        boolean unsynced = false;
+        while (true) {
+            ByteBuffer batch;
+            long batchSequence;
+            lock.lock();
+            try {
+                while (pending.position() == 0 && !closed) {
+                    if (policy == SyncPolicy.INTERVAL && unsynced) {
+                        long wait = syncIntervalNanos - (System.nanoTime() - lastSync);
+                        if (wait <= 0) {
+                            break;
+                        }
+                        hasWork.awaitNanos(wait);
+                    } else {
+                        hasWork.awaitUninterruptibly();
+                    }
+                }
+                if (pending.position() == 0 && closed) {
+                    return;
+                }
+                batch = pending;
+                pending = spare;
+                spare = null;
+                batchSequence = appendedSequence;
+                hasSpace.signalAll();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            List<Callback> ready = new ArrayList<>();
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                unsynced = true;
+                long now = System.nanoTime();
+                if (policy == SyncPolicy.ALWAYS
+                        || (policy == SyncPolicy.INTERVAL && now - lastSync >= syncIntervalNanos)) {
+                    channel.force(false);
+                    lastSync = now;
+                    unsynced = false;
+                }
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    ready.addAll(callbacks);
+                    callbacks.clear();
+                    flushed.signalAll();
+                    hasSpace.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                System.err.println(Thread.currentThread().getName() + " Journal write failed: " + e.getMessage());
+                IOException error = new IOException("Journal write failed", e);
+                ready.forEach(callback -> callback.action.accept(error));
+                return;
+            }
+
+            lock.lock();
+            try {
+                batch.clear();
+                spare = batch;
+                durableSequence = batchSequence;
+                while (!callbacks.isEmpty() && callbacks.peek().sequence <= durableSequence) {
+                    ready.add(callbacks.poll());
+                }
+                flushed.signalAll();
+                hasSpace.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            ready.forEach(callback -> callback.action.accept(null));
+        }
+    }
+
+    private static void encode(ByteBuffer record, CRC32C checksum, byte type, byte flags, int first, int second,
+                               double amount, long stamp) {
+        record.clear();
+        record.put(type).put(flags).put(STAMPED).put((byte) 0)
+                .putInt(first)
+                .putInt(second)
+                .putLong(Double.doubleToRawLongBits(amount))
+                .putLong(stamp);
+        checksum.reset();
+        checksum.update(record.array(), 0, CHECKSUM_OFFSET);
+        record.putInt((int) checksum.getValue());
+    }
+
+    /**
+     * Read records from the start of the file until a record is torn or fails its checksum.
+     *
+     * @param channel    the journal file
+     * @param maxRecords stop after this many records
+     * @param visitor    receives each valid record, may be null
+     * @return the number of valid records read, up to the end of the last complete posting
+     */
+    private static long scan(FileChannel channel, long maxRecords, Visitor visitor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_RECORDS * RECORD_SIZE);
+        CRC32C checksum = new CRC32C();
+        List<TransferRequest> legs = new ArrayList<>(); // Legs of a posting whose last leg is not read yet
+        long position = 0;
+        long records = 0;
+        long complete = 0; // Records up to the end of the last complete posting
+        while (records < maxRecords) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_SIZE && records < maxRecords) {
+                int start = buffer.position();
+                checksum.reset();
+                checksum.update(buffer.array(), start, CHECKSUM_OFFSET);
+                byte type = buffer.get(start);
+                if ((int) checksum.getValue() != buffer.getInt(start + CHECKSUM_OFFSET)
+                        || (type != OPEN && type != TRANSFER)) {
+                    return complete;
+                }
+                int first = buffer.getInt(start + 4);
+                int second = buffer.getInt(start + 8);
+                double amount = Double.longBitsToDouble(buffer.getLong(start + 12));
+                long stamp = buffer.getLong(start + 20);
+                if (buffer.get(start + 2) != STAMPED) {
+                    stamp = HybridLogicalClock.fromMillis(stamp); // Written before records carried stamps
+                }
+                if (buffer.get(start + 1) == MORE_LEGS) {
+                    legs.add(new TransferRequest(first, second, amount)); // Held back until the posting is complete
+                } else {
+                    if (visitor != null) {
+                        for (TransferRequest leg : legs) {
+                            visitor.onTransfer(leg.getFromAccountId(), leg.getToAccountId(), leg.getAmount(),
+                                    stamp);
+                        }
+                        if (type == OPEN) {
+                            visitor.onOpen(first, amount, stamp);
+                        } else {
+                            visitor.onTransfer(first, second, amount, stamp);
+                        }
+                    }
+                    legs.clear();
+                    complete = records + 1;
+                }
+                buffer.position(start + RECORD_SIZE);
+                records++;
+                position += RECORD_SIZE;
+            }
+            if (read < RECORD_SIZE && buffer.remaining() > 0) {
+                break; // Torn record at the end of the file
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * An action waiting for a record to become durable.
+     */
+    private static final class Callback implements Comparable<Callback> {
+        private final long sequence;
+        private final Consumer<IOException> action;
+
+        Callback(long sequence, Consumer<IOException> action) {
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Callback other) {
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
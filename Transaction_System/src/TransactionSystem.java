@@ -1,28 +1,521 @@
-import exceptions.AccountNotFoundException;
-import exceptions.InvalidTransactionException;
 import exceptions.TransactionLockException;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * A system for transferring money between bank accounts.
  */
 public class TransactionSystem {
 
-    private final Map<Integer, BankAccount> accounts; // Map of account IDs to bank accounts
+    /**
+     * The counterparty recorded in history and the journal for money that bulk adjustments bring into or take
+     * out of the system, such as interest and fees. No account may use this ID.
+     */
+    public static final int EXTERNAL_ACCOUNT_ID = 0;
+
+    private static final int OPTIMISTIC_ATTEMPTS = 4; // Conflicts before an optimistic transfer takes the locks
+    private static final int MIN_ADJUSTMENT_SLICE = 256; // Fewest accounts a bulk adjustment task works through
+    private static final int DEFAULT_DEDUP_ENTRIES = 1 << 16; // Request IDs remembered by the default cache
+    private static final long DEFAULT_DEDUP_TTL_MINUTES = 10;
+    // States of the first-mutation guard, which decides whether snapshots can still be enabled
+    private static final int UNTOUCHED = 0; // Nothing has changed a balance yet
+    private static final int MUTATED = 1; // A transfer, leg or adjustment has started; snapshots stay off
+    private static final int ENABLING_SNAPSHOTS = 2; // enableSnapshots is publishing the opening balances
+    private static final int SNAPSHOTS_ON = 3;
+
+    private final AccountDirectory accounts; // Index of account IDs to bank accounts
+    private final AccountEngine engine; // Balance engine used by the accounts
+    private volatile PartitionedTransferExecutor partitionedExecutor; // Set while asynchronous mode is running
+    private final TransactionJournal journal; // Write-ahead journal, or null when running in memory only
+    private final HistoryStore historyStore; // Shared store of every account's transaction records
+    private volatile EventLog events = EventLog.console(); // Where transfer events are published
+    private final TransferMetrics metrics; // Latency histograms and outcome counters
+    private final VersionClock versionClock = new VersionClock(); // Commit versions for balance snapshots
+    private final HybridLogicalClock clock = new HybridLogicalClock(); // Stamps for committed transactions
+    private volatile boolean snapshots; // Whether transfers publish balance versions
+    private final AtomicInteger mutationState = new AtomicInteger(UNTOUCHED); // First-mutation guard state
+    private BankAccount[] snapshotOrder; // All accounts by ID, set before snapshots are enabled
+    private volatile TransferMode transferMode = TransferMode.PESSIMISTIC; // How transfer() commits
+    private volatile TransferDedupCache dedupCache; // Results by client request ID, created on first use
 
     /**
      * Create a new transaction system with a list of bank accounts.
      *
      * @param accountList the list of bank accounts
+     * @throws IllegalArgumentException if an account uses {@link #EXTERNAL_ACCOUNT_ID}
      */
     public TransactionSystem(List<BankAccount> accountList) {
-        this.accounts = new ConcurrentHashMap<>(); // usingg ConcurrentHashMap for thread safety
+        this(accountList, AccountEngine.LOCKING);
+    }
+
+    /**
+     * Create a new transaction system with a list of bank accounts backed by the given balance engine.
+     *
+     * @param accountList the list of bank accounts
+     * @param engine      the balance engine; accounts are converted to it if needed
+     * @throws IllegalArgumentException if an account uses {@link #EXTERNAL_ACCOUNT_ID}
+     */
+    public TransactionSystem(List<BankAccount> accountList, AccountEngine engine) {
+        this(accountList, engine, null, new HistoryStore(), false);
+    }
+
+    /**
+     * Create a new transaction system that records the opening balances and every completed transfer
+     * in a write-ahead journal, so it can be rebuilt with {@link #recover} after a restart.
+     *
+     * @param accountList the list of bank accounts
+     * @param engine      the balance engine; accounts are converted to it if needed
+     * @param journal     an empty journal to write to
+     * @throws IllegalArgumentException if the journal already holds records or an account uses
+     *                                  {@link #EXTERNAL_ACCOUNT_ID}
+     * @throws UncheckedIOException     if the opening balances cannot be written
+     */
+    public TransactionSystem(List<BankAccount> accountList, AccountEngine engine, TransactionJournal journal) {
+        this(accountList, engine, journal, new HistoryStore());
+    }
+
+    /**
+     * Create a new transaction system that keeps the history of all accounts in the given store.
+     *
+     * @param accountList  the list of bank accounts
+     * @param engine       the balance engine; accounts are converted to it if needed
+     * @param journal      an empty journal to write to, or null to run in memory only
+     * @param historyStore the store for transaction history, for example one that spills old records to disk
+     * @throws IllegalArgumentException if the journal already holds records or an account uses
+     *                                  {@link #EXTERNAL_ACCOUNT_ID}
+     * @throws UncheckedIOException     if the opening balances cannot be written
+     */
+    public TransactionSystem(List<BankAccount> accountList, AccountEngine engine, TransactionJournal journal,
+                             HistoryStore historyStore) {
+        this(accountList, engine, journal, historyStore, journal != null);
+    }
+
+    private TransactionSystem(List<BankAccount> accountList, AccountEngine engine, TransactionJournal journal,
+                              HistoryStore historyStore, boolean journalOpenings) {
+        this(register(accountList, engine, historyStore), engine, journal, historyStore);
+        if (journalOpenings && journal.getRecoveredRecords() > 0) {
+            throw new IllegalArgumentException("Journal already holds records, use TransactionSystem.recover");
+        }
+
+        if (journalOpenings) {
+            try {
+                long stamp = clock.now();
+                long sequence = 0;
+                for (BankAccount account : accountList) {
+                    sequence = journal.appendOpen(account.getId(), account.getBalance(), stamp);
+                }
+                journal.awaitDurable(sequence);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to journal opening balances", e);
+            }
+        }
+    }
+
+    private TransactionSystem(AccountDirectory accounts, AccountEngine engine, TransactionJournal journal,
+                              HistoryStore historyStore) {
+        this.engine = engine;
+        this.journal = journal;
+        this.historyStore = historyStore;
+        this.accounts = accounts;
+        this.metrics = new TransferMetrics(accounts);
+    }
+
+    /**
+     * Convert accounts to the engine and index them in a registry (lock-free reads, no boxing of IDs).
+     */
+    private static AccountRegistry register(List<BankAccount> accountList, AccountEngine engine,
+                                            HistoryStore historyStore) {
+        AccountRegistry registry = new AccountRegistry(accountList.size());
         for (BankAccount account : accountList) {
-            accounts.put(account.getId(), account);
+            if (account.getId() == EXTERNAL_ACCOUNT_ID) {
+                throw new IllegalArgumentException("Account ID " + EXTERNAL_ACCOUNT_ID
+                        + " is reserved for external transfers");
+            }
+            BankAccount adopted = engine.adopt(account);
+            adopted.attachHistoryStore(historyStore);
+            registry.put(adopted);
+        }
+        return registry;
+    }
+
+    /**
+     * Start a transaction system from an account snapshot file, such as one written by
+     * {@link #writeAccountSnapshot}.
+     * <p>
+     * The file is memory-mapped, and its checksum blocks are verified and indexed in parallel without creating
+     * any accounts. Each account is created the first time a transfer or lookup touches it, so the system can
+     * take transfers as soon as this returns, even with millions of accounts. Transfers are kept in memory
+     * only.
+     *
+     * @param snapshotFile the account snapshot file
+     * @param engine       the balance engine for the accounts
+     * @return the new transaction system
+     * @throws IOException if the file cannot be read or is corrupt
+     */
+    public static TransactionSystem load(Path snapshotFile, AccountEngine engine) throws IOException {
+        HistoryStore historyStore = new HistoryStore();
+        AccountDirectory accounts = new SnapshotAccountRegistry(AccountSnapshotFile.open(snapshotFile), engine,
+                historyStore);
+        return new TransactionSystem(accounts, engine, null, historyStore);
+    }
+
+    /**
+     * Write the balance of every account to an account snapshot file that {@link #load} can start from. With
+     * snapshots enabled the balances come from one consistent {@link #snapshot()}; otherwise they are read one
+     * account at a time, so transfers should be stopped first for the total to be exact.
+     *
+     * @param snapshotFile the file to write, replaced atomically
+     * @throws IOException if the file cannot be written
+     */
+    public void writeAccountSnapshot(Path snapshotFile) throws IOException {
+        if (snapshots) {
+            BalanceSnapshot snapshot = snapshot();
+            int[] ids = snapshot.getAccountIds();
+            double[] balances = new double[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                balances[i] = snapshot.getBalance(ids[i]);
+            }
+            AccountSnapshotFile.write(snapshotFile, ids, balances);
+            return;
+        }
+        int[] ids = new int[accounts.size()];
+        double[] balances = new double[ids.length];
+        accounts.copyBalances(ids, balances);
+        AccountSnapshotFile.write(snapshotFile, ids, balances);
+    }
+
+    /**
+     * Rebuild a transaction system from the balances and transfers recorded in a journal.
+     * New transfers are appended to the same journal.
+     *
+     * @param journal the journal to replay
+     * @param engine  the balance engine for the recovered accounts
+     * @return the recovered transaction system
+     * @throws IOException if the journal cannot be read
+     */
+    public static TransactionSystem recover(TransactionJournal journal, AccountEngine engine) throws IOException {
+        return recover(journal, engine, new HistoryStore());
+    }
+
+    /**
+     * Rebuild a transaction system from a journal, keeping the recovered history in the given store.
+     *
+     * @param journal      the journal to replay
+     * @param engine       the balance engine for the recovered accounts
+     * @param historyStore an empty store for transaction history
+     * @return the recovered transaction system
+     * @throws IOException if the journal cannot be read, opens {@link #EXTERNAL_ACCOUNT_ID}, has a transfer
+     *                     that refers to an account the journal never opened, or replays an account to a
+     *                     negative balance
+     */
+    public static TransactionSystem recover(TransactionJournal journal, AccountEngine engine,
+                                            HistoryStore historyStore) throws IOException {
+        Map<Integer, RecoveredAccount> recovered = new LinkedHashMap<>();
+        long[] latestStamp = {0};
+        IOException[] corruption = {null}; // The visitor cannot throw, so the first problem is kept here
+        journal.replay(new TransactionJournal.Visitor() {
+            private long recordNumber; // Of the record being visited, counting from 1
+
+            @Override
+            public void onOpen(int accountId, double balance, long stamp) {
+                recordNumber++;
+                if (corruption[0] == null && accountId == EXTERNAL_ACCOUNT_ID) {
+                    corruption[0] = new IOException("Journal " + journal.getPath() + " record " + recordNumber
+                            + " opens account " + accountId + ", which is reserved for external transfers");
+                }
+                if (corruption[0] != null) {
+                    return;
+                }
+                recovered.put(accountId, new RecoveredAccount(balance));
+                latestStamp[0] = Math.max(latestStamp[0], stamp);
+            }
+
+            @Override
+            public void onTransfer(int fromAccountId, int toAccountId, double amount, long stamp) {
+                recordNumber++;
+                if (corruption[0] != null) {
+                    return;
+                }
+                RecoveredAccount from = fromAccountId == EXTERNAL_ACCOUNT_ID ? null : recovered.get(fromAccountId);
+                RecoveredAccount to = toAccountId == EXTERNAL_ACCOUNT_ID ? null : recovered.get(toAccountId);
+                int unknown = from == null && fromAccountId != EXTERNAL_ACCOUNT_ID ? fromAccountId
+                        : to == null && toAccountId != EXTERNAL_ACCOUNT_ID ? toAccountId : EXTERNAL_ACCOUNT_ID;
+                if (unknown != EXTERNAL_ACCOUNT_ID) {
+                    corruption[0] = new IOException("Journal " + journal.getPath() + " record " + recordNumber
+                            + " transfers $" + String.format("%.2f", amount) + " from account " + fromAccountId
+                            + " to account " + toAccountId + ", but account " + unknown + " was never opened");
+                    return;
+                }
+                // Final balances do not depend on the order of transfers, so replay cannot overdraw
+                long recordId = historyStore.appendStamped(fromAccountId, toAccountId, amount, stamp, false);
+                latestStamp[0] = Math.max(latestStamp[0], stamp);
+                if (from != null) {
+                    from.apply(-amount, recordId);
+                }
+                if (to != null) {
+                    to.apply(amount, recordId);
+                }
+            }
+        });
+        if (corruption[0] != null) {
+            throw corruption[0];
+        }
+
+        List<BankAccount> accountList = new ArrayList<>(recovered.size());
+        for (Map.Entry<Integer, RecoveredAccount> entry : recovered.entrySet()) {
+            RecoveredAccount state = entry.getValue();
+            if (Money.toCents(state.balance) < 0) {
+                throw new IOException("Journal " + journal.getPath() + " replays account " + entry.getKey()
+                        + " to a negative balance of -$" + String.format("%.2f", -state.balance));
+            }
+            // Only rounding error below half a cent is left to absorb here
+            BankAccount account = new BankAccount(entry.getKey(), Math.max(0, state.balance));
+            account.attachHistoryStore(historyStore);
+            account.addHistoryRecords(state.recordIds, state.recordCount);
+            accountList.add(account);
+        }
+        TransactionSystem system = new TransactionSystem(accountList, engine, journal, historyStore, false);
+        system.clock.observe(latestStamp[0]); // New transactions are stamped after everything replayed
+        return system;
+    }
+
+    /**
+     * Balance and history of an account while a journal is replayed.
+     */
+    private static final class RecoveredAccount {
+        private double balance;
+        private long[] recordIds = new long[4];
+        private int recordCount;
+
+        RecoveredAccount(double balance) {
+            this.balance = balance;
+        }
+
+        void apply(double delta, long recordId) {
+            balance += delta;
+            if (recordCount == recordIds.length) {
+                recordIds = Arrays.copyOf(recordIds, recordCount * 2);
+            }
+            recordIds[recordCount++] = recordId;
+        }
+    }
+
+    /**
+     * Get the balance engine used by this system.
+     *
+     * @return the account engine
+     */
+    public AccountEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Publish transfer events to a different event log instead of the shared console log.
+     *
+     * @param events the event log
+     */
+    public void setEventLog(EventLog events) {
+        this.events = events;
+    }
+
+    public EventLog getEventLog() {
+        return events;
+    }
+
+    /**
+     * Get the latency histograms and counters of this system's transfers, which can also be exposed over JMX
+     * with {@link TransferMetrics#registerMBean}.
+     *
+     * @return the transfer metrics
+     */
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Choose how {@link #transfer} commits transfers between lock-based accounts.
+     *
+     * @param transferMode the transfer mode
+     */
+    public void setTransferMode(TransferMode transferMode) {
+        this.transferMode = transferMode;
+    }
+
+    public TransferMode getTransferMode() {
+        return transferMode;
+    }
+
+    /**
+     * Answer transfers sent with a client request ID from a different cache, for example one sized for the
+     * expected retry window. Results cached so far are forgotten.
+     *
+     * @param dedupCache the cache
+     */
+    public void setDedupCache(TransferDedupCache dedupCache) {
+        this.dedupCache = dedupCache;
+    }
+
+    /**
+     * Get the cache that answers transfers sent with a client request ID, creating the default one, which
+     * keeps up to 65536 results for ten minutes, if none has been set.
+     *
+     * @return the dedup cache
+     */
+    public TransferDedupCache getDedupCache() {
+        TransferDedupCache cache = dedupCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = dedupCache;
+                if (cache == null) {
+                    cache = new TransferDedupCache(DEFAULT_DEDUP_ENTRIES, DEFAULT_DEDUP_TTL_MINUTES, TimeUnit.MINUTES);
+                    dedupCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Enable consistent balance snapshots.
+     * <p>
+     * From now on every transfer and batch publishes the new balances of its accounts under one commit
+     * version while it holds their locks, so lock-free accounts are locked during transfers too. Must be
+     * called before the first transfer; asynchronous transfers cannot be combined with snapshots because a
+     * cross-partition transfer is not atomic.
+     *
+     * @throws IllegalStateException if a transfer, batch, posting, shard leg or bulk adjustment has already
+     *                               started, or asynchronous mode is running
+     */
+    public synchronized void enableSnapshots() {
+        if (snapshots) {
+            return;
+        }
+        if (partitionedExecutor != null || !mutationState.compareAndSet(UNTOUCHED, ENABLING_SNAPSHOTS)) {
+            throw new IllegalStateException("Snapshots must be enabled before any transfer is run");
+        }
+        BankAccount[] all = new BankAccount[accounts.size()];
+        int[] next = {0};
+        accounts.forEach(account -> all[next[0]++] = account);
+        Arrays.sort(all, Comparator.comparingInt(BankAccount::getId));
+        publishVersions(all); // The opening balances
+        snapshotOrder = all;
+        snapshots = true;
+        mutationState.set(SNAPSHOTS_ON);
+    }
+
+    /**
+     * Note that a balance is about to change, so snapshots can no longer be enabled. Every path that changes
+     * balances calls this before it reads whether snapshots are on. A call that races with
+     * {@link #enableSnapshots} waits for it to finish, so it then runs with snapshots on.
+     */
+    private void noteMutation() {
+        int state = mutationState.get();
+        if (state == MUTATED || state == SNAPSHOTS_ON) {
+            return; // The common case: one read of a value that no longer changes
+        }
+        if (state == UNTOUCHED && mutationState.compareAndSet(UNTOUCHED, MUTATED)) {
+            return;
+        }
+        if (mutationState.get() == ENABLING_SNAPSHOTS) {
+            synchronized (this) {
+                // enableSnapshots holds the monitor until snapshots are on
+            }
+        }
+    }
+
+    /**
+     * Take a point-in-time view of every balance that is consistent with completed transfers: each transfer
+     * is either fully in it or not at all, so the total matches the money in the system.
+     * <p>
+     * Taking a snapshot never blocks transfers. It waits only for transfers that are publishing their
+     * versions at that moment, and it costs one pass over the accounts.
+     *
+     * @return the snapshot
+     * @throws IllegalStateException if snapshots have not been enabled
+     */
+    public BalanceSnapshot snapshot() {
+        if (!snapshots) {
+            throw new IllegalStateException("Snapshots are not enabled");
+        }
+        int reader = versionClock.acquireReader();
+        try {
+            long version = versionClock.readerVersion(reader);
+            BalanceSnapshot snapshot = new BalanceSnapshot(version, snapshotOrder.length);
+            for (BankAccount account : snapshotOrder) {
+                snapshot.add(account, account.versionAt(version));
+            }
+            return snapshot;
+        } finally {
+            versionClock.releaseReader(reader);
+        }
+    }
+
+    /**
+     * Start asynchronous mode, in which {@link #transferAsync} runs transfers on single-writer partitions.
+     *
+     * @param partitionCount the number of partition worker threads
+     * @throws IllegalStateException if asynchronous mode is already running
+     */
+    public synchronized void startAsync(int partitionCount) {
+        if (partitionedExecutor != null) {
+            throw new IllegalStateException("Asynchronous mode is already running");
+        }
+        if (snapshots) {
+            throw new IllegalStateException("Asynchronous transfers cannot be used with snapshots");
+        }
+        partitionedExecutor = new PartitionedTransferExecutor(accounts, journal, historyStore, clock,
+                partitionCount);
+    }
+
+    /**
+     * Stop asynchronous mode. New asynchronous transfers are refused from now on, and this waits until every
+     * transfer already accepted has been applied or rejected, including credits still being handed between
+     * partitions, before it stops the partition threads.
+     */
+    public synchronized void shutdownAsync() {
+        if (partitionedExecutor != null) {
+            partitionedExecutor.shutdown();
+            partitionedExecutor = null;
+        }
+    }
+
+    /**
+     * Transfer money between two bank accounts asynchronously, without taking account locks.
+     * <p>
+     * Balances stay correct when this is mixed with {@link #transfer}, but a cross-partition transfer is
+     * only atomic per account: the source is debited before the destination is credited. With a journal,
+     * the future completes once the transfer has met the journal's sync policy.
+     *
+     * @param fromAccountId the ID of the account to transfer money from
+     * @param toAccountId   the ID of the account to transfer money to
+     * @param amount        the amount of money to transfer
+     * @return a future completed with the result of the transfer, or exceptionally if the journal failed, a
+     * step of the transfer failed or asynchronous mode is being shut down
+     * @throws IllegalStateException if asynchronous mode has not been started
+     */
+    public CompletableFuture<TransferResult> transferAsync(int fromAccountId, int toAccountId, double amount) {
+        PartitionedTransferExecutor executor = partitionedExecutor;
+        if (executor == null) {
+            throw new IllegalStateException("Asynchronous mode has not been started");
         }
+        noteMutation();
+        return executor.submit(fromAccountId, toAccountId, amount);
     }
 
     /**
@@ -34,7 +527,7 @@ public class TransactionSystem {
     private BankAccount getAccount(int accountId) {
         BankAccount account = accounts.get(accountId);
         if (account == null) {
-            System.err.println(Thread.currentThread().getName() + " Account with ID " + accountId + " not found.");
+            events.publish(EventType.ACCOUNT_NOT_FOUND, accountId, 0, 0);
             return null;
         }
         return account;
@@ -49,144 +542,1203 @@ public class TransactionSystem {
      * @return true if the transfer was successful, false otherwise
      */
     public boolean transfer(int fromAccountId, int toAccountId, double amount) {
-        String threadName = Thread.currentThread().getName();
-        System.out.println(threadName + " Starting transfer of $" + String.format("%.2f", amount) + " from Account " +
-                fromAccountId +
-                " to Account " + toAccountId);
+        return tryTransfer(fromAccountId, toAccountId, amount).isSuccess();
+    }
 
-        BankAccount fromAccount = getAccount(fromAccountId);
-        BankAccount toAccount = getAccount(toAccountId);
+    /**
+     * Transfer money between two bank accounts, reporting why a transfer was rejected. Rejections such as
+     * insufficient funds, unknown accounts and invalid amounts are returned as results, without creating
+     * exceptions.
+     *
+     * @param fromAccountId the ID of the account to transfer money from
+     * @param toAccountId   the ID of the account to transfer money to
+     * @param amount        the amount of money to transfer
+     * @return the result of the transfer
+     */
+    public TransferResult tryTransfer(int fromAccountId, int toAccountId, double amount) {
+        long startNanos = System.nanoTime();
+        TransferResult result = applyTransfer(fromAccountId, toAccountId, amount, null);
+        metrics.recordTransfer(result, System.nanoTime() - startNanos);
+        return result;
+    }
+
+    /**
+     * Transfer money between two bank accounts at most once per client request ID.
+     *
+     * @param requestId     the ID the client picked for this transfer and sends again with every retry
+     * @param fromAccountId the ID of the account to transfer money from
+     * @param toAccountId   the ID of the account to transfer money to
+     * @param amount        the amount of money to transfer
+     * @return true if the transfer was successful, now or when the request was first sent
+     * @see #tryTransfer(long, int, int, double)
+     */
+    public boolean transfer(long requestId, int fromAccountId, int toAccountId, double amount) {
+        return tryTransfer(requestId, fromAccountId, toAccountId, amount).isSuccess();
+    }
+
+    /**
+     * Transfer money between two bank accounts at most once per client request ID, so a client can retry a
+     * transfer that timed out without moving the money twice.
+     * <p>
+     * A request ID seen before is answered from the {@linkplain #getDedupCache() dedup cache} with the result
+     * of the first attempt, without taking account locks; if that attempt is still running, the retry waits
+     * for it. Lock timeouts and journal failures are not remembered, so retrying them runs the transfer again.
+     * A failure that left money moved, reported as ROLLBACK_FAILED, is remembered like a success, so a retry
+     * cannot move the money a second time.
+     *
+     * @param requestId     the ID the client picked for this transfer and sends again with every retry
+     * @param fromAccountId the ID of the account to transfer money from
+     * @param toAccountId   the ID of the account to transfer money to
+     * @param amount        the amount of money to transfer
+     * @return the result of the transfer, or REQUEST_ID_CONFLICT if the ID was already used for a different
+     *         transfer
+     */
+    public TransferResult tryTransfer(long requestId, int fromAccountId, int toAccountId, double amount) {
+        TransferDedupCache cache = getDedupCache();
+        TransferResult cached = cache.claim(requestId,
+                TransferDedupCache.fingerprint(fromAccountId, toAccountId, amount));
+        if (cached != null) {
+            // Neither is ever cached: the ID belongs to another transfer, or the wait was interrupted
+            if (cached != TransferResult.REQUEST_ID_CONFLICT && cached != TransferResult.LOCK_FAILED) {
+                metrics.recordDuplicateRequest();
+            }
+            return cached;
+        }
+        TransferResult result = null;
+        boolean[] unsettled = {false};
+        try {
+            long startNanos = System.nanoTime();
+            result = applyTransfer(fromAccountId, toAccountId, amount, unsettled);
+            metrics.recordTransfer(result, System.nanoTime() - startNanos);
+            return result;
+        } finally {
+            cache.complete(requestId, result, unsettled[0]);
+        }
+    }
+
+    /**
+     * Run one transfer under the account locks and wait for it to be durable.
+     *
+     * @param unsettled set to true if the transfer failed after money moved and could not be fully taken back,
+     *                  or null if the caller does not need to know
+     * @return the result of the transfer
+     */
+    private TransferResult applyTransfer(int fromAccountId, int toAccountId, double amount, boolean[] unsettled) {
+        noteMutation();
+        EventLog events = this.events;
+        events.publish(EventType.TRANSFER_STARTED, fromAccountId, toAccountId, amount);
 
         // if either account not found return false
+        BankAccount fromAccount = getAccount(fromAccountId);
+        BankAccount toAccount = getAccount(toAccountId);
         if (fromAccount == null || toAccount == null) {
-            if (fromAccount == null)
-                System.err.println(threadName +  new AccountNotFoundException(fromAccountId).getMessage());
-            if (toAccount == null)
-                System.err.println(threadName + new AccountNotFoundException(toAccountId).getMessage());
-            return false;
+            return TransferResult.ACCOUNT_NOT_FOUND;
         }
 
         // if the source and destination accounts are the same return false
         if (fromAccountId == toAccountId) {
-            System.err.println(threadName +
-                    new InvalidTransactionException("Cannot transfer money to the same account.").getMessage());
-            return false;
+            events.publish(EventType.SAME_ACCOUNT, fromAccountId, toAccountId, amount);
+            return TransferResult.SAME_ACCOUNT;
         }
 
         // if the amount is less than or equal to 0 return false
         if (amount <= 0) {
-            System.err.println(threadName + " " +
-                    new InvalidTransactionException("Transfer amount must be greater than 0.").getMessage());
-            return false;
+            events.publish(EventType.INVALID_AMOUNT, fromAccountId, toAccountId, amount);
+            return TransferResult.INVALID_AMOUNT;
+        }
+
+        // In optimistic mode, try to commit without the account locks first and only fall back to them
+        // after repeated conflicts. Snapshots need every transfer to hold the locks.
+        if (transferMode == TransferMode.OPTIMISTIC && !snapshots && fromAccount.needsTransferLock()
+                && toAccount.needsTransferLock()) {
+            TransferResult result = transferOptimistic(fromAccount, toAccount, amount, unsettled);
+            if (result != null) {
+                return result;
+            }
         }
 
-        // Lock the accounts in ascending order to prevent deadlocks
-        BankAccount firstLock = accounts.get(Math.min(fromAccountId, toAccountId));
-        BankAccount secondLock = accounts.get(Math.max(fromAccountId, toAccountId));
+        // Lock the accounts in ascending order to prevent deadlocks.
+        // Lock-free accounts update their balance atomically and are not locked, unless snapshots need
+        // both balances to change under one commit version.
+        BankAccount firstLock = fromAccountId < toAccountId ? fromAccount : toAccount;
+        BankAccount secondLock = fromAccountId < toAccountId ? toAccount : fromAccount;
+        boolean versioned = snapshots;
+        boolean lockFirst = versioned || firstLock.needsTransferLock();
+        boolean lockSecond = versioned || secondLock.needsTransferLock();
 
-        boolean withdrawalSuccessful = false; // Track successful withdrawal
-        boolean depositSuccessful = false; // Track successful deposit
+        boolean held = false; // Track that the amount is held on the source
+        boolean moved = false; // Track that the amount has reached the destination
+        boolean committed = false; // Track that the transfer is complete and journaled
+        TransferResult failure = TransferResult.LOCK_FAILED; // Why the transfer did not commit
+        long journalSequence = 0;
 
         try {
-            firstLock.lock();
+            if (lockFirst) {
+                lockAndMeasure(firstLock);
+            } else {
+                firstLock.recordContention(0);
+            }
             try {
-                secondLock.lock();
+                if (lockSecond) {
+                    lockAndMeasure(secondLock);
+                } else {
+                    secondLock.recordContention(0);
+                }
                 try {
                     try {
-                        Transaction transaction = new Transaction(fromAccountId, toAccountId, amount, false);
+                        // hold the amount on the source, if the destination can take it
+                        TransferResult reserved = toAccount.acceptsDeposit(amount) ? fromAccount.reserve(amount)
+                                : TransferResult.INVALID_AMOUNT;
+                        if (reserved != TransferResult.SUCCESS) {
+                            failure = reserved;
+                            publishRejection(reserved, fromAccount, toAccountId, amount);
+                        } else {
+                            held = true;
 
-                        // withdraw from the source
-                        fromAccount.withdraw(amount);
-                        withdrawalSuccessful = true;
-                        fromAccount.addTransaction(transaction);
+                            // journal and then store the transaction before any money reaches the destination,
+                            // so a transfer the journal refuses leaves no record for cursors and replicas
+                            long stamp = stampAfter(fromAccount, toAccount);
+                            if (journal != null) {
+                                journalSequence = journal.appendTransfer(fromAccountId, toAccountId, amount, stamp);
+                            }
+                            long recordId = historyStore.appendStamped(fromAccountId, toAccountId, amount, stamp,
+                                    false);
 
-                        // deposit into the destination
-                        toAccount.deposit(amount);
-                        depositSuccessful = true;
-                        toAccount.addTransaction(transaction);
+                            // credit the destination and settle the hold
+                            toAccount.tryDeposit(amount); // Accepted above
+                            moved = true;
+                            fromAccount.commitHold(amount);
+                            held = false;
 
-                        System.out.println(threadName + " Transfer of $" + String.format("%.2f", amount) +
-                                " completed successfully.");
-                        return true;
+                            // index the transaction from both accounts
+                            fromAccount.addHistoryRecord(recordId);
+                            toAccount.addHistoryRecord(recordId);
+                            if (versioned) {
+                                publishVersions(fromAccount, toAccount);
+                            }
+                            committed = true;
+                        }
                     } catch (Exception e) {
-                        System.err.println(threadName + " Error during transfer: " + e.getMessage());
+                        failure = TransferResult.JOURNAL_FAILED; // The journal or history store could not be written
+                        events.publish(EventType.TRANSFER_FAILED, fromAccountId, toAccountId, amount, e);
+                        if (moved) {
+                            failure = TransferResult.ROLLBACK_FAILED; // Indexing failed after the money moved
+                            markUnsettled(unsettled);
+                        }
+                    }
+
+                    // nothing reached the destination, so a failed transfer only gives back its hold
+                    if (held) {
+                        fromAccount.releaseHold(amount);
+                        metrics.recordHoldRelease();
+                        events.publish(EventType.HOLD_RELEASED, fromAccountId, toAccountId, amount);
                     }
                 } finally {
-                    secondLock.unlock(); // Release the second lock
+                    if (lockSecond) {
+                        secondLock.unlock(); // Release the second lock
+                    }
                 }
             } finally {
-                firstLock.unlock(); // Release the first lock
-
-                // if either the withdrawal or deposit was unsuccessful, rollback the transaction
-                if (!withdrawalSuccessful || !depositSuccessful) {
-                    reverseTransaction(fromAccount, toAccount, amount, withdrawalSuccessful, depositSuccessful);
+                if (lockFirst) {
+                    firstLock.unlock(); // Release the first lock
                 }
             }
         } catch (TransactionLockException e) {
-            System.err.println(threadName + " Error: " + e.getMessage());
+            events.publish(EventType.LOCK_FAILED, fromAccountId, toAccountId, amount, e);
+        }
+        if (!committed) {
+            return failure;
+        }
+
+        // wait for the group commit outside the locks, so other transfers can join it
+        if (journal != null) {
+            try {
+                journal.awaitDurable(journalSequence);
+            } catch (IOException e) {
+                events.publish(EventType.TRANSFER_FAILED, fromAccountId, toAccountId, amount, e);
+                if (!reverseCommitted(fromAccount, toAccount, amount)) {
+                    markUnsettled(unsettled);
+                    return TransferResult.ROLLBACK_FAILED;
+                }
+                return TransferResult.JOURNAL_FAILED;
+            }
+        }
+        events.publish(EventType.TRANSFER_COMPLETED, fromAccountId, toAccountId, amount);
+        return TransferResult.SUCCESS;
+    }
+
+    private static void markUnsettled(boolean[] unsettled) {
+        if (unsettled != null) {
+            unsettled[0] = true;
         }
-        return false;
     }
 
     /**
-     * Roll back a transaction by reversing the deposit and withdrawal.
+     * Transfer money without the account locks, retrying with a growing randomized backoff when another
+     * write gets in the way.
      *
-     * @param fromAccount          the source account
-     * @param toAccount            the destination account
-     * @param amount               the amount of the transaction
-     * @param withdrawalSuccessful true if the withdrawal was successful, false otherwise
-     * @param depositSuccessful    true if the deposit was successful, false otherwise
+     * @return the result, or null if every attempt conflicted and the caller should take the locks
      */
-    private void reverseTransaction(BankAccount fromAccount, BankAccount toAccount, double amount,
-                                    boolean withdrawalSuccessful, boolean depositSuccessful) {
-        String threadName = Thread.currentThread().getName();
-
-        try {
-            // Reverse the deposit only if it was successful
-            if (depositSuccessful) {
-                toAccount.withdraw(amount);
-                toAccount.addTransaction(new Transaction(toAccount.getId(), fromAccount.getId(), amount, true));
-                System.out.println(
-                        threadName + " Rolled back deposit of $" + amount + " from Account " + toAccount.getId());
+    private TransferResult transferOptimistic(BankAccount fromAccount, BankAccount toAccount, double amount,
+                                              boolean[] unsettled) {
+        int toAccountId = toAccount.getId();
+        long[] stamp = new long[1];
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            TransferResult result = BankAccount.tryTransferOptimistic(fromAccount, toAccount, amount, clock, stamp);
+            if (result == TransferResult.INSUFFICIENT_FUNDS) {
+                fromAccount.recordContention(0);
+                toAccount.recordContention(0);
+                publishRejection(result, fromAccount, toAccountId, amount);
+                return result;
             }
+            if (result == TransferResult.SUCCESS) {
+                fromAccount.recordContention(0);
+                toAccount.recordContention(0);
+                return recordOptimisticTransfer(fromAccount, toAccount, amount, stamp[0], unsettled);
+            }
+            metrics.recordOptimisticConflict();
+            backOff(attempt);
+        }
+        metrics.recordOptimisticFallback();
+        return null;
+    }
 
-            // Reverse the withdrawal only if it was successful
-            if (withdrawalSuccessful) {
-                fromAccount.deposit(amount);
-                fromAccount.addTransaction(new Transaction(fromAccount.getId(), toAccount.getId(), amount, true));
-                System.out.println(
-                        threadName + " Rolled back withdrawal of $" + amount + " to Account " + fromAccount.getId());
+    /**
+     * Record the journal entry and history of a transfer that was applied without the account locks. The
+     * journal comes first, so a transfer it refuses is taken back before it ever reaches the history.
+     */
+    private TransferResult recordOptimisticTransfer(BankAccount fromAccount, BankAccount toAccount, double amount,
+                                                    long stamp, boolean[] unsettled) {
+        int fromAccountId = fromAccount.getId();
+        int toAccountId = toAccount.getId();
+        long journalSequence = 0;
+        if (journal != null) {
+            try {
+                journalSequence = journal.appendTransfer(fromAccountId, toAccountId, amount, stamp);
+            } catch (IOException e) {
+                events.publish(EventType.TRANSFER_FAILED, fromAccountId, toAccountId, amount, e);
+                if (!reverseTransaction(fromAccount, toAccount, amount, false)) {
+                    markUnsettled(unsettled);
+                    return TransferResult.ROLLBACK_FAILED;
+                }
+                return TransferResult.JOURNAL_FAILED;
+            }
+        }
+        long recordId = historyStore.appendStamped(fromAccountId, toAccountId, amount, stamp, false);
+        fromAccount.addHistoryRecord(recordId);
+        toAccount.addHistoryRecord(recordId);
+        if (journal != null) {
+            try {
+                journal.awaitDurable(journalSequence);
+            } catch (IOException e) {
+                events.publish(EventType.TRANSFER_FAILED, fromAccountId, toAccountId, amount, e);
+                if (!reverseCommitted(fromAccount, toAccount, amount)) {
+                    markUnsettled(unsettled);
+                    return TransferResult.ROLLBACK_FAILED;
+                }
+                return TransferResult.JOURNAL_FAILED;
             }
-        } catch (Exception e) {
-            System.err.println(threadName + " Rollback failed: " + e.getMessage());
         }
+        events.publish(EventType.TRANSFER_COMPLETED, fromAccountId, toAccountId, amount);
+        return TransferResult.SUCCESS;
     }
 
     /**
-     * Get the balance of a bank account.
-     *
-     * @param accountId the ID of the account
-     * @return a string representation of the account balance
+     * Publish why a transfer was rejected by its accounts.
      */
-    public String getAccountBalance(int accountId) {
-        BankAccount account = getAccount(accountId);
-        if (account == null) {
-            System.err.println(Thread.currentThread().getName() + " Account with ID " + accountId + " not found.");
-            return "Account not found";
+    private void publishRejection(TransferResult result, BankAccount fromAccount, int toAccountId, double amount) {
+        if (result == TransferResult.INSUFFICIENT_FUNDS) {
+            events.publishInsufficientFunds(fromAccount.getId(), toAccountId, amount, fromAccount.getBalance());
+        } else {
+            events.publish(EventType.INVALID_AMOUNT, fromAccount.getId(), toAccountId, amount);
         }
-        double balance = account.getBalance();
-        return "Account " + accountId + " Balance: $" + balance;
     }
 
     /**
-     * Print the balances and transaction history of all accounts.
+     * Wait a random number of spins that doubles with every failed attempt, yielding once it gets long.
      */
-    public void printAccountBalances() {
-        for (BankAccount account : accounts.values()) {
+    private static void backOff(int attempt) {
+        int spins = ThreadLocalRandom.current().nextInt(16 << attempt);
+        for (int i = 0; i < spins; i++) {
+            Thread.onSpinWait();
+        }
+        if (attempt >= 2) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Lock an account for a transfer, recording how long the lock took to acquire. Callers lock accounts in
+     * ascending ID order, so this waits without a timeout.
+     *
+     * @throws TransactionLockException if the thread is interrupted while waiting
+     */
+    private void lockAndMeasure(BankAccount account) throws TransactionLockException {
+        long waitStart = System.nanoTime();
+        try {
+            account.lockInOrder();
+        } finally {
+            long waitNanos = System.nanoTime() - waitStart;
+            metrics.recordLockWait(waitNanos);
+            account.recordContention(waitNanos);
+        }
+    }
+
+    /**
+     * Take back a transfer that was committed but could not be made durable. With snapshots enabled the
+     * accounts are locked again so the reversal is published as one commit version.
+     *
+     * @return true if the transfer was fully taken back
+     */
+    private boolean reverseCommitted(BankAccount fromAccount, BankAccount toAccount, double amount) {
+        if (!snapshots) {
+            return reverseTransaction(fromAccount, toAccount, amount, true);
+        }
+        BankAccount firstLock = fromAccount.getId() < toAccount.getId() ? fromAccount : toAccount;
+        BankAccount secondLock = firstLock == fromAccount ? toAccount : fromAccount;
+        try {
+            firstLock.lockInOrder();
+            try {
+                secondLock.lockInOrder();
+                try {
+                    boolean reversed = reverseTransaction(fromAccount, toAccount, amount, true);
+                    publishVersions(fromAccount, toAccount);
+                    return reversed;
+                } finally {
+                    secondLock.unlock();
+                }
+            } finally {
+                firstLock.unlock();
+            }
+        } catch (TransactionLockException e) {
+            events.publish(EventType.ROLLBACK_FAILED, fromAccount.getId(), toAccount.getId(), amount, e);
+            return false;
+        }
+    }
+
+    /**
+     * Record a reversal in one account's history, stamped after everything already in it.
+     */
+    private void recordReversal(BankAccount account, int fromAccountId, int toAccountId, double amount) {
+        account.addHistoryRecord(historyStore.appendStamped(fromAccountId, toAccountId, amount,
+                clock.tick(account.getLastStamp()), true));
+    }
+
+    /**
+     * Get a stamp for a transaction between two accounts, after everything already in either history. Called
+     * with the accounts locked, or once their balances have changed, so the stamp follows any transaction that
+     * committed on them before.
+     */
+    private long stampAfter(BankAccount first, BankAccount second) {
+        return clock.tick(Math.max(first.getLastStamp(), second.getLastStamp()));
+    }
+
+    /**
+     * Get the newest stamp in the histories of a set of accounts.
+     */
+    private static long latestStamp(BankAccount[] changed) {
+        long latest = 0;
+        for (BankAccount account : changed) {
+            latest = Math.max(latest, account.getLastStamp());
+        }
+        return latest;
+    }
+
+    /**
+     * Publish the current balances of locked accounts under one new commit version.
+     */
+    private void publishVersions(BankAccount... changed) {
+        int slot = versionClock.beginCommit();
+        try {
+            long version = versionClock.versionOf(slot);
+            for (BankAccount account : changed) {
+                account.publishVersion(version, versionClock);
+            }
+        } finally {
+            versionClock.endCommit(slot);
+        }
+    }
+
+    /**
+     * Roll back a committed transaction by reversing the deposit and withdrawal.
+     *
+     * @param fromAccount the source account
+     * @param toAccount   the destination account
+     * @param amount      the amount of the transaction
+     * @param recorded    whether the transaction is in the history, so the reversal has to be recorded too
+     * @return true if both the deposit and the withdrawal were reversed
+     */
+    private boolean reverseTransaction(BankAccount fromAccount, BankAccount toAccount, double amount,
+                                       boolean recorded) {
+        metrics.recordRollback();
+        try {
+            toAccount.withdraw(amount);
+            if (recorded) {
+                recordReversal(toAccount, toAccount.getId(), fromAccount.getId(), amount);
+            }
+            events.publish(EventType.DEPOSIT_ROLLED_BACK, fromAccount.getId(), toAccount.getId(), amount);
+
+            fromAccount.deposit(amount);
+            if (recorded) {
+                recordReversal(fromAccount, fromAccount.getId(), toAccount.getId(), amount);
+            }
+            events.publish(EventType.WITHDRAWAL_ROLLED_BACK, fromAccount.getId(), toAccount.getId(), amount);
+            return true;
+        } catch (Exception e) {
+            events.publish(EventType.ROLLBACK_FAILED, fromAccount.getId(), toAccount.getId(), amount, e);
+            return false;
+        }
+    }
+
+    /**
+     * Check that this system can serve the legs of cross-shard transfers. The legs change balances without
+     * journaling them or publishing balance versions, as a shard cannot replay or snapshot a transfer whose
+     * other half lives on another shard, so they are refused with a journal or snapshots.
+     *
+     * @throws IllegalStateException if the system has a journal or snapshots are enabled
+     */
+    void checkShardLegsSupported() {
+        if (journal != null || snapshots) {
+            throw new IllegalStateException("Cross-shard transfers cannot be journaled or snapshotted");
+        }
+    }
+
+    /**
+     * Hold the amount on the source account of a cross-shard transfer, as the prepare phase of a two-phase
+     * commit run by a {@link ShardedTransactionSystem}.
+     *
+     * @param accountId the source account
+     * @param amount    the amount to transfer
+     * @return SUCCESS if the amount is held, or why it cannot be
+     * @throws IllegalStateException if the system has a journal or snapshots are enabled
+     */
+    TransferResult prepareDebit(int accountId, double amount) {
+        noteMutation(); // Before the check, so snapshots cannot be enabled once legs run
+        checkShardLegsSupported();
+        BankAccount account = accounts.get(accountId);
+        if (account == null) {
+            return TransferResult.ACCOUNT_NOT_FOUND;
+        }
+        return amount <= 0 ? TransferResult.INVALID_AMOUNT : account.reserve(amount);
+    }
+
+    /**
+     * Check that the destination account of a cross-shard transfer can take the amount, as the prepare phase
+     * of a two-phase commit. Nothing is changed until the credit is committed.
+     *
+     * @param accountId the destination account
+     * @param amount    the amount to transfer
+     * @return SUCCESS if the credit can be committed, or why it cannot
+     * @throws IllegalStateException if the system has a journal or snapshots are enabled
+     */
+    TransferResult prepareCredit(int accountId, double amount) {
+        noteMutation();
+        checkShardLegsSupported();
+        BankAccount account = accounts.get(accountId);
+        if (account == null) {
+            return TransferResult.ACCOUNT_NOT_FOUND;
+        }
+        return account.acceptsDeposit(amount) ? TransferResult.SUCCESS : TransferResult.INVALID_AMOUNT;
+    }
+
+    /**
+     * Settle the hold of a prepared cross-shard debit and record it in the source account's history.
+     */
+    void commitDebit(int fromAccountId, int toAccountId, double amount) {
+        BankAccount account = accounts.get(fromAccountId);
+        account.commitHold(amount);
+        account.addHistoryRecord(historyStore.appendStamped(fromAccountId, toAccountId, amount,
+                clock.tick(account.getLastStamp()), false));
+    }
+
+    /**
+     * Release the hold of a prepared cross-shard debit that was aborted.
+     */
+    void abortDebit(int accountId, double amount) {
+        accounts.get(accountId).releaseHold(amount);
+    }
+
+    /**
+     * Apply a prepared cross-shard credit and record it in the destination account's history.
+     *
+     * @return SUCCESS if the credit was applied, or why the account rejected it
+     */
+    TransferResult commitCredit(int fromAccountId, int toAccountId, double amount) {
+        BankAccount account = accounts.get(toAccountId);
+        TransferResult result = account.tryDeposit(amount);
+        if (result != TransferResult.SUCCESS) {
+            // The prepare check passed, so the source shard may already have paid out the amount
+            events.publish(EventType.TRANSFER_FAILED, fromAccountId, toAccountId, amount,
+                    new IllegalStateException("Prepared credit to account " + toAccountId + " was rejected: "
+                            + result.getMessage()));
+            return result;
+        }
+        account.addHistoryRecord(historyStore.appendStamped(fromAccountId, toAccountId, amount,
+                clock.tick(account.getLastStamp()), false));
+        return result;
+    }
+
+    /**
+     * Get the current balance of an account as a number.
+     *
+     * @return the balance, or NaN if the account is not in the system
+     */
+    double balanceOf(int accountId) {
+        BankAccount account = getAccount(accountId);
+        return account == null ? Double.NaN : account.getBalance();
+    }
+
+    /**
+     * Apply a batch of transfers with a single lock pass.
+     * <p>
+     * Every account touched by the batch is locked once, in ascending ID order. The transfers are then
+     * checked in order against working balances, so each one succeeds or fails exactly as it would on its
+     * own, and only the net change of each account is written back. Amounts are rounded the way the accounts
+     * round a single transfer, so on the cents engines the net changes are whole cents and nothing is lost to
+     * rounding. History is appended once per account.
+     *
+     * @param batch the transfers to apply, in order
+     * @return the result of each transfer, in the same order as the batch
+     */
+    public TransferResult[] transferBatch(List<TransferRequest> batch) {
+        noteMutation();
+        int size = batch.size();
+        TransferResult[] results = new TransferResult[size];
+        BankAccount[] fromAccounts = new BankAccount[size];
+        BankAccount[] toAccounts = new BankAccount[size];
+
+        // Resolve and validate every transfer, collecting the distinct accounts it touches
+        AccountRegistry touched = new AccountRegistry(size * 2);
+        for (int i = 0; i < size; i++) {
+            TransferRequest request = batch.get(i);
+            fromAccounts[i] = accounts.get(request.getFromAccountId());
+            toAccounts[i] = accounts.get(request.getToAccountId());
+            if (fromAccounts[i] == null || toAccounts[i] == null) {
+                results[i] = TransferResult.ACCOUNT_NOT_FOUND;
+            } else if (request.getFromAccountId() == request.getToAccountId()) {
+                results[i] = TransferResult.SAME_ACCOUNT;
+            } else if (request.getAmount() <= 0 || fromAccounts[i].roundAmount(request.getAmount()) <= 0) {
+                results[i] = TransferResult.INVALID_AMOUNT; // Nothing to move, or less than the balances resolve
+            } else {
+                touched.put(fromAccounts[i]);
+                touched.put(toAccounts[i]);
+            }
+        }
+
+        BankAccount[] lockOrder = new BankAccount[touched.size()];
+        int[] next = {0};
+        touched.forEach(account -> lockOrder[next[0]++] = account);
+        Arrays.sort(lockOrder, Comparator.comparingInt(BankAccount::getId));
+
+        // Lock every touched account once, in ascending order to prevent deadlocks
+        boolean versioned = snapshots;
+        int lockedCount = 0;
+        long journalSequence = 0;
+        try {
+            for (BankAccount account : lockOrder) {
+                if (versioned || account.needsTransferLock()) {
+                    lockAndMeasure(account);
+                } else {
+                    account.recordContention(0);
+                }
+                lockedCount++;
+            }
+            journalSequence = applyBatch(batch, results, lockOrder);
+            if (versioned) {
+                publishVersions(lockOrder);
+            }
+        } catch (TransactionLockException e) {
+            events.publishBatch(EventType.LOCK_FAILED, size, size, e);
+            for (int i = 0; i < size; i++) {
+                if (results[i] == null) {
+                    results[i] = TransferResult.LOCK_FAILED;
+                }
+            }
+        } finally {
+            for (int i = lockedCount - 1; i >= 0; i--) {
+                if (versioned || lockOrder[i].needsTransferLock()) {
+                    lockOrder[i].unlock();
+                }
+            }
+        }
+
+        // wait for the group commit outside the locks, so other transfers can join it
+        if (journalSequence > 0) {
+            try {
+                journal.awaitDurable(journalSequence);
+            } catch (IOException e) {
+                events.publishBatch(EventType.BATCH_FAILED, size, 0, e);
+                for (int i = 0; i < size; i++) {
+                    if (results[i].isSuccess()) {
+                        TransferRequest request = batch.get(i);
+                        results[i] = reverseCommitted(fromAccounts[i], toAccounts[i], request.getAmount())
+                                ? TransferResult.JOURNAL_FAILED : TransferResult.ROLLBACK_FAILED;
+                    }
+                }
+            }
+        }
+
+        int succeeded = 0;
+        for (TransferResult result : results) {
+            if (result.isSuccess()) {
+                succeeded++;
+            }
+            metrics.recordBatchItem(result);
+        }
+        events.publishBatch(EventType.BATCH_COMPLETED, size, size - succeeded, null);
+        return results;
+    }
+
+    /**
+     * Apply a multi-leg posting, such as a split payment with fees, atomically: either every leg is applied
+     * or none is.
+     * <p>
+     * Every account of the posting is locked once, in ascending ID order. The ordering rules out deadlock,
+     * so locks are waited for without a timeout. The posting is checked as a whole: it is applied if no
+     * account ends up negative once all legs are applied, whatever the order of the legs. With a journal,
+     * the legs are written as one posting, so recovery replays all of them or none.
+     *
+     * @param legs the legs of the posting
+     * @return SUCCESS if every leg was applied, otherwise the reason the whole posting was rejected
+     */
+    public TransferResult transferAtomic(List<TransferRequest> legs) {
+        long startNanos = System.nanoTime();
+        TransferResult result = applyPosting(legs);
+        metrics.recordTransfer(result, System.nanoTime() - startNanos);
+        return result;
+    }
+
+    private TransferResult applyPosting(List<TransferRequest> legs) {
+        noteMutation();
+        if (legs.isEmpty()) {
+            return TransferResult.INVALID_AMOUNT;
+        }
+
+        // Resolve and validate every leg, collecting the distinct accounts
+        int size = legs.size();
+        BankAccount[] fromAccounts = new BankAccount[size];
+        BankAccount[] toAccounts = new BankAccount[size];
+        AccountRegistry touched = new AccountRegistry(size * 2);
+        for (int i = 0; i < size; i++) {
+            TransferRequest leg = legs.get(i);
+            fromAccounts[i] = getAccount(leg.getFromAccountId());
+            toAccounts[i] = getAccount(leg.getToAccountId());
+            if (fromAccounts[i] == null || toAccounts[i] == null) {
+                return TransferResult.ACCOUNT_NOT_FOUND;
+            }
+            if (leg.getFromAccountId() == leg.getToAccountId()) {
+                events.publish(EventType.SAME_ACCOUNT, leg.getFromAccountId(), leg.getToAccountId(), leg.getAmount());
+                return TransferResult.SAME_ACCOUNT;
+            }
+            if (leg.getAmount() <= 0 || fromAccounts[i].roundAmount(leg.getAmount()) <= 0) {
+                events.publish(EventType.INVALID_AMOUNT, leg.getFromAccountId(), leg.getToAccountId(), leg.getAmount());
+                return TransferResult.INVALID_AMOUNT;
+            }
+            touched.put(fromAccounts[i]);
+            touched.put(toAccounts[i]);
+        }
+
+        BankAccount[] lockOrder = new BankAccount[touched.size()];
+        int[] next = {0};
+        touched.forEach(account -> lockOrder[next[0]++] = account);
+        Arrays.sort(lockOrder, Comparator.comparingInt(BankAccount::getId));
+        int[] ids = new int[lockOrder.length];
+        for (int k = 0; k < lockOrder.length; k++) {
+            ids[k] = lockOrder[k].getId();
+        }
+
+        // Lock every account once, in ascending order to prevent deadlocks
+        boolean versioned = snapshots;
+        int lockedCount = 0;
+        long journalSequence = 0;
+        try {
+            for (BankAccount account : lockOrder) {
+                if (versioned || account.needsTransferLock()) {
+                    lockAndMeasure(account);
+                } else {
+                    account.recordContention(0);
+                }
+                lockedCount++;
+            }
+
+            // Work out the balance every account ends with and reject the posting if any would be negative
+            double[] startBalances = new double[lockOrder.length];
+            for (int k = 0; k < lockOrder.length; k++) {
+                startBalances[k] = lockOrder[k].getBalance();
+            }
+            double[] balances = startBalances.clone();
+            for (int i = 0; i < size; i++) {
+                double amount = fromAccounts[i].roundAmount(legs.get(i).getAmount()); // As the accounts apply it
+                balances[Arrays.binarySearch(ids, legs.get(i).getFromAccountId())] -= amount;
+                balances[Arrays.binarySearch(ids, legs.get(i).getToAccountId())] += amount;
+            }
+            for (int k = 0; k < lockOrder.length; k++) {
+                if (Money.toCents(balances[k]) < 0) {
+                    events.publishPosting(EventType.POSTING_REJECTED, ids[k], size);
+                    return TransferResult.INSUFFICIENT_FUNDS;
+                }
+            }
+            if (!applyNetDeltas(lockOrder, startBalances, balances)) {
+                // A lock-free account was drained by a concurrent transfer; the applied debits were refunded
+                events.publishPosting(EventType.POSTING_REJECTED, 0, size);
+                return TransferResult.INSUFFICIENT_FUNDS;
+            }
+
+            // Record the posting in the journal before the locks are released; its legs share one stamp
+            long stamp = clock.tick(latestStamp(lockOrder));
+            if (journal != null) {
+                try {
+                    journalSequence = journal.appendPosting(legs, stamp);
+                } catch (IOException e) {
+                    events.publishBatch(EventType.BATCH_FAILED, size, size, e);
+                    return applyNetDeltas(lockOrder, balances, startBalances) ? TransferResult.JOURNAL_FAILED
+                            : TransferResult.ROLLBACK_FAILED; // A lock-free account was drained meanwhile
+                }
+            }
+
+            // Store each leg once and index it from both of its accounts
+            for (TransferRequest leg : legs) {
+                long recordId = historyStore.appendStamped(leg.getFromAccountId(), leg.getToAccountId(),
+                        leg.getAmount(), stamp, false);
+                lockOrder[Arrays.binarySearch(ids, leg.getFromAccountId())].addHistoryRecord(recordId);
+                lockOrder[Arrays.binarySearch(ids, leg.getToAccountId())].addHistoryRecord(recordId);
+            }
+            if (versioned) {
+                publishVersions(lockOrder);
+            }
+        } catch (TransactionLockException e) {
+            events.publishBatch(EventType.LOCK_FAILED, size, size, e);
+            return TransferResult.LOCK_FAILED;
+        } finally {
+            for (int k = lockedCount - 1; k >= 0; k--) {
+                if (versioned || lockOrder[k].needsTransferLock()) {
+                    lockOrder[k].unlock();
+                }
+            }
+        }
+
+        // wait for the group commit outside the locks, so other transfers can join it
+        if (journal != null) {
+            try {
+                journal.awaitDurable(journalSequence);
+            } catch (IOException e) {
+                events.publishBatch(EventType.BATCH_FAILED, size, size, e);
+                boolean reversed = true;
+                for (int i = size - 1; i >= 0; i--) {
+                    reversed &= reverseCommitted(fromAccounts[i], toAccounts[i], legs.get(i).getAmount());
+                }
+                return reversed ? TransferResult.JOURNAL_FAILED : TransferResult.ROLLBACK_FAILED;
+            }
+        }
+        events.publishPosting(EventType.POSTING_COMPLETED, 0, size);
+        return TransferResult.SUCCESS;
+    }
+
+    /**
+     * Apply the validated transfers of a batch while all of its accounts are locked.
+     *
+     * @param batch     the transfers, in order
+     * @param results   the results so far; null entries are applied and filled in
+     * @param lockOrder the locked accounts, sorted by ID
+     * @return the journal sequence number of the last applied transfer, or 0 if nothing was journaled
+     */
+    private long applyBatch(List<TransferRequest> batch, TransferResult[] results, BankAccount[] lockOrder) {
+        int[] ids = new int[lockOrder.length];
+        double[] startBalances = new double[lockOrder.length];
+        for (int k = 0; k < lockOrder.length; k++) {
+            ids[k] = lockOrder[k].getId();
+            startBalances[k] = lockOrder[k].getBalance();
+        }
+
+        // Run the transfers against working balances to decide each result and the net deltas
+        double[] balances = startBalances.clone();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            TransferRequest request = batch.get(i);
+            int from = Arrays.binarySearch(ids, request.getFromAccountId());
+            int to = Arrays.binarySearch(ids, request.getToAccountId());
+            double amount = lockOrder[from].roundAmount(request.getAmount()); // As the accounts apply it
+            if (balances[from] >= amount) {
+                balances[from] -= amount;
+                balances[to] += amount;
+                results[i] = TransferResult.SUCCESS;
+            } else {
+                results[i] = TransferResult.INSUFFICIENT_FUNDS;
+            }
+        }
+
+        if (!applyNetDeltas(lockOrder, startBalances, balances)) {
+            // A lock-free account was drained by a concurrent transfer, so apply the batch one transfer at a time
+            applyItemByItem(batch, results, lockOrder, ids);
+        }
+
+        // Stamp the applied transfers in batch order, after everything already in the accounts' histories
+        long[] stamps = new long[results.length];
+        long stamp = latestStamp(lockOrder);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].isSuccess()) {
+                stamp = clock.tick(stamp);
+                stamps[i] = stamp;
+            }
+        }
+
+        // Record the applied transfers in the journal before the locks are released
+        long journalSequence = 0;
+        if (journal != null) {
+            try {
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i].isSuccess()) {
+                        TransferRequest request = batch.get(i);
+                        journalSequence = journal.appendTransfer(request.getFromAccountId(),
+                                request.getToAccountId(), request.getAmount(), stamps[i]);
+                    }
+                }
+            } catch (IOException e) {
+                events.publishBatch(EventType.BATCH_FAILED, results.length, 0, e);
+                undoBatch(batch, results, lockOrder, ids);
+                return 0;
+            }
+        }
+
+        // Store each transaction once, then append the history of every account in one go
+        long[] recordIds = new long[results.length];
+        int[] historyCounts = new int[lockOrder.length];
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].isSuccess()) {
+                TransferRequest request = batch.get(i);
+                recordIds[i] = historyStore.appendStamped(request.getFromAccountId(), request.getToAccountId(),
+                        request.getAmount(), stamps[i], false);
+                historyCounts[Arrays.binarySearch(ids, request.getFromAccountId())]++;
+                historyCounts[Arrays.binarySearch(ids, request.getToAccountId())]++;
+            }
+        }
+        long[][] histories = new long[lockOrder.length][];
+        for (int k = 0; k < lockOrder.length; k++) {
+            histories[k] = new long[historyCounts[k]];
+            historyCounts[k] = 0;
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (results[i].isSuccess()) {
+                TransferRequest request = batch.get(i);
+                int from = Arrays.binarySearch(ids, request.getFromAccountId());
+                int to = Arrays.binarySearch(ids, request.getToAccountId());
+                histories[from][historyCounts[from]++] = recordIds[i];
+                histories[to][historyCounts[to]++] = recordIds[i];
+            }
+        }
+        for (int k = 0; k < lockOrder.length; k++) {
+            if (historyCounts[k] > 0) {
+                lockOrder[k].addHistoryRecords(histories[k], historyCounts[k]);
+            }
+        }
+        return journalSequence;
+    }
+
+    /**
+     * Take back every applied transfer of a batch that could not be journaled, while its accounts are still locked.
+     */
+    private void undoBatch(List<TransferRequest> batch, TransferResult[] results, BankAccount[] lockOrder, int[] ids) {
+        for (int i = results.length - 1; i >= 0; i--) {
+            if (!results[i].isSuccess()) {
+                continue;
+            }
+            TransferRequest request = batch.get(i);
+            results[i] = TransferResult.JOURNAL_FAILED;
+            try {
+                lockOrder[Arrays.binarySearch(ids, request.getToAccountId())].withdraw(request.getAmount());
+                lockOrder[Arrays.binarySearch(ids, request.getFromAccountId())].deposit(request.getAmount());
+            } catch (Exception e) {
+                events.publish(EventType.ROLLBACK_FAILED, request.getFromAccountId(), request.getToAccountId(),
+                        request.getAmount(), e);
+                results[i] = TransferResult.ROLLBACK_FAILED;
+            }
+        }
+    }
+
+    /**
+     * Write the net change of each account, debits first. The working balances were built from amounts
+     * rounded as the accounts round them, so each change is one the account applies exactly.
+     *
+     * @return true if all deltas were applied, false if a debit failed and the applied debits were refunded
+     */
+    private boolean applyNetDeltas(BankAccount[] lockOrder, double[] startBalances, double[] balances) {
+        for (int k = 0; k < lockOrder.length; k++) {
+            double delta = balances[k] - startBalances[k];
+            // Only a delta that nets out to nothing is below the account's resolution, and it is skipped
+            if (delta < 0 && lockOrder[k].tryWithdraw(-delta) == TransferResult.INSUFFICIENT_FUNDS) {
+                for (int j = 0; j < k; j++) {
+                    double refund = startBalances[j] - balances[j];
+                    if (refund > 0) {
+                        lockOrder[j].tryDeposit(refund);
+                    }
+                }
+                return false;
+            }
+        }
+        for (int k = 0; k < lockOrder.length; k++) {
+            double delta = balances[k] - startBalances[k];
+            if (delta > 0) {
+                lockOrder[k].tryDeposit(delta); // Rejected only if it nets out to nothing
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Apply the transfers of a batch one by one, recomputing the result of every transfer that passed validation.
+     */
+    private void applyItemByItem(List<TransferRequest> batch, TransferResult[] results, BankAccount[] lockOrder,
+                                 int[] ids) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != TransferResult.SUCCESS && results[i] != TransferResult.INSUFFICIENT_FUNDS) {
+                continue;
+            }
+            TransferRequest request = batch.get(i);
+            BankAccount fromAccount = lockOrder[Arrays.binarySearch(ids, request.getFromAccountId())];
+            BankAccount toAccount = lockOrder[Arrays.binarySearch(ids, request.getToAccountId())];
+            double amount = request.getAmount();
+            results[i] = fromAccount.tryWithdraw(amount);
+            if (results[i] == TransferResult.SUCCESS && toAccount.tryDeposit(amount) != TransferResult.SUCCESS) {
+                fromAccount.tryDeposit(amount); // The destination cannot hold the amount, give it back
+                results[i] = TransferResult.INVALID_AMOUNT;
+            }
+        }
+    }
+
+    /**
+     * Apply an adjustment, such as interest accrual or a fee, to every account and wait for it to finish.
+     * Runs on the common fork/join pool.
+     *
+     * @param adjustment computes the change for each account from its balance
+     * @return the outcome of the operation
+     * @see #adjustAllAsync(AccountAdjustment, ForkJoinPool)
+     */
+    public BulkAdjustment adjustAll(AccountAdjustment adjustment) {
+        return adjustAllAsync(adjustment, ForkJoinPool.commonPool()).await();
+    }
+
+    /**
+     * Start applying an adjustment, such as interest accrual or a fee, to every account.
+     * <p>
+     * The accounts are split into slices that the pool's workers process in parallel. Each change is computed
+     * from the account's balance and applied with no other balance change in between, then recorded in the
+     * account's history and the journal against {@link #EXTERNAL_ACCOUNT_ID}. Transfers keep running
+     * meanwhile. A debit larger than the balance is rejected and leaves the account unchanged. If the journal
+     * fails, the changes of the slice that could not be made durable are undone.
+     *
+     * @param adjustment computes the change for each account from its balance
+     * @param pool       the pool to run on
+     * @return the running operation, for progress reporting and to wait on
+     */
+    public BulkAdjustment adjustAllAsync(AccountAdjustment adjustment, ForkJoinPool pool) {
+        noteMutation();
+        BankAccount[] targets = new BankAccount[accounts.size()];
+        int[] next = {0};
+        accounts.forEach(account -> targets[next[0]++] = account);
+        BulkAdjustment progress = new BulkAdjustment(targets.length);
+        int slice = Math.max(MIN_ADJUSTMENT_SLICE, targets.length / (pool.getParallelism() * 8));
+        ForkJoinTask<BulkAdjustment> task = ForkJoinTask.adapt(() -> {
+            new AdjustmentTask(targets, 0, targets.length, slice, adjustment, progress).invoke();
+            progress.finish();
+            events.publishBatch(EventType.BULK_ADJUSTMENT_COMPLETED, targets.length,
+                    (int) progress.getRejectedCount(), null);
+            return progress;
+        });
+        progress.start(task);
+        pool.execute(task);
+        return progress;
+    }
+
+    /**
+     * Adjust a slice of accounts. Journal records of the slice share one wait for durability.
+     */
+    private void adjustSlice(BankAccount[] targets, int from, int to, AccountAdjustment adjustment,
+                             BulkAdjustment progress) {
+        double[] applied = new double[to - from]; // Change made to each account, 0 if none
+        long journalSequence = 0;
+        int done = from;
+        try {
+            for (; done < to; done++) {
+                BankAccount account = targets[done];
+                boolean versioned = snapshots;
+                if (versioned) {
+                    account.lockInOrder(); // One lock at a time, so this cannot deadlock with transfers
+                }
+                try {
+                    double amount = account.adjust(adjustment);
+                    if (Double.isNaN(amount)) {
+                        progress.recordRejected();
+                    } else if (amount != 0) {
+                        applied[done - from] = amount;
+                        progress.recordApplied(amount);
+                        int accountId = account.getId();
+                        int fromAccountId = amount > 0 ? EXTERNAL_ACCOUNT_ID : accountId;
+                        int toAccountId = amount > 0 ? accountId : EXTERNAL_ACCOUNT_ID;
+                        long stamp = clock.tick(account.getLastStamp());
+                        account.addHistoryRecord(historyStore.appendStamped(fromAccountId, toAccountId,
+                                Math.abs(amount), stamp, false));
+                        if (journal != null) {
+                            journalSequence = journal.appendTransfer(fromAccountId, toAccountId, Math.abs(amount),
+                                    stamp);
+                        }
+                    }
+                    if (versioned) {
+                        publishVersions(account);
+                    }
+                } finally {
+                    if (versioned) {
+                        account.unlock();
+                    }
+                }
+                progress.recordProcessed(1);
+            }
+            if (journal != null) {
+                journal.awaitDurable(journalSequence);
+            }
+        } catch (IOException | TransactionLockException e) {
+            events.publishBatch(EventType.BATCH_FAILED, to - from, to - done, e);
+            progress.recordProcessed(to - done);
+            for (int i = from; i < Math.min(done + 1, to); i++) {
+                if (applied[i - from] != 0) {
+                    undoAdjustment(targets[i], applied[i - from]);
+                    progress.recordFailed(applied[i - from]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Take back an adjustment that could not be journaled, recording the reversal in the account's history.
+     */
+    private void undoAdjustment(BankAccount account, double amount) {
+        metrics.recordRollback();
+        int accountId = account.getId();
+        double undone = account.adjust((id, balance) -> -amount);
+        if (Double.isNaN(undone)) {
+            events.publish(EventType.ROLLBACK_FAILED, accountId, EXTERNAL_ACCOUNT_ID, Math.abs(amount),
+                    new IllegalStateException("Account " + accountId + " can no longer cover the undone credit"));
+            return;
+        }
+        if (amount > 0) {
+            recordReversal(account, accountId, EXTERNAL_ACCOUNT_ID, amount);
+        } else {
+            recordReversal(account, EXTERNAL_ACCOUNT_ID, accountId, -amount);
+        }
+        if (snapshots) {
+            publishVersions(account);
+        }
+    }
+
+    /**
+     * Splits a bulk adjustment into slices until they are small enough to process directly.
+     */
+    private final class AdjustmentTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BankAccount[] targets;
+        private final int from;
+        private final int to;
+        private final int slice;
+        private final AccountAdjustment adjustment;
+        private final BulkAdjustment progress;
+
+        AdjustmentTask(BankAccount[] targets, int from, int to, int slice, AccountAdjustment adjustment,
+                       BulkAdjustment progress) {
+            this.targets = targets;
+            this.from = from;
+            this.to = to;
+            this.slice = slice;
+            this.adjustment = adjustment;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= slice) {
+                adjustSlice(targets, from, to, adjustment, progress);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new AdjustmentTask(targets, from, middle, slice, adjustment, progress),
+                    new AdjustmentTask(targets, middle, to, slice, adjustment, progress));
+        }
+    }
+
+    /**
+     * Read the transactions recorded since a sequence number, in sequence order and without skipping any. A
+     * replica follows the system by passing the returned sequence number to the next call. Sequence numbers
+     * increase in the order the transactions were stored, across all threads.
+     *
+     * @param sequence the sequence number to start at, 0 for the first transaction
+     * @param limit    the most transactions to read
+     * @param action   receives each transaction
+     * @return the sequence number to continue from
+     */
+    public long forEachTransactionSince(long sequence, int limit, Consumer<Transaction> action) {
+        return historyStore.forEachSince(sequence, limit, action);
+    }
+
+    /**
+     * Merge the histories of several accounts into one list in {@link Transaction#COMMIT_ORDER}. A transfer
+     * between two of the accounts appears once.
+     *
+     * @param accountIds the accounts to merge
+     * @return the merged history
+     */
+    public List<Transaction> mergedHistory(int... accountIds) {
+        List<Transaction> merged = new ArrayList<>();
+        for (int accountId : accountIds) {
+            BankAccount account = getAccount(accountId);
+            if (account != null) {
+                merged.addAll(account.getTransactionHistory());
+            }
+        }
+        merged.sort(Transaction.COMMIT_ORDER);
+        List<Transaction> distinct = new ArrayList<>(merged.size());
+        for (Transaction transaction : merged) {
+            if (distinct.isEmpty() || distinct.get(distinct.size() - 1).getSequence() != transaction.getSequence()) {
+                distinct.add(transaction); // Copies of the same record sort next to each other
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Get the balance of a bank account.
+     *
+     * @param accountId the ID of the account
+     * @return a string representation of the account balance
+     */
+    public String getAccountBalance(int accountId) {
+        BankAccount account = getAccount(accountId);
+        if (account == null) {
+            return "Account not found";
+        }
+        double balance = account.getBalance();
+        return "Account " + accountId + " Balance: $" + balance;
+    }
+
+    /**
+     * Print the balances and transaction history of all accounts.
+     */
+    public void printAccountBalances() {
+        events.flush(); // Let pending transfer events reach the console first
+        if (snapshots) {
+            snapshot().print();
+            return;
+        }
+        BankAccount[] all = new BankAccount[accounts.size()];
+        int[] next = {0};
+        accounts.forEach(account -> all[next[0]++] = account);
+        Arrays.sort(all, Comparator.comparingInt(BankAccount::getId)); // The registry is in hash order
+        for (BankAccount account : all) {
             System.out.println("\nAccount " + account.getId() + ": $" + String.format("%.2f", account.getBalance()));
             System.out.println("Transaction History:");
-            for (Transaction transaction : account.getTransactionHistory()) {
-                System.out.println("\t" + transaction);
+            HistoryCursor cursor = account.history();
+            while (cursor.next()) {
+                System.out.println("\t" + cursor.toTransaction());
             }
         }
     }
@@ -0,0 +1,375 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of transfer results keyed by the request ID a client sends with each transfer, so a request
+ * that is retried is answered with the result of the first attempt instead of moving money again.
+ * <p>
+ * The cache is split into segments by request ID, each guarded by its own monitor and holding an
+ * open-addressing table of primitive columns, so a lookup takes one short, mostly uncontended lock and never
+ * allocates. Entries are evicted oldest first, when they outlive the time to live or when their segment is
+ * full. A request retried after its entry was evicted runs again.
+ * <p>
+ * While the first attempt of a request is still running, its entry is in flight: a retry waits for it to
+ * finish rather than running alongside it, and the entry is never evicted. Results that leave the accounts
+ * untouched and are worth retrying, a lock timeout or a journal failure that was fully taken back, are not
+ * kept, so the next retry runs the transfer again. A journal failure that left money moved is kept like any
+ * other result, so a retry cannot move it a second time.
+ */
+public class TransferDedupCache {
+
+    private static final byte EMPTY = 0;
+    private static final byte IN_FLIGHT = 1;
+    private static final byte RESULT_BASE = 2; // States from here on hold RESULT_BASE + result ordinal
+    private static final TransferResult[] RESULTS = TransferResult.values();
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final long ttlNanos;
+    private final LongAdder hits = new LongAdder(); // Requests answered from the cache
+    private final LongAdder misses = new LongAdder(); // Requests that had to run
+    private final LongAdder evictions = new LongAdder(); // Entries dropped for age or space
+    private final LongAdder conflicts = new LongAdder(); // Request IDs reused for a different transfer
+
+    /**
+     * Create a cache.
+     *
+     * @param maxEntries the most results to keep
+     * @param ttl        how long to keep a result
+     * @param unit       the unit of {@code ttl}
+     */
+    public TransferDedupCache(int maxEntries, long ttl, TimeUnit unit) {
+        if (maxEntries <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("Capacity and time to live must be positive");
+        }
+        int segmentCount = Integer.highestOneBit(Math.max(1, Math.min(maxEntries / 64,
+                Runtime.getRuntime().availableProcessors() * 4)));
+        this.segments = new Segment[segmentCount];
+        int perSegment = (maxEntries + segmentCount - 1) / segmentCount;
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.segmentMask = segmentCount - 1;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Work out the fingerprint that tells transfers sent under the same request ID apart.
+     *
+     * @param fromAccountId the source account
+     * @param toAccountId   the destination account
+     * @param amount        the amount
+     * @return the fingerprint
+     */
+    static int fingerprint(int fromAccountId, int toAccountId, double amount) {
+        long bits = Double.doubleToLongBits(amount);
+        return (int) mix(((long) fromAccountId << 32 | toAccountId & 0xFFFFFFFFL) ^ bits * 31);
+    }
+
+    /**
+     * Claim a request ID for a new transfer, or get the result of the transfer that already used it. If that
+     * transfer is still running, wait for it to finish.
+     *
+     * @param requestId   the request ID
+     * @param fingerprint the fingerprint of the transfer
+     * @return null if the caller now owns the request ID and must run the transfer, then call
+     *         {@link #complete}; the cached result; REQUEST_ID_CONFLICT if the ID was used for a different
+     *         transfer; or LOCK_FAILED if the thread was interrupted while waiting
+     */
+    TransferResult claim(long requestId, int fingerprint) {
+        long hash = mix(requestId);
+        Segment segment = segments[(int) (hash >>> 32) & segmentMask];
+        synchronized (segment) {
+            while (true) {
+                long now = System.nanoTime();
+                segment.expire(now - ttlNanos, evictions);
+                int slot = segment.find(requestId, hash);
+                if (slot >= 0) {
+                    if (segment.fingerprints[slot] != fingerprint) {
+                        conflicts.increment();
+                        return TransferResult.REQUEST_ID_CONFLICT;
+                    }
+                    byte state = segment.states[slot];
+                    if (state != IN_FLIGHT) {
+                        hits.increment();
+                        return RESULTS[state - RESULT_BASE];
+                    }
+                } else if (segment.insert(requestId, hash, fingerprint, now, evictions)) {
+                    misses.increment();
+                    return null;
+                }
+                // The first attempt is still running, or every entry of the segment is in flight
+                if (!segment.await()) {
+                    return TransferResult.LOCK_FAILED;
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the result of a transfer whose request ID was claimed, and wake any retries waiting for it.
+     *
+     * @param requestId the request ID
+     * @param result    the result, or null if the transfer ended with an exception
+     * @param unsettled true if the transfer failed after money moved and could not be fully taken back, so the
+     *                  result must be kept even if it is one that is otherwise retried
+     */
+    void complete(long requestId, TransferResult result, boolean unsettled) {
+        long hash = mix(requestId);
+        Segment segment = segments[(int) (hash >>> 32) & segmentMask];
+        synchronized (segment) {
+            int slot = segment.find(requestId, hash);
+            if (slot >= 0 && segment.states[slot] == IN_FLIGHT) {
+                if (result == null || !unsettled && (result == TransferResult.LOCK_FAILED
+                        || result == TransferResult.JOURNAL_FAILED)) {
+                    segment.removeAt(slot); // Nothing moved, let the next retry run it
+                } else {
+                    segment.states[slot] = (byte) (RESULT_BASE + result.ordinal());
+                }
+            }
+            segment.signal();
+        }
+    }
+
+    /**
+     * Get the number of requests answered from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of requests that were not in the cache and ran.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of results dropped because they were too old or their segment was full.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the number of requests rejected because their ID had been used for a different transfer.
+     *
+     * @return the number of conflicts
+     */
+    public long getConflictCount() {
+        return conflicts.sum();
+    }
+
+    /**
+     * Get the number of entries held, including those of transfers still running and those that have
+     * expired but not been evicted yet.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the most entries the cache can hold.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return segments.length * segments[0].orderKeys.length;
+    }
+
+    /**
+     * Get the memory held by the cache's tables. The tables are allocated up front, so this does not change
+     * as entries come and go.
+     *
+     * @return the size of the tables in bytes
+     */
+    public long getFootprintBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.footprintBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Dedup cache: %d/%d entries, %d hits, %d misses, %d evictions, %d conflicts, %d KB",
+                size(), getCapacity(), getHitCount(), getMissCount(), getEvictionCount(), getConflictCount(),
+                getFootprintBytes() / 1024);
+    }
+
+    private static long mix(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * One segment of the cache: a linear-probing table of request IDs plus a ring of the same IDs in the order
+     * they were inserted, which is also the order they expire. Every field is guarded by the segment's monitor.
+     */
+    private static final class Segment {
+        private final long[] keys;
+        private final int[] fingerprints;
+        private final byte[] states; // EMPTY, IN_FLIGHT or RESULT_BASE + result ordinal
+        private final long[] insertedNanos; // Also tells a ring entry apart from a later entry for the same key
+        private final long[] orderKeys; // Ring of inserted keys, oldest at head
+        private final long[] orderNanos; // Insertion time of each ring entry
+        private final int mask;
+        private int head; // Oldest ring entry
+        private int count; // Ring entries, some may be stale once their key was removed early
+        private int size; // Table entries
+        private long lastNanos; // Latest insertion time, kept strictly increasing
+        private int waiters; // Threads waiting on the monitor
+
+        Segment(int capacity) {
+            int slots = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+            this.keys = new long[slots];
+            this.fingerprints = new int[slots];
+            this.states = new byte[slots];
+            this.insertedNanos = new long[slots];
+            this.orderKeys = new long[capacity];
+            this.orderNanos = new long[capacity];
+            this.mask = slots - 1;
+        }
+
+        /**
+         * @return the slot holding the key, or -1 if it is not in the table
+         */
+        int find(long key, long hash) {
+            for (int i = (int) hash & mask; states[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Insert an in-flight entry, first evicting the oldest one if the segment is full.
+         *
+         * @return false if the segment is full of entries still in flight
+         */
+        boolean insert(long key, long hash, int fingerprint, long now, LongAdder evictions) {
+            if (count == orderKeys.length && !evictOldest(evictions)) {
+                return false;
+            }
+            long nanos = Math.max(now, lastNanos + 1);
+            lastNanos = nanos;
+            int i = (int) hash & mask;
+            while (states[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            fingerprints[i] = fingerprint;
+            states[i] = IN_FLIGHT;
+            insertedNanos[i] = nanos;
+            size++;
+            int tail = head + count < orderKeys.length ? head + count : head + count - orderKeys.length;
+            orderKeys[tail] = key;
+            orderNanos[tail] = nanos;
+            count++;
+            return true;
+        }
+
+        /**
+         * Evict entries inserted at or before a deadline, stopping at the first one still in flight.
+         */
+        void expire(long deadline, LongAdder evictions) {
+            while (count > 0 && orderNanos[head] - deadline <= 0) {
+                if (!evictOldest(evictions)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Drop the oldest ring entry and its table entry.
+         *
+         * @return false if the oldest entry is still in flight and was kept
+         */
+        private boolean evictOldest(LongAdder evictions) {
+            long key = orderKeys[head];
+            int slot = find(key, mix(key));
+            if (slot >= 0 && insertedNanos[slot] == orderNanos[head]) {
+                if (states[slot] == IN_FLIGHT) {
+                    return false;
+                }
+                removeAt(slot);
+                evictions.increment();
+            }
+            head = head + 1 < orderKeys.length ? head + 1 : 0;
+            count--;
+            return true;
+        }
+
+        /**
+         * Remove a table entry, shifting later entries of the same probe run back so lookups still find them.
+         * Its ring entry is left behind and skipped when it reaches the head.
+         */
+        void removeAt(int slot) {
+            int hole = slot;
+            for (int i = (slot + 1) & mask; states[i] != EMPTY; i = (i + 1) & mask) {
+                int home = (int) mix(keys[i]) & mask;
+                boolean movable = hole <= i ? home <= hole || home > i : home <= hole && home > i;
+                if (movable) {
+                    keys[hole] = keys[i];
+                    fingerprints[hole] = fingerprints[i];
+                    states[hole] = states[i];
+                    insertedNanos[hole] = insertedNanos[i];
+                    hole = i;
+                }
+            }
+            states[hole] = EMPTY;
+            size--;
+        }
+
+        /**
+         * Wait for an entry of this segment to change.
+         *
+         * @return false if the thread was interrupted
+         */
+        boolean await() {
+            waiters++;
+            try {
+                wait();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiters--;
+            }
+        }
+
+        void signal() {
+            if (waiters > 0) {
+                notifyAll();
+            }
+        }
+
+        long footprintBytes() {
+            return keys.length * (Long.BYTES + Integer.BYTES + Byte.BYTES + Long.BYTES)
+                    + (long) orderKeys.length * (Long.BYTES + Long.BYTES);
+        }
+    }
+}
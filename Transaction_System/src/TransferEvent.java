@@ -0,0 +1,120 @@
+/**
+ * One event published by the transaction system.
+ * <p>
+ * Events are preallocated slots of an {@link EventLog} ring buffer and are reused once a sink has handled
+ * them, so a sink must copy out anything it wants to keep before returning.
+ */
+public final class TransferEvent {
+
+    volatile long sequence; // Ring position this slot is ready for; see EventLog
+
+    private EventType type;
+    private String threadName;
+    private long timestamp;
+    private int fromAccountId;
+    private int toAccountId;
+    private double amount;
+    private double available;
+    private int count;
+    private int rejected;
+    private Throwable error;
+
+    TransferEvent(long sequence) {
+        this.sequence = sequence;
+    }
+
+    void set(EventType type, String threadName, long timestamp, int fromAccountId, int toAccountId, double amount,
+             double available, int count, int rejected, Throwable error) {
+        this.type = type;
+        this.threadName = threadName;
+        this.timestamp = timestamp;
+        this.fromAccountId = fromAccountId;
+        this.toAccountId = toAccountId;
+        this.amount = amount;
+        this.available = available;
+        this.count = count;
+        this.rejected = rejected;
+        this.error = error;
+    }
+
+    public EventType getType() {
+        return type;
+    }
+
+    public EventLevel getLevel() {
+        return type.getLevel();
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * Get the time the event was published.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the source account of the transfer, or the missing account for {@link EventType#ACCOUNT_NOT_FOUND}.
+     *
+     * @return the account ID
+     */
+    public int getFromAccountId() {
+        return fromAccountId;
+    }
+
+    public int getToAccountId() {
+        return toAccountId;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    /**
+     * Get the balance the source account had when an {@link EventType#INSUFFICIENT_FUNDS} event was published.
+     *
+     * @return the available balance
+     */
+    public double getAvailable() {
+        return available;
+    }
+
+    /**
+     * Get the number of transfers in a batch event.
+     *
+     * @return the batch size
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the number of rejected transfers in a batch event.
+     *
+     * @return the rejected count
+     */
+    public int getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Get the exception behind a failure event.
+     *
+     * @return the exception, or null
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(96);
+        type.format(this, out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,255 @@
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and outcome counters for the transfers of one transaction system.
+ * <p>
+ * Recording is a few uncontended atomic adds and never allocates, so the metrics are always on. End-to-end
+ * latency covers {@link TransactionSystem#transfer} from validation to durability; lock wait covers each
+ * account lock taken by a transfer or batch. The hot account list is worked out only when it is read, from
+ * the counters every account keeps.
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+    private static final int HOT_ACCOUNTS = 10;
+    private static final Comparator<TransferMetricsSnapshot.HotAccount> BY_HEAT = Comparator
+            .comparingLong(TransferMetricsSnapshot.HotAccount::getLockWaitNanos)
+            .thenComparingLong(TransferMetricsSnapshot.HotAccount::getTransferCount);
+
+    private final AccountDirectory accounts;
+    private final LatencyHistogram transferLatency = new LatencyHistogram();
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+    private final LongAdder[] outcomes = new LongAdder[TransferResult.values().length]; // Indexed by ordinal
+    private final LongAdder rollbacks = new LongAdder();
+    private final LongAdder holdReleases = new LongAdder(); // Failed transfers that gave back their hold
+    private final LongAdder optimisticConflicts = new LongAdder(); // Optimistic attempts that had to retry
+    private final LongAdder optimisticFallbacks = new LongAdder(); // Optimistic transfers that took the locks
+    private final LongAdder duplicateRequests = new LongAdder(); // Retries answered from the dedup cache
+
+    TransferMetrics(AccountDirectory accounts) {
+        this.accounts = accounts;
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Register these metrics with the platform MBean server.
+     *
+     * @param name a name telling this transaction system apart from others in the same JVM
+     * @return the object name the metrics were registered under
+     * @throws JMException if the name is invalid or already registered
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("TransactionSystem:type=TransferMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Take a consistent-enough copy of all metrics for reporting. Counters are read one after another while
+     * transfers continue, so totals may be off by the transfers that completed during the call.
+     *
+     * @return the snapshot
+     */
+    public TransferMetricsSnapshot snapshot() {
+        long[] counts = new long[outcomes.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = outcomes[i].sum();
+        }
+        return new TransferMetricsSnapshot(counts, rollbacks.sum(),
+                transferLatency.getCount(), transferLatency.getMean(), transferLatency.getPercentile(50),
+                transferLatency.getPercentile(99), transferLatency.getPercentile(99.9), transferLatency.getMax(),
+                lockWait.getCount(), lockWait.getMean(), lockWait.getPercentile(99), lockWait.getMax(),
+                hotAccounts(HOT_ACCOUNTS));
+    }
+
+    /**
+     * Find the accounts whose locks transfers have waited on the longest, using the number of transfers to
+     * rank accounts that are never locked.
+     *
+     * @param limit the number of accounts to return
+     * @return the hottest accounts, hottest first
+     */
+    public List<TransferMetricsSnapshot.HotAccount> hotAccounts(int limit) {
+        PriorityQueue<TransferMetricsSnapshot.HotAccount> hottest = new PriorityQueue<>(limit + 1, BY_HEAT);
+        accounts.forEachLoaded(account -> { // Accounts that were never used have no transfers
+            long transferCount = account.getTransferCount();
+            if (transferCount == 0) {
+                return;
+            }
+            // Copy the live counters once so the heap compares stable values
+            hottest.add(new TransferMetricsSnapshot.HotAccount(account.getId(), transferCount,
+                    account.getLockWaitNanos()));
+            if (hottest.size() > limit) {
+                hottest.poll(); // Drop the coolest so only the top ones are kept
+            }
+        });
+        List<TransferMetricsSnapshot.HotAccount> result = new ArrayList<>(hottest.size());
+        while (!hottest.isEmpty()) {
+            result.add(0, hottest.poll());
+        }
+        return result;
+    }
+
+    void recordTransfer(TransferResult result, long nanos) {
+        outcomes[result.ordinal()].increment();
+        transferLatency.record(nanos);
+    }
+
+    void recordBatchItem(TransferResult result) {
+        outcomes[result.ordinal()].increment();
+    }
+
+    void recordLockWait(long nanos) {
+        lockWait.record(nanos);
+    }
+
+    void recordRollback() {
+        rollbacks.increment();
+    }
+
+    void recordHoldRelease() {
+        holdReleases.increment();
+    }
+
+    void recordOptimisticConflict() {
+        optimisticConflicts.increment();
+    }
+
+    void recordOptimisticFallback() {
+        optimisticFallbacks.increment();
+    }
+
+    void recordDuplicateRequest() {
+        duplicateRequests.increment();
+    }
+
+    @Override
+    public long getTransferCount() {
+        long total = 0;
+        for (LongAdder outcome : outcomes) {
+            total += outcome.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return outcomes[TransferResult.SUCCESS.ordinal()].sum();
+    }
+
+    @Override
+    public long getInsufficientFundsCount() {
+        return outcomes[TransferResult.INSUFFICIENT_FUNDS.ordinal()].sum();
+    }
+
+    @Override
+    public long getLockTimeoutCount() {
+        return outcomes[TransferResult.LOCK_FAILED.ordinal()].sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return getTransferCount() - getSuccessCount() - getInsufficientFundsCount() - getLockTimeoutCount();
+    }
+
+    @Override
+    public long getRollbackCount() {
+        return rollbacks.sum();
+    }
+
+    @Override
+    public long getHoldReleaseCount() {
+        return holdReleases.sum();
+    }
+
+    @Override
+    public long getOptimisticConflictCount() {
+        return optimisticConflicts.sum();
+    }
+
+    @Override
+    public long getOptimisticFallbackCount() {
+        return optimisticFallbacks.sum();
+    }
+
+    @Override
+    public long getDuplicateRequestCount() {
+        return duplicateRequests.sum();
+    }
+
+    @Override
+    public double getTransferMeanMicros() {
+        return transferLatency.getMean() / 1000;
+    }
+
+    @Override
+    public double getTransferP50Micros() {
+        return transferLatency.getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getTransferP99Micros() {
+        return transferLatency.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getTransferP999Micros() {
+        return transferLatency.getPercentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getTransferMaxMicros() {
+        return transferLatency.getMax() / 1000.0;
+    }
+
+    @Override
+    public double getLockWaitMeanMicros() {
+        return lockWait.getMean() / 1000;
+    }
+
+    @Override
+    public double getLockWaitP99Micros() {
+        return lockWait.getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getLockWaitMaxMicros() {
+        return lockWait.getMax() / 1000.0;
+    }
+
+    @Override
+    public String[] getHotAccounts() {
+        List<TransferMetricsSnapshot.HotAccount> hottest = hotAccounts(HOT_ACCOUNTS);
+        String[] lines = new String[hottest.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = hottest.get(i).toString();
+        }
+        return lines;
+    }
+
+    /**
+     * Clear the histograms and outcome counters. The per-account counters behind the hot account list keep
+     * counting from when each account was created.
+     */
+    @Override
+    public void reset() {
+        transferLatency.reset();
+        lockWait.reset();
+        for (LongAdder outcome : outcomes) {
+            outcome.reset();
+        }
+        rollbacks.reset();
+        holdReleases.reset();
+        optimisticConflicts.reset();
+        optimisticFallbacks.reset();
+        duplicateRequests.reset();
+    }
+}
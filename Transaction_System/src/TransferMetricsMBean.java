@@ -0,0 +1,53 @@
+/**
+ * The JMX view of a transaction system's {@link TransferMetrics}. Latencies are reported in microseconds.
+ */
+public interface TransferMetricsMBean {
+
+    long getTransferCount();
+
+    long getSuccessCount();
+
+    long getInsufficientFundsCount();
+
+    long getLockTimeoutCount();
+
+    long getRejectedCount();
+
+    long getRollbackCount();
+
+    long getHoldReleaseCount();
+
+    long getOptimisticConflictCount();
+
+    long getOptimisticFallbackCount();
+
+    long getDuplicateRequestCount();
+
+    double getTransferMeanMicros();
+
+    double getTransferP50Micros();
+
+    double getTransferP99Micros();
+
+    double getTransferP999Micros();
+
+    double getTransferMaxMicros();
+
+    double getLockWaitMeanMicros();
+
+    double getLockWaitP99Micros();
+
+    double getLockWaitMaxMicros();
+
+    /**
+     * Get the accounts whose locks transfers waited on the longest, hottest first.
+     *
+     * @return one line per account
+     */
+    String[] getHotAccounts();
+
+    /**
+     * Clear the histograms and counters.
+     */
+    void reset();
+}
@@ -0,0 +1,159 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable copy of a transaction system's {@link TransferMetrics}, taken with
+ * {@link TransferMetrics#snapshot()}. Latencies are in nanoseconds.
+ */
+public final class TransferMetricsSnapshot {
+
+    private final long[] outcomes; // Indexed by TransferResult ordinal
+    private final long rollbacks;
+    private final long transferCount;
+    private final double transferMean;
+    private final long transferP50;
+    private final long transferP99;
+    private final long transferP999;
+    private final long transferMax;
+    private final long lockWaitCount;
+    private final double lockWaitMean;
+    private final long lockWaitP99;
+    private final long lockWaitMax;
+    private final List<HotAccount> hotAccounts;
+
+    TransferMetricsSnapshot(long[] outcomes, long rollbacks, long transferCount, double transferMean,
+                            long transferP50, long transferP99, long transferP999, long transferMax,
+                            long lockWaitCount, double lockWaitMean, long lockWaitP99, long lockWaitMax,
+                            List<HotAccount> hotAccounts) {
+        this.outcomes = outcomes;
+        this.rollbacks = rollbacks;
+        this.transferCount = transferCount;
+        this.transferMean = transferMean;
+        this.transferP50 = transferP50;
+        this.transferP99 = transferP99;
+        this.transferP999 = transferP999;
+        this.transferMax = transferMax;
+        this.lockWaitCount = lockWaitCount;
+        this.lockWaitMean = lockWaitMean;
+        this.lockWaitP99 = lockWaitP99;
+        this.lockWaitMax = lockWaitMax;
+        this.hotAccounts = Collections.unmodifiableList(hotAccounts);
+    }
+
+    /**
+     * Get the number of transfers, including batch items, that ended with a result.
+     *
+     * @param result the transfer result
+     * @return the count
+     */
+    public long getCount(TransferResult result) {
+        return outcomes[result.ordinal()];
+    }
+
+    public long getRollbackCount() {
+        return rollbacks;
+    }
+
+    /**
+     * Get the number of single transfers timed by the latency histogram.
+     *
+     * @return the count
+     */
+    public long getTransferCount() {
+        return transferCount;
+    }
+
+    public double getTransferMean() {
+        return transferMean;
+    }
+
+    public long getTransferP50() {
+        return transferP50;
+    }
+
+    public long getTransferP99() {
+        return transferP99;
+    }
+
+    public long getTransferP999() {
+        return transferP999;
+    }
+
+    public long getTransferMax() {
+        return transferMax;
+    }
+
+    public long getLockWaitCount() {
+        return lockWaitCount;
+    }
+
+    public double getLockWaitMean() {
+        return lockWaitMean;
+    }
+
+    public long getLockWaitP99() {
+        return lockWaitP99;
+    }
+
+    public long getLockWaitMax() {
+        return lockWaitMax;
+    }
+
+    public List<HotAccount> getHotAccounts() {
+        return hotAccounts;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("Outcomes:");
+        for (TransferResult result : TransferResult.values()) {
+            if (outcomes[result.ordinal()] > 0) {
+                out.append(' ').append(result).append('=').append(outcomes[result.ordinal()]);
+            }
+        }
+        out.append(", rollbacks=").append(rollbacks).append(System.lineSeparator());
+        out.append(String.format("Transfer latency (us): mean %.1f | p50 %.1f | p99 %.1f | p99.9 %.1f | max %.1f%n",
+                transferMean / 1000, transferP50 / 1000.0, transferP99 / 1000.0, transferP999 / 1000.0,
+                transferMax / 1000.0));
+        out.append(String.format("Lock wait (us): %d waits | mean %.1f | p99 %.1f | max %.1f%n",
+                lockWaitCount, lockWaitMean / 1000, lockWaitP99 / 1000.0, lockWaitMax / 1000.0));
+        out.append("Hot accounts:");
+        for (HotAccount account : hotAccounts) {
+            out.append(System.lineSeparator()).append('\t').append(account);
+        }
+        return out.toString();
+    }
+
+    /**
+     * How contended one account has been.
+     */
+    public static final class HotAccount {
+        private final int accountId;
+        private final long transferCount;
+        private final long lockWaitNanos;
+
+        HotAccount(int accountId, long transferCount, long lockWaitNanos) {
+            this.accountId = accountId;
+            this.transferCount = transferCount;
+            this.lockWaitNanos = lockWaitNanos;
+        }
+
+        public int getAccountId() {
+            return accountId;
+        }
+
+        public long getTransferCount() {
+            return transferCount;
+        }
+
+        public long getLockWaitNanos() {
+            return lockWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Account %d: %d transfers, %.2f ms lock wait", accountId, transferCount,
+                    lockWaitNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+/**
+ * How a {@link TransactionSystem} commits a transfer between two lock-based accounts.
+ */
+public enum TransferMode {
+    /**
+     * Lock both accounts in ID order, then check funds and move the money.
+     */
+    PESSIMISTIC,
+    /**
+     * Read the source balance without locking, then commit only if no other write got in between. Conflicting
+     * attempts are retried with backoff and fall back to the pessimistic path after repeated conflicts.
+     */
+    OPTIMISTIC
+}
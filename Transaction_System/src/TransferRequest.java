@@ -0,0 +1,34 @@
+/**
+ * A single transfer to be applied as part of a batch.
+ */
+public class TransferRequest {
+
+    private final int fromAccountId;
+    private final int toAccountId;
+    private final double amount;
+
+    /**
+     * Create a new transfer request.
+     *
+     * @param fromAccountId the ID of the account to transfer money from
+     * @param toAccountId   the ID of the account to transfer money to
+     * @param amount        the amount of money to transfer
+     */
+    public TransferRequest(int fromAccountId, int toAccountId, double amount) {
+        this.fromAccountId = fromAccountId;
+        this.toAccountId = toAccountId;
+        this.amount = amount;
+    }
+
+    public int getFromAccountId() {
+        return fromAccountId;
+    }
+
+    public int getToAccountId() {
+        return toAccountId;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * The outcome of a transfer request.
+ */
+public enum TransferResult {
+
+    SUCCESS("Transfer completed successfully."),
+    ACCOUNT_NOT_FOUND("Account not found in the system."),
+    SAME_ACCOUNT("Cannot transfer money to the same account."),
+    INVALID_AMOUNT("Transfer amount must be greater than 0."),
+    INSUFFICIENT_FUNDS("Insufficient funds."),
+    LOCK_FAILED("Unable to acquire account locks."),
+    JOURNAL_FAILED("Unable to record the transfer in the journal."),
+    ROLLBACK_FAILED("The transfer failed after money moved, and the money could not be fully taken back."),
+    SHARD_UNAVAILABLE("Unable to reach the shard that owns the account."),
+    REQUEST_ID_CONFLICT("The request ID was already used for a different transfer.");
+
+    private final String message;
+
+    TransferResult(String message) {
+        this.message = message;
+    }
+
+    /**
+     * Get a human-readable description of the outcome.
+     *
+     * @return the message
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Check whether the transfer was applied.
+     *
+     * @return true if the transfer succeeded
+     */
+    public boolean isSuccess() {
+        return this == SUCCESS;
+    }
+}
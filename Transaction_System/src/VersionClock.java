@@ -0,0 +1,113 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out commit versions for balance snapshots and tells readers which versions are complete.
+ * <p>
+ * A committer announces itself in a commit slot before taking a version and clears the slot once its
+ * account versions are published. A reader takes the current version and waits only for the committers
+ * that may still be publishing a version at or below it; it never blocks a writer. Readers also announce
+ * the version they read in a reader slot, so writers know which old account versions must be kept.
+ * Slots are spread over padded stripes so concurrent committers do not share cache lines.
+ */
+class VersionClock {
+
+    private static final long PENDING = Long.MAX_VALUE; // Committer has announced itself but has no version yet
+    private static final int PADDING = 8; // Longs per slot, one cache line
+    private static final int READER_SLOTS = 16;
+
+    private final AtomicLong clock = new AtomicLong(); // Latest version handed out
+    private final AtomicLongArray commitSlots; // 0 when free, PENDING, or the version being published
+    private final AtomicLongArray readerSlots; // 0 when free, otherwise the reader's version + 1
+    private final int commitSlotCount;
+
+    VersionClock() {
+        int slots = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+        this.commitSlotCount = slots;
+        this.commitSlots = new AtomicLongArray(slots * PADDING);
+        this.readerSlots = new AtomicLongArray(READER_SLOTS * PADDING);
+    }
+
+    /**
+     * Claim a commit slot and take the next version for it.
+     *
+     * @return the slot, to pass to {@link #versionOf} and {@link #endCommit}
+     */
+    int beginCommit() {
+        int slot = ThreadLocalRandom.current().nextInt(commitSlotCount);
+        while (!commitSlots.compareAndSet(slot * PADDING, 0, PENDING)) {
+            slot = (slot + 1) & (commitSlotCount - 1);
+        }
+        // Announced before the version is taken, so a reader that sees the version also sees the slot
+        commitSlots.set(slot * PADDING, clock.incrementAndGet());
+        return slot;
+    }
+
+    long versionOf(int slot) {
+        return commitSlots.get(slot * PADDING);
+    }
+
+    /**
+     * Mark a commit's account versions as published.
+     *
+     * @param slot the slot returned by {@link #beginCommit}
+     */
+    void endCommit(int slot) {
+        commitSlots.set(slot * PADDING, 0);
+    }
+
+    /**
+     * Claim a reader slot at the latest version and wait until every commit up to that version is published.
+     *
+     * @return the slot, to pass to {@link #readerVersion} and {@link #releaseReader}
+     */
+    int acquireReader() {
+        int slot = 0;
+        long version = clock.get();
+        while (!readerSlots.compareAndSet(slot * PADDING, 0, version + 1)) {
+            slot = (slot + 1) % READER_SLOTS;
+            if (slot == 0) {
+                Thread.yield(); // Every reader slot is busy
+            }
+        }
+        // Writers that take a version after this point see the slot; re-read until the version is stable
+        long latest;
+        while ((latest = clock.get()) != version) {
+            version = latest;
+            readerSlots.set(slot * PADDING, version + 1);
+        }
+        for (int i = 0; i < commitSlotCount; i++) {
+            long committing;
+            while ((committing = commitSlots.get(i * PADDING)) != 0 && committing <= version
+                    || committing == PENDING) {
+                Thread.onSpinWait();
+            }
+        }
+        return slot;
+    }
+
+    long readerVersion(int slot) {
+        return readerSlots.get(slot * PADDING) - 1;
+    }
+
+    void releaseReader(int slot) {
+        readerSlots.set(slot * PADDING, 0);
+    }
+
+    /**
+     * Get the oldest version a reader may still look up.
+     *
+     * @return the oldest reader version, or {@link Long#MAX_VALUE} if there are no readers
+     */
+    long oldestReader() {
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < READER_SLOTS; i++) {
+            long value = readerSlots.get(i * PADDING);
+            if (value != 0) {
+                oldest = Math.min(oldest, value - 1);
+            }
+        }
+        return oldest;
+    }
+}
@@ -2,8 +2,23 @@ package exceptions;
 
 public class InsufficientFundsException extends Exception {
 
+    private final int accountId;
+    private final double requested;
+    private final double available;
+
     public InsufficientFundsException(int accountId, double requested, double available) {
-        super(String.format("Account %d: Insufficient funds. Requested: $%.2f, Available: $%.2f",
-                accountId, requested, available));
+        this.accountId = accountId;
+        this.requested = requested;
+        this.available = available;
+    }
+
+    /**
+     * Build the message only when it is asked for, so rejected transfers that are never logged do not pay
+     * for the formatting.
+     */
+    @Override
+    public String getMessage() {
+        return String.format("Account %d: Insufficient funds. Requested: $%.2f, Available: $%.2f",
+                accountId, requested, available);
     }
 }
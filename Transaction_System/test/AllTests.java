@@ -0,0 +1,16 @@
+/**
+ * Runs every test of the transaction system. Each test is a plain program that throws an
+ * {@link AssertionError} on the first failed check, so this runner stops at the first failing test.
+ * <pre>
+ *   javac -d out $(find src test -name '*.java') &amp;&amp; java -cp out AllTests
+ * </pre>
+ */
+public class AllTests {
+
+    public static void main(String[] args) throws Exception {
+        HistoryStoreTest.main(args);
+        TransferDedupCacheTest.main(args);
+        TransactionJournalTest.main(args);
+        TransactionSystemTest.main(args);
+    }
+}
@@ -0,0 +1,114 @@
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that history IDs are handed out densely and in append order across threads, and that a reader
+ * following the store with {@link HistoryStore#forEachSince} sees every record exactly once, with and without
+ * spilling to disk.
+ */
+public class HistoryStoreTest {
+
+    public static void main(String[] args) throws Exception {
+        idsStayDenseAcrossShortLivedThreads();
+        followingReaderSeesEveryRecordOnce(false);
+        followingReaderSeesEveryRecordOnce(true);
+        System.out.println("HistoryStoreTest passed");
+    }
+
+    /**
+     * Every append runs on a thread of its own, so an ID block reserved per thread would strand most of it.
+     */
+    private static void idsStayDenseAcrossShortLivedThreads() throws InterruptedException {
+        HistoryStore store = new HistoryStore();
+        int appends = 2000;
+        for (int i = 0; i < appends; i++) {
+            int from = i;
+            Thread thread = new Thread(() -> store.appendStamped(from, from + 1, 1.0, from, false));
+            thread.start();
+            thread.join();
+        }
+        List<Long> ids = new ArrayList<>();
+        long next = store.forEachSince(0, Integer.MAX_VALUE, transaction -> ids.add(transaction.getSequence()));
+        check(ids.size() == appends, "Expected " + appends + " records, read " + ids.size());
+        check(next == appends, "Expected the ID space to end at " + appends + ", ends at " + next);
+        for (int i = 0; i < ids.size(); i++) {
+            check(ids.get(i) == i, "Expected ID " + i + ", read " + ids.get(i));
+        }
+    }
+
+    private static void followingReaderSeesEveryRecordOnce(boolean spill) throws Exception {
+        HistoryStore store = spill ? new HistoryStore(Files.createTempDirectory("history"), 3 * 4096)
+                : new HistoryStore();
+        int threads = 4;
+        int appendsPerThread = 50_000;
+        Set<Long> appended = ConcurrentHashMap.newKeySet();
+        Set<Long> seen = new HashSet<>();
+        List<Long> duplicates = new ArrayList<>();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            long cursor = 0;
+            while (true) {
+                boolean finished = done.get();
+                long next = store.forEachSince(cursor, 1000, transaction -> {
+                    if (!seen.add(transaction.getSequence())) {
+                        duplicates.add(transaction.getSequence());
+                    }
+                });
+                if (next == cursor && finished) {
+                    return;
+                }
+                cursor = next;
+            }
+        });
+        reader.setDaemon(true); // A reader that never catches up must not outlive the failed check
+        reader.start();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int from = t;
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < appendsPerThread; i++) {
+                    appended.add(store.appendStamped(from, i, 1.0, i, false));
+                    if (from == 0 && i % 1000 == 7) {
+                        pause(); // One writer keeps going idle in the middle of a chunk
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        reader.join(30_000);
+        check(!reader.isAlive(), "The reader did not catch up (spill=" + spill + ")");
+        check(duplicates.isEmpty(), "Records read twice (spill=" + spill + "): " + duplicates.size());
+        check(seen.equals(appended), "Read " + seen.size() + " of " + appended.size() + " records (spill=" + spill
+                + ")");
+        check(store.getSpillFailure() == null, "Spilling failed: " + store.getSpillFailure());
+        check(!spill || store.getSpilledRecords() > 0, "Nothing was spilled");
+        for (long id : appended) {
+            check(store.read(id).getAmount() == 1.0, "Record " + id + " reads back wrong");
+        }
+        store.close();
+    }
+
+    private static void pause() {
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
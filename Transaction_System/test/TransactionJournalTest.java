@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Checks that reopening a journal cuts off a tail left by a crash: a record that was only partly written, a
+ * record whose checksum does not match, and a posting whose last leg is missing. Appends made after the cut
+ * must land right after the last valid record.
+ */
+public class TransactionJournalTest {
+
+    public static void main(String[] args) throws Exception {
+        tornRecordIsCutOff();
+        corruptRecordIsCutOff();
+        partialPostingIsCutOff();
+        System.out.println("TransactionJournalTest passed");
+    }
+
+    private static void tornRecordIsCutOff() throws IOException {
+        Path file = writeJournal();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+        expectRecovered(file, 4, 80, 20);
+        try (TransactionJournal journal = open(file)) {
+            journal.appendTransfer(2, 1, 5, 1);
+        }
+        expectRecovered(file, 5, 85, 15);
+        Files.delete(file);
+    }
+
+    private static void corruptRecordIsCutOff() throws IOException {
+        Path file = writeJournal();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer amount = ByteBuffer.allocate(1);
+            long position = channel.size() - TransactionJournal.RECORD_SIZE + 12;
+            channel.read(amount, position);
+            amount.put(0, (byte) (amount.get(0) ^ 1)).rewind();
+            channel.write(amount, position);
+        }
+        expectRecovered(file, 4, 80, 20);
+        Files.delete(file);
+    }
+
+    private static void partialPostingIsCutOff() throws IOException {
+        Path file = writeJournal();
+        try (TransactionJournal journal = open(file)) {
+            journal.appendPosting(List.of(new TransferRequest(1, 2, 30), new TransferRequest(2, 1, 5)), 1);
+        }
+        expectRecovered(file, 7, 45, 55);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - TransactionJournal.RECORD_SIZE);
+        }
+        expectRecovered(file, 5, 70, 30);
+        Files.delete(file);
+    }
+
+    /**
+     * Write two openings and three transfers of 10 from account 1 to account 2.
+     */
+    private static Path writeJournal() throws IOException {
+        Path file = Files.createTempFile("journal", ".log");
+        Files.delete(file);
+        try (TransactionJournal journal = open(file)) {
+            journal.appendOpen(1, 100, 1);
+            journal.appendOpen(2, 0, 1);
+            for (int i = 0; i < 3; i++) {
+                journal.appendTransfer(1, 2, 10, 1);
+            }
+        }
+        return file;
+    }
+
+    private static void expectRecovered(Path file, long records, double balance1, double balance2)
+            throws IOException {
+        try (TransactionJournal journal = open(file)) {
+            check(journal.getRecoveredRecords() == records, "Expected " + records + " records, recovered "
+                    + journal.getRecoveredRecords());
+            TransactionSystem system = TransactionSystem.recover(journal, AccountEngine.LOCKING);
+            check(system.balanceOf(1) == balance1 && system.balanceOf(2) == balance2, "Expected balances "
+                    + balance1 + " and " + balance2 + ", recovered " + system.balanceOf(1) + " and "
+                    + system.balanceOf(2));
+        }
+        check(Files.size(file) == records * TransactionJournal.RECORD_SIZE, "The tail was not cut off the file");
+    }
+
+    private static TransactionJournal open(Path file) throws IOException {
+        return TransactionJournal.open(file, TransactionJournal.SyncPolicy.ALWAYS, 0);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
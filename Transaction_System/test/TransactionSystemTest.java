@@ -0,0 +1,172 @@
+import exceptions.InsufficientFundsException;
+import exceptions.InvalidTransactionException;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks how transfers behave when the journal fails: nothing is stored in the history unless the journal
+ * took it, money that moved is taken back, and a transfer whose money could not be taken back reports
+ * {@link TransferResult#ROLLBACK_FAILED}. Also checks that a batch rounds its amounts like single transfers.
+ */
+public class TransactionSystemTest {
+
+    public static void main(String[] args) throws Exception {
+        closedJournalStoresNothing();
+        failedJournalIsTakenBack(false);
+        failedJournalIsTakenBack(true);
+        batchRoundsLikeSingleTransfers();
+        System.out.println("TransactionSystemTest passed");
+    }
+
+    private static void closedJournalStoresNothing() throws IOException {
+        for (TransferMode mode : TransferMode.values()) {
+            for (AccountEngine engine : AccountEngine.values()) {
+                TransactionJournal journal = openJournal();
+                TransactionSystem system = new TransactionSystem(accounts(), engine, journal);
+                system.setTransferMode(mode);
+                quiet(system);
+                journal.close();
+                String run = mode + "/" + engine;
+                check(system.tryTransfer(1, 2, 5) == TransferResult.JOURNAL_FAILED, run + " must fail");
+                long[] records = {0};
+                system.forEachTransactionSince(0, Integer.MAX_VALUE, transaction -> records[0]++);
+                check(records[0] == 0, run + " stored " + records[0] + " records the journal never took");
+                expectBalances(system, run, 100, 100, 100);
+            }
+        }
+    }
+
+    /**
+     * Appends are accepted but the flush fails, so every transfer has to be taken back after its money moved.
+     *
+     * @param refuse whether account 2 refuses the withdrawal that takes its money back
+     */
+    private static void failedJournalIsTakenBack(boolean refuse) throws Exception {
+        TransferResult expected = refuse ? TransferResult.ROLLBACK_FAILED : TransferResult.JOURNAL_FAILED;
+        TransactionSystem system = failingSystem(refuse);
+        TransferResult[] batch = system.transferBatch(List.of(new TransferRequest(1, 2, 5),
+                new TransferRequest(1, 3, 5)));
+        check(Arrays.equals(batch, new TransferResult[]{expected, TransferResult.JOURNAL_FAILED}),
+                "Batch gave " + Arrays.toString(batch));
+        if (!refuse) {
+            expectBalances(system, "batch", 100, 100, 100);
+        }
+
+        system = failingSystem(refuse);
+        TransferResult posting = system.transferAtomic(List.of(new TransferRequest(1, 2, 5),
+                new TransferRequest(1, 3, 5)));
+        check(posting == expected, "Posting gave " + posting);
+
+        system = failingSystem(refuse);
+        TransferResult single = system.tryTransfer(1, 2, 5);
+        check(single == expected, "Transfer gave " + single);
+        if (!refuse) {
+            expectBalances(system, "transfer", 100, 100, 100);
+        }
+
+        system = failingSystem(refuse);
+        check(system.tryTransfer(7L, 1, 2, 5) == expected, "Transfer with a request ID must give " + expected);
+        TransferResult retry = system.tryTransfer(7L, 1, 2, 5);
+        check(refuse ? retry == expected : retry == TransferResult.JOURNAL_FAILED && system.balanceOf(1) == 100,
+                "Retry gave " + retry + " with a balance of " + system.balanceOf(1));
+    }
+
+    private static void batchRoundsLikeSingleTransfers() {
+        List<TransferRequest> requests = List.of(new TransferRequest(1, 2, 0.006), new TransferRequest(2, 3, 0.003),
+                new TransferRequest(1, 3, 0.004), new TransferRequest(3, 1, 1.005), new TransferRequest(2, 1, 0.015));
+        for (AccountEngine engine : AccountEngine.values()) {
+            TransactionSystem batch = new TransactionSystem(accounts(), engine);
+            TransactionSystem singles = new TransactionSystem(accounts(), engine);
+            quiet(batch);
+            quiet(singles);
+            TransferResult[] batchResults = batch.transferBatch(requests);
+            List<TransferResult> singleResults = new ArrayList<>();
+            for (TransferRequest request : requests) {
+                singleResults.add(singles.tryTransfer(request.getFromAccountId(), request.getToAccountId(),
+                        request.getAmount()));
+            }
+            check(Arrays.asList(batchResults).equals(singleResults), engine + " batch gave "
+                    + Arrays.toString(batchResults) + ", single transfers gave " + singleResults);
+            expectBalances(batch, engine + " batch", singles.balanceOf(1), singles.balanceOf(2),
+                    singles.balanceOf(3));
+            check(total(batch) == 300, engine + " batch changed the total to " + total(batch));
+        }
+    }
+
+    /**
+     * Create a system whose journal accepts appends but fails to write them.
+     */
+    private static TransactionSystem failingSystem(boolean refuse) throws Exception {
+        TransactionJournal journal = openJournal();
+        List<BankAccount> accounts = List.of(new BankAccount(1, 100), new RefusingAccount(2, 100, refuse),
+                new BankAccount(3, 100));
+        TransactionSystem system = new TransactionSystem(accounts, AccountEngine.LOCKING, journal);
+        quiet(system);
+        Field channel = TransactionJournal.class.getDeclaredField("channel");
+        channel.setAccessible(true);
+        ((FileChannel) channel.get(journal)).close();
+        return system;
+    }
+
+    private static TransactionJournal openJournal() throws IOException {
+        Path file = Files.createTempFile("journal", ".log");
+        Files.delete(file);
+        file.toFile().deleteOnExit();
+        return TransactionJournal.open(file, TransactionJournal.SyncPolicy.ALWAYS, 0);
+    }
+
+    /**
+     * Drop the events of a system, since most of them report the failures the tests provoke.
+     */
+    private static void quiet(TransactionSystem system) {
+        system.setEventLog(new EventLog(EventSink.DISCARD, 64, EventLevel.INFO));
+    }
+
+    private static List<BankAccount> accounts() {
+        return List.of(new BankAccount(1, 100), new BankAccount(2, 100), new BankAccount(3, 100));
+    }
+
+    private static double total(TransactionSystem system) {
+        return system.balanceOf(1) + system.balanceOf(2) + system.balanceOf(3);
+    }
+
+    private static void expectBalances(TransactionSystem system, String run, double... balances) {
+        for (int i = 0; i < balances.length; i++) {
+            check(system.balanceOf(i + 1) == balances[i], run + ": account " + (i + 1) + " holds "
+                    + system.balanceOf(i + 1) + ", expected " + balances[i]);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * An account that can refuse every withdrawal once it has been opened.
+     */
+    private static final class RefusingAccount extends BankAccount {
+        private final boolean refuse;
+
+        RefusingAccount(int id, double balance, boolean refuse) {
+            super(id, balance);
+            this.refuse = refuse;
+        }
+
+        @Override
+        public void withdraw(double amount) throws InsufficientFundsException, InvalidTransactionException {
+            if (refuse) {
+                throw new InsufficientFundsException(getId(), amount, getBalance());
+            }
+            super.withdraw(amount);
+        }
+    }
+}
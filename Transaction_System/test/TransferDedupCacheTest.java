@@ -0,0 +1,105 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks eviction and early removal in {@link TransferDedupCache}: entries expire after their time to live,
+ * retryable results are removed at once unless the transfer left money moved, the oldest settled entry makes
+ * room when a segment is full, and removing entries from the middle of a probe run never hides the entries
+ * after it.
+ */
+public class TransferDedupCacheTest {
+
+    private static final int FINGERPRINT = 7;
+
+    public static void main(String[] args) throws Exception {
+        entriesExpireAfterTimeToLive();
+        retryableResultsAreRemovedUnlessUnsettled();
+        oldestEntryMakesRoomWhenFull();
+        removalKeepsProbeRunsIntact();
+        System.out.println("TransferDedupCacheTest passed");
+    }
+
+    private static void entriesExpireAfterTimeToLive() throws InterruptedException {
+        TransferDedupCache cache = new TransferDedupCache(100, 50, TimeUnit.MILLISECONDS);
+        check(cache.claim(1, FINGERPRINT) == null, "A new request ID must be claimed");
+        cache.complete(1, TransferResult.SUCCESS, false);
+        check(cache.claim(1, FINGERPRINT) == TransferResult.SUCCESS, "A retry must get the cached result");
+        check(cache.claim(1, FINGERPRINT + 1) == TransferResult.REQUEST_ID_CONFLICT,
+                "A different transfer under the same ID must conflict");
+        Thread.sleep(80);
+        check(cache.claim(1, FINGERPRINT) == null, "An expired request ID must be claimed again");
+        check(cache.getEvictionCount() == 1, "Expected one eviction, counted " + cache.getEvictionCount());
+        cache.complete(1, TransferResult.SUCCESS, false);
+    }
+
+    private static void retryableResultsAreRemovedUnlessUnsettled() {
+        TransferDedupCache cache = new TransferDedupCache(100, 1, TimeUnit.HOURS);
+        for (TransferResult result : new TransferResult[]{TransferResult.LOCK_FAILED, TransferResult.JOURNAL_FAILED}) {
+            check(cache.claim(2, FINGERPRINT) == null, "A new request ID must be claimed");
+            cache.complete(2, result, false);
+            check(cache.size() == 0, result + " must not be kept");
+            check(cache.claim(2, FINGERPRINT) == null, "A retry after " + result + " must run again");
+            cache.complete(2, result, true);
+            check(cache.claim(2, FINGERPRINT) == result, "An unsettled " + result + " must be kept");
+            cache = new TransferDedupCache(100, 1, TimeUnit.HOURS);
+        }
+        check(cache.claim(3, FINGERPRINT) == null, "A new request ID must be claimed");
+        cache.complete(3, null, false);
+        check(cache.claim(3, FINGERPRINT) == null, "A transfer that threw must run again");
+    }
+
+    private static void oldestEntryMakesRoomWhenFull() {
+        TransferDedupCache cache = new TransferDedupCache(8, 1, TimeUnit.HOURS);
+        int capacity = cache.getCapacity();
+        for (long id = 0; id <= capacity; id++) {
+            check(cache.claim(id, FINGERPRINT) == null, "Request " + id + " must be claimed");
+            cache.complete(id, TransferResult.SUCCESS, false);
+        }
+        check(cache.size() == capacity, "Expected a full cache of " + capacity + ", holds " + cache.size());
+        check(cache.getEvictionCount() == 1, "Expected one eviction, counted " + cache.getEvictionCount());
+        check(cache.claim(capacity, FINGERPRINT) == TransferResult.SUCCESS, "The newest entry must be kept");
+        check(cache.claim(0, FINGERPRINT) == null, "The oldest entry must have been evicted");
+        cache.complete(0, TransferResult.SUCCESS, false);
+    }
+
+    /**
+     * Runs random claims and completions against a map, removing about half of the entries early.
+     */
+    private static void removalKeepsProbeRunsIntact() {
+        TransferResult[] kept = {TransferResult.SUCCESS, TransferResult.ACCOUNT_NOT_FOUND,
+                TransferResult.SAME_ACCOUNT, TransferResult.INVALID_AMOUNT, TransferResult.INSUFFICIENT_FUNDS};
+        for (int round = 0; round < 20; round++) {
+            Random random = new Random(round);
+            TransferDedupCache cache = new TransferDedupCache(16384, 1, TimeUnit.HOURS);
+            Map<Long, TransferResult> model = new HashMap<>();
+            long[] ids = new long[3000];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = random.nextLong();
+            }
+            for (int i = 0; i < 10_000; i++) {
+                long id = ids[random.nextInt(ids.length)];
+                TransferResult cached = cache.claim(id, FINGERPRINT);
+                check(cached == model.get(id), "Request " + id + " gave " + cached + ", expected " + model.get(id));
+                if (cached == null) {
+                    TransferResult result = random.nextBoolean() ? TransferResult.JOURNAL_FAILED
+                            : kept[(int) Math.floorMod(id, (long) kept.length)];
+                    cache.complete(id, result, false);
+                    if (result != TransferResult.JOURNAL_FAILED) {
+                        model.put(id, result);
+                    }
+                }
+            }
+            check(cache.size() == model.size(), "Cache holds " + cache.size() + " entries, expected "
+                    + model.size());
+            check(cache.getEvictionCount() == 0, "Nothing should have been evicted");
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}